@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Distance, bearing and cardinal direction calculations that are done for
+ * every incoming position and the bulk operations of the LocationSnapshot
+ * compared to walking all Location objects.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeometryBenchmark {
+    private static final int SIZE = 1024;
+    private static final int MASK = SIZE - 1;
+
+    private Location[]       locations;
+    private double[]         bearings;
+    private LocationSnapshot snapshot;
+    private int              index;
+
+
+    @Setup public void setup() {
+        final Random RND = new Random(42);
+        locations = new Location[SIZE];
+        bearings  = new double[SIZE];
+        for (int i = 0 ; i < SIZE ; i++) {
+            locations[i] = new Location(RND.nextDouble() * 180 - 90, RND.nextDouble() * 360 - 180, RND.nextDouble() * 1000, Instant.now(), "device" + i, "");
+            bearings[i]  = RND.nextDouble() * 360;
+            ColumnStore.INSTANCE.update(locations[i]);
+        }
+        snapshot = ColumnStore.INSTANCE.getSnapshot();
+    }
+
+    @Benchmark public double distance() {
+        final Location P1 = locations[index++ & MASK];
+        final Location P2 = locations[index & MASK];
+        return P1.calcDistanceInMeter(P1.latitude, P1.longitude, P2.latitude, P2.longitude);
+    }
+
+    @Benchmark public double bearing() {
+        final Location P1 = locations[index++ & MASK];
+        final Location P2 = locations[index & MASK];
+        return P1.calcBearingInDegree(P1.latitude, P1.longitude, P2.latitude, P2.longitude);
+    }
+
+    @Benchmark public String cardinalDirection() {
+        return locations[0].getCardinalDirectionFromBearing(bearings[index++ & MASK]);
+    }
+
+    @Benchmark public double[] allDistances() {
+        final Location P1     = locations[0];
+        final double[] RESULT = new double[SIZE];
+        for (int i = 0 ; i < SIZE ; i++) { RESULT[i] = P1.calcDistanceInMeter(P1.latitude, P1.longitude, locations[i].latitude, locations[i].longitude); }
+        return RESULT;
+    }
+
+    @Benchmark public double[] snapshotDistances() { return snapshot.getDistances(locations[0].latitude, locations[0].longitude); }
+
+    @Benchmark public double[] allBearings() {
+        final Location P1     = locations[0];
+        final double[] RESULT = new double[SIZE];
+        for (int i = 0 ; i < SIZE ; i++) { RESULT[i] = P1.calcBearingInDegree(P1.latitude, P1.longitude, locations[i].latitude, locations[i].longitude); }
+        return RESULT;
+    }
+
+    @Benchmark public double[] snapshotBearings() { return snapshot.getBearings(locations[0].latitude, locations[0].longitude); }
+
+    @Benchmark public int[] snapshotWithin() { return snapshot.getWithin(-45, -90, 45, 90); }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Closed loop load test for the write path: every client sends PUT /update
+ * requests one after the other for the given duration. Prints the
+ * throughput and the latency percentiles.
+ *
+ * To compare the server modes at the same store latency:
+ * 1. java eu.hansolo.accs.StubStoreServer 8081 50
+ * 2. Start the server with LOCATION_STORE_SCHEME=http LOCATION_STORE_HOST=localhost
+ *    LOCATION_STORE_PORT=8081 SERVER_MAX_THREADS=32 and SERVER_MODE=BLOCKING or ASYNC,
+ *    the rate limits have to be disabled with RATE_LIMIT_NAME_RATE=0 RATE_LIMIT_IP_RATE=0
+ * 3. java eu.hansolo.accs.LoadTest http://localhost:4567 256 30
+ *    or ./gradlew loadTest -PloadTestArgs="http://localhost:4567 256 30"
+ */
+public class LoadTest {
+    private static final int NAMES_PER_CLIENT = 10;
+
+
+    public static void main(String[] args) throws Exception {
+        final String URL_BASE = args.length > 0 ? args[0] : "http://localhost:4567";
+        final int    CLIENTS  = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        final long   DURATION = args.length > 2 ? Long.parseLong(args[2]) : 30;
+        final URL    TARGET   = new URL(URL_BASE + "/update");
+
+        System.setProperty("http.maxConnections", Integer.toString(CLIENTS));
+
+        final long           END          = System.nanoTime() + DURATION * 1_000_000_000L;
+        final long           START_SECOND = Instant.now().getEpochSecond();
+        final AtomicLong     ERRORS       = new AtomicLong(0);
+        final List<long[]>   LATENCIES    = new ArrayList<>(CLIENTS);
+        final int[]          COUNTS       = new int[CLIENTS];
+        final CountDownLatch DONE         = new CountDownLatch(CLIENTS);
+        for (int i = 0 ; i < CLIENTS ; i++) { LATENCIES.add(new long[1 << 16]); }
+
+        System.out.println("Load test: " + CLIENTS + " clients for " + DURATION + " s against " + TARGET);
+        for (int i = 0 ; i < CLIENTS ; i++) {
+            final int CLIENT = i;
+            Thread thread = new Thread(() -> {
+                long[] samples = LATENCIES.get(CLIENT);
+                long   request = 0;
+                while (System.nanoTime() < END) {
+                    final String NAME  = "load-" + CLIENT + "-" + (request % NAMES_PER_CLIENT);
+                    final long   START = System.nanoTime();
+                    try {
+                        if (200 != put(TARGET, toJSON(NAME, START_SECOND + request))) { ERRORS.incrementAndGet(); }
+                    } catch (IOException e) {
+                        ERRORS.incrementAndGet();
+                    }
+                    if (COUNTS[CLIENT] == samples.length) {
+                        samples = Arrays.copyOf(samples, samples.length * 2);
+                        LATENCIES.set(CLIENT, samples);
+                    }
+                    samples[COUNTS[CLIENT]++] = System.nanoTime() - START;
+                    request++;
+                }
+                DONE.countDown();
+            }, "LoadTestClient-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        DONE.await();
+
+        int total = 0;
+        for (int count : COUNTS) { total += count; }
+        long[] all   = new long[total];
+        int    index = 0;
+        for (int i = 0 ; i < CLIENTS ; i++) {
+            System.arraycopy(LATENCIES.get(i), 0, all, index, COUNTS[i]);
+            index += COUNTS[i];
+        }
+        Arrays.sort(all);
+
+        System.out.println(String.format("requests   : %d (%d errors)", total, ERRORS.get()));
+        System.out.println(String.format("throughput : %.1f req/s", total / (double) DURATION));
+        System.out.println(String.format("latency p50: %.1f ms", getPercentile(all, 0.50)));
+        System.out.println(String.format("latency p90: %.1f ms", getPercentile(all, 0.90)));
+        System.out.println(String.format("latency p99: %.1f ms", getPercentile(all, 0.99)));
+        System.out.println(String.format("latency max: %.1f ms", total == 0 ? 0 : all[total - 1] / 1e6));
+    }
+
+    private static int put(final URL TARGET, final String BODY) throws IOException {
+        final byte[]      BYTES      = BODY.getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection connection = (HttpURLConnection) TARGET.openConnection();
+        connection.setRequestMethod("PUT");
+        connection.setDoOutput(true);
+        connection.setConnectTimeout(5_000);
+        connection.setReadTimeout(60_000);
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setFixedLengthStreamingMode(BYTES.length);
+        try (OutputStream out = connection.getOutputStream()) { out.write(BYTES); }
+        final int STATUS = connection.getResponseCode();
+        // Read the body completely so that the connection can be reused
+        try (InputStream in = STATUS < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (null != in) { while (in.read() != -1) { } }
+        }
+        return STATUS;
+    }
+
+    private static String toJSON(final String NAME, final long TIMESTAMP) {
+        return "{\"name\":\"" + NAME + "\",\"timestamp\":\"" + TIMESTAMP + "\",\"latitude\":" + (51.9 + (TIMESTAMP % 100) * 1e-4) + ",\"longitude\":7.6,\"altitude\":0,\"info\":\"Muenster, Germany\"}";
+    }
+
+    private static double getPercentile(final long[] SORTED, final double PERCENTILE) {
+        if (SORTED.length == 0) return 0;
+        return SORTED[Math.min(SORTED.length - 1, (int) Math.ceil(PERCENTILE * SORTED.length) - 1)] / 1e6;
+    }
+}
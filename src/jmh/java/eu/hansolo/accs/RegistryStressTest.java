@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONObject;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Concurrency stress test of the LocationCache. Writers send locations with
+ * jittered timestamps (partly out of order) for a few names, every second
+ * writer with the async writes, while readers check
+ * that every location they see is consistent (all fields belong to the
+ * same write) and that the timestamp of a name never goes backwards. At
+ * the end the cache, the ColumnStore and the store must contain the
+ * latest location of every name. Exits with 1 if a check failed.
+ *
+ * With the RestClient the writes go to a StubStoreServer that is started on
+ * LOCATION_STORE_PORT, e.g. (or ./gradlew stressTest)
+ * LOCATION_URL=/db/locations LOCATION_STORE_SCHEME=http LOCATION_STORE_HOST=localhost LOCATION_STORE_PORT=8081 java eu.hansolo.accs.RegistryStressTest 8 4 64 5000
+ * With the embedded store:
+ * LOCATION_STORE=embedded EMBEDDED_STORE_FILE=/tmp/stress.log java eu.hansolo.accs.RegistryStressTest 8 4 64 100000
+ */
+public class RegistryStressTest {
+    private static final int JITTER = 1_000;
+
+
+    public static void main(String[] args) throws Exception {
+        final int WRITERS  = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int READERS  = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int NAMES    = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        final int UPDATES  = args.length > 3 ? Integer.parseInt(args[3]) : 100_000;
+
+        if (LocationStore.INSTANCE instanceof RestClient) {
+            // Without LOCATION_URL the RestClient exits with 0 on the first write
+            if (!"localhost".equals(Env.getString("LOCATION_STORE_HOST", "")) || Env.getString("LOCATION_URL", "").isEmpty()) {
+                System.out.println("Start with LOCATION_URL and LOCATION_STORE_HOST=localhost to test against the stub store");
+                System.exit(1);
+            }
+            new StubStoreServer(Env.getInt("LOCATION_STORE_PORT", 8081));
+        }
+        LocationCache.INSTANCE.addLocationEventListener(ColumnStore.INSTANCE);
+
+        final AtomicLongArray LATEST     = new AtomicLongArray(NAMES);
+        final AtomicLong      VIOLATIONS = new AtomicLong(0);
+        final AtomicLong      READS      = new AtomicLong(0);
+        final AtomicBoolean   RUNNING    = new AtomicBoolean(true);
+        final CountDownLatch  WRITTEN    = new CountDownLatch(WRITERS);
+        final CountDownLatch  READ       = new CountDownLatch(READERS);
+        for (int i = 0 ; i < NAMES ; i++) { LATEST.set(i, -1); }
+
+        final long START = System.nanoTime();
+        for (int i = 0 ; i < WRITERS ; i++) {
+            // Every second writer uses the async writes, they reach the store in any order
+            final boolean ASYNC = i % 2 == 1;
+            Thread thread = new Thread(() -> {
+                final ThreadLocalRandom          RND     = ThreadLocalRandom.current();
+                final List<CompletableFuture<?>> FUTURES = new ArrayList<>();
+                for (int u = 0 ; u < UPDATES ; u++) {
+                    final int  NAME      = RND.nextInt(NAMES);
+                    // Increasing with a random delay, so a part of the updates arrives out of order
+                    final long TIMESTAMP = u + RND.nextInt(JITTER);
+                    if (ASYNC) {
+                        FUTURES.add(LocationCache.INSTANCE.upsertAsync(create(NAME, TIMESTAMP)));
+                    } else {
+                        LocationCache.INSTANCE.update(create(NAME, TIMESTAMP));
+                    }
+                    LATEST.accumulateAndGet(NAME, TIMESTAMP, Math::max);
+                }
+                for (CompletableFuture<?> future : FUTURES) { future.join(); }
+                WRITTEN.countDown();
+            }, "StressWriter-" + i);
+            thread.start();
+        }
+        for (int i = 0 ; i < READERS ; i++) {
+            Thread thread = new Thread(() -> {
+                final long[] SEEN = new long[NAMES];
+                while (RUNNING.get()) {
+                    for (Location location : LocationCache.INSTANCE.getAll()) {
+                        final int NAME = Integer.parseInt(location.name.substring(7));
+                        if (!isConsistent(location)) { fail("torn location " + location.toJSONString(), VIOLATIONS); }
+                        final long TIMESTAMP = location.timestamp.getEpochSecond();
+                        if (TIMESTAMP < SEEN[NAME]) { fail(location.name + " went back from " + SEEN[NAME] + " to " + TIMESTAMP, VIOLATIONS); }
+                        SEEN[NAME] = TIMESTAMP;
+                        READS.incrementAndGet();
+                    }
+                }
+                READ.countDown();
+            }, "StressReader-" + i);
+            thread.start();
+        }
+        WRITTEN.await();
+        final long ELAPSED = System.nanoTime() - START;
+        RUNNING.set(false);
+        READ.await();
+
+        // Every registry has to end with the latest location of every name
+        final LocationSnapshot SNAPSHOT = ColumnStore.INSTANCE.getSnapshot();
+        if (SNAPSHOT.size() != LocationCache.INSTANCE.size()) { fail("snapshot contains " + SNAPSHOT.size() + " instead of " + LocationCache.INSTANCE.size() + " locations", VIOLATIONS); }
+        for (int i = 0 ; i < SNAPSHOT.size() ; i++) {
+            final Optional<Location> CACHED = LocationCache.INSTANCE.get(SNAPSHOT.getName(i));
+            if (!CACHED.isPresent() || !CACHED.get().equals(SNAPSHOT.getLocation(i))) { fail("snapshot differs for " + SNAPSHOT.getName(i), VIOLATIONS); }
+        }
+        // One document per name, a write must never insert a second one
+        int written = 0;
+        for (int i = 0 ; i < NAMES ; i++) { if (LATEST.get(i) >= 0) written++; }
+        final int DOCUMENTS = LocationStore.INSTANCE.getAllLocations().size();
+        if (DOCUMENTS != written) { fail("store contains " + DOCUMENTS + " documents for " + written + " names", VIOLATIONS); }
+        for (int i = 0 ; i < NAMES ; i++) {
+            if (LATEST.get(i) < 0) continue;
+            final Optional<Location> CACHED = LocationCache.INSTANCE.get(getName(i));
+            final JSONObject         STORED = LocationStore.INSTANCE.getLocation(getName(i));
+            if (!CACHED.isPresent() || CACHED.get().timestamp.getEpochSecond() != LATEST.get(i)) { fail("cache misses the latest location of " + getName(i), VIOLATIONS); }
+            if (!Long.toString(LATEST.get(i)).equals(String.valueOf(STORED.get("timestamp")))) { fail("store misses the latest location of " + getName(i), VIOLATIONS); }
+        }
+        LocationStore.INSTANCE.close();
+
+        final long WRITES = (long) WRITERS * UPDATES;
+        System.out.println(String.format("writes    : %d (%d stale)", WRITES, LocationCache.INSTANCE.getStale()));
+        System.out.println(String.format("throughput: %.0f writes/s", WRITES / (ELAPSED / 1e9)));
+        System.out.println(String.format("reads     : %d", READS.get()));
+        System.out.println(String.format("violations: %d", VIOLATIONS.get()));
+        System.exit(VIOLATIONS.get() == 0 ? 0 : 1);
+    }
+
+    private static String getName(final int NAME) { return "device-" + NAME; }
+
+    // All fields are derived from the timestamp, so a mix of two writes can be detected
+    private static Location create(final int NAME, final long TIMESTAMP) {
+        return new Location(TIMESTAMP * 1e-5 - 5, TIMESTAMP * 1e-4 - 50, TIMESTAMP, Instant.ofEpochSecond(TIMESTAMP), getName(NAME), Long.toString(TIMESTAMP));
+    }
+
+    private static boolean isConsistent(final Location LOCATION) { return create(Integer.parseInt(LOCATION.name.substring(7)), LOCATION.timestamp.getEpochSecond()).equals(LOCATION); }
+
+    private static void fail(final String MESSAGE, final AtomicLong VIOLATIONS) {
+        if (VIOLATIONS.incrementAndGet() <= 10) { System.out.println("Error: " + MESSAGE); }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Parsing and serialization of locations in json and cbor and the umlaut
+ * replacement of the geocoder results.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    private static final int      SIZE   = 256;
+    private static final int      MASK   = SIZE - 1;
+    private static final String[] CITIES = { "M\u00FCnster", "K\u00F6ln", "D\u00FCsseldorf", "Gie\u00DFen", "\u00D6hringen", "Z\u00FCrich", "Berlin", "Hamburg" };
+
+    private Location[]   locations;
+    private JSONObject[] jsonObjects;
+    private String[]     jsonStrings;
+    private byte[][]     cborBytes;
+    private int          index;
+
+
+    @Setup public void setup() {
+        final Random RND = new Random(42);
+        locations   = new Location[SIZE];
+        jsonObjects = new JSONObject[SIZE];
+        jsonStrings = new String[SIZE];
+        cborBytes   = new byte[SIZE][];
+        for (int i = 0 ; i < SIZE ; i++) {
+            locations[i]   = new Location(RND.nextDouble() * 180 - 90, RND.nextDouble() * 360 - 180, RND.nextDouble() * 1000, Instant.now(), "device" + i, CITIES[i % CITIES.length] + ", Germany");
+            jsonStrings[i] = locations[i].toJSONString();
+            jsonObjects[i] = (JSONObject) JSONValue.parse(jsonStrings[i]);
+            cborBytes[i]   = Cbor.encode(locations[i]);
+        }
+    }
+
+    @Benchmark public Location fromJSON() { return new Location(jsonObjects[index++ & MASK]); }
+
+    @Benchmark public JSONObject toJSON() { return locations[index++ & MASK].toJSON(); }
+
+    @Benchmark public String toJSONString() { return locations[index++ & MASK].toJSONString(); }
+
+    @Benchmark public String writeJSON() throws IOException {
+        StringWriter writer = new StringWriter(128);
+        locations[index++ & MASK].writeJSON(writer);
+        return writer.toString();
+    }
+
+    @Benchmark public String roundTrip() { return new Location((JSONObject) JSONValue.parse(jsonStrings[index++ & MASK])).toJSONString(); }
+
+    @Benchmark public Location parseJSON() { return new Location((JSONObject) JSONValue.parse(jsonStrings[index++ & MASK])); }
+
+    @Benchmark public Location decodeCbor() { return Cbor.decode(cborBytes[index++ & MASK]); }
+
+    @Benchmark public byte[] encodeCbor() { return Cbor.encode(locations[index++ & MASK]); }
+
+    @Benchmark public String replaceUmlauts() { return Main.UMLAUT.replaceUmlauts(CITIES[index++ % CITIES.length]); }
+}
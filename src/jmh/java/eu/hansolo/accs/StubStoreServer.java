@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Minimal in-memory stand-in for the mLab REST api that is used by the
+ * RestClient. It understands the requests the RestClient sends: the
+ * queries {"field":value}, {"field":{"$in":[...]}} and {"field":{"$lt":n}},
+ * single and bulk inserts, updates and deletes by id, and replacing
+ * the result of a query with an empty list.
+ *
+ * Start it with: java eu.hansolo.accs.StubStoreServer [port] [latency in ms]
+ * and run the server with LOCATION_STORE_SCHEME=http,
+ * LOCATION_STORE_HOST=localhost and LOCATION_STORE_PORT=[port].
+ * The latency will be added to every request to simulate a remote store.
+ */
+public class StubStoreServer {
+    private final Map<String, JSONObject> docs = new ConcurrentHashMap<>();
+    private final long                    latency;
+
+
+    public StubStoreServer(final int PORT) throws IOException { this(PORT, 0); }
+    public StubStoreServer(final int PORT, final long LATENCY) throws IOException {
+        latency = LATENCY;
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        server.createContext("/", exchange -> {
+            try {
+                if (latency > 0) { Thread.sleep(latency); }
+                handle(exchange);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                send(exchange, 503, new JSONObject().toJSONString());
+            } catch (RuntimeException e) {
+                send(exchange, 400, new JSONObject().toJSONString());
+            }
+        });
+        // The simulated latency must not limit the throughput of the stub
+        server.setExecutor(latency > 0 ? Executors.newCachedThreadPool() : Executors.newFixedThreadPool(8));
+        server.start();
+        System.out.println("Stub store listening on port " + PORT + (latency > 0 ? " with " + latency + " ms latency" : ""));
+    }
+
+
+    private void handle(final HttpExchange EXCHANGE) throws IOException {
+        final String              PATH   = EXCHANGE.getRequestURI().getPath();
+        final Map<String, String> PARAMS = getParams(EXCHANGE.getRequestURI().getRawQuery());
+        final JSONObject          QUERY  = PARAMS.containsKey("q") ? (JSONObject) JSONValue.parse(PARAMS.get("q")) : new JSONObject();
+        final String              OID    = PATH.substring(PATH.lastIndexOf('/') + 1);
+        final boolean             BY_ID  = docs.containsKey(OID);
+
+        switch(EXCHANGE.getRequestMethod()) {
+            case "GET":
+                JSONArray result = new JSONArray();
+                for (JSONObject doc : docs.values()) { if (matches(doc, QUERY)) result.add(doc); }
+                send(EXCHANGE, 200, result.toJSONString());
+                break;
+            case "POST":
+                Object body = readBody(EXCHANGE);
+                if (body instanceof JSONArray) {
+                    for (Object obj : (JSONArray) body) { insert((JSONObject) obj); }
+                    JSONObject response = new JSONObject();
+                    response.put("n", ((JSONArray) body).size());
+                    send(EXCHANGE, 200, response.toJSONString());
+                } else {
+                    send(EXCHANGE, 200, insert((JSONObject) body).toJSONString());
+                }
+                break;
+            case "PUT":
+                Object update = readBody(EXCHANGE);
+                if (BY_ID) {
+                    JSONObject doc = (JSONObject) update;
+                    doc.put("_id", docs.get(OID).get("_id"));
+                    docs.put(OID, doc);
+                    send(EXCHANGE, 200, doc.toJSONString());
+                } else if (update instanceof JSONArray && ((JSONArray) update).isEmpty()) {
+                    int removed = 0;
+                    for (Iterator<JSONObject> i = docs.values().iterator() ; i.hasNext() ; ) {
+                        if (matches(i.next(), QUERY)) { i.remove(); removed++; }
+                    }
+                    JSONObject response = new JSONObject();
+                    response.put("removed", removed);
+                    send(EXCHANGE, 200, response.toJSONString());
+                } else {
+                    send(EXCHANGE, 404, new JSONObject().toJSONString());
+                }
+                break;
+            case "DELETE":
+                JSONObject deleted = BY_ID ? docs.remove(OID) : null;
+                send(EXCHANGE, null == deleted ? 404 : 200, null == deleted ? new JSONObject().toJSONString() : deleted.toJSONString());
+                break;
+            default:
+                send(EXCHANGE, 405, new JSONObject().toJSONString());
+        }
+    }
+
+    private JSONObject insert(final JSONObject DOC) {
+        final String OID = UUID.randomUUID().toString().replace("-", "").substring(0, 24);
+        JSONObject   id  = new JSONObject();
+        id.put("$oid", OID);
+        DOC.put("_id", id);
+        docs.put(OID, DOC);
+        return DOC;
+    }
+
+    private static boolean matches(final JSONObject DOC, final JSONObject QUERY) {
+        for (Object key : QUERY.keySet()) {
+            final Object VALUE     = DOC.get(key);
+            final Object CONDITION = QUERY.get(key);
+            if (CONDITION instanceof JSONObject) {
+                final JSONObject OPERATOR = (JSONObject) CONDITION;
+                if (OPERATOR.containsKey("$in")) {
+                    boolean found = false;
+                    for (Object candidate : (JSONArray) OPERATOR.get("$in")) { found |= null != VALUE && VALUE.toString().equals(candidate.toString()); }
+                    if (!found) return false;
+                }
+                if (OPERATOR.containsKey("$lt")) {
+                    if (null == VALUE || Double.parseDouble(VALUE.toString()) >= Double.parseDouble(OPERATOR.get("$lt").toString())) return false;
+                }
+            } else if (null == VALUE || !VALUE.toString().equals(CONDITION.toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Object readBody(final HttpExchange EXCHANGE) throws IOException {
+        try (Reader reader = new InputStreamReader(EXCHANGE.getRequestBody(), StandardCharsets.UTF_8)) { return JSONValue.parse(reader); }
+    }
+
+    private static Map<String, String> getParams(final String QUERY) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        if (null == QUERY) return params;
+        for (String param : QUERY.split("&")) {
+            final int INDEX = param.indexOf('=');
+            if (INDEX > 0) { params.put(URLDecoder.decode(param.substring(0, INDEX), "UTF-8"), URLDecoder.decode(param.substring(INDEX + 1), "UTF-8")); }
+        }
+        return params;
+    }
+
+    private static void send(final HttpExchange EXCHANGE, final int STATUS, final String BODY) throws IOException {
+        final byte[] BYTES = BODY.getBytes(StandardCharsets.UTF_8);
+        EXCHANGE.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        EXCHANGE.sendResponseHeaders(STATUS, BYTES.length);
+        try (OutputStream out = EXCHANGE.getResponseBody()) { out.write(BYTES); }
+    }
+
+    public static void main(String[] args) throws IOException {
+        new StubStoreServer(args.length > 0 ? Integer.parseInt(args[0]) : 8081, args.length > 1 ? Long.parseLong(args[1]) : 0);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Mimics the work that is done for one position update: parse the body,
+ * compare it with the last known position of the device, clean up the
+ * geocoder result and serialize the response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkloadBenchmark {
+    private static final int SIZE = 256;
+    private static final int MASK = SIZE - 1;
+
+    private Location[] previous;
+    private String[]   updates;
+    private int        index;
+
+
+    @Setup public void setup() {
+        final Random RND = new Random(42);
+        previous = new Location[SIZE];
+        updates  = new String[SIZE];
+        for (int i = 0 ; i < SIZE ; i++) {
+            final double LAT = RND.nextDouble() * 180 - 90;
+            final double LON = RND.nextDouble() * 360 - 180;
+            previous[i] = new Location(LAT, LON, 0, Instant.now().minusSeconds(60), "device" + i, "D\u00FCsseldorf, Germany");
+            updates[i]  = new Location(LAT + RND.nextDouble() * 0.01, LON + RND.nextDouble() * 0.01, RND.nextDouble() * 100, Instant.now(), "device" + i, "").toJSONString();
+        }
+    }
+
+    @Benchmark public void update(final Blackhole BLACKHOLE) {
+        final int      I        = index++ & MASK;
+        final Location LAST     = previous[I];
+        final Location LOCATION = new Location((JSONObject) JSONValue.parse(updates[I]));
+        final double   BEARING  = LAST.getBearingTo(LOCATION);
+        BLACKHOLE.consume(LAST.getDistanceTo(LOCATION));
+        BLACKHOLE.consume(LAST.getCardinalDirectionFromBearing(BEARING));
+        BLACKHOLE.consume(LOCATION.withInfo(Main.UMLAUT.replaceUmlauts(LAST.info)).toJSONString());
+    }
+}
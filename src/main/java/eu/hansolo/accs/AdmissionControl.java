@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONObject;
+
+import javax.servlet.http.HttpServletRequest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Decides whether a write request will be accepted. Every accepted write
+ * ends up in calls to the store and the geocoder, so writes are limited
+ * per device name and per client ip with a token bucket each, and all
+ * writes are shed while the server is overloaded, which is the case if
+ * - the moving average of the store latency is above ADMISSION_MAX_LATENCY
+ *   (only while the store is called, otherwise the latency is outdated)
+ * - more than ADMISSION_MAX_WAITING calls wait for a free store connection
+ * - the WriteBehindQueue holds more than ADMISSION_MAX_PENDING writes
+ * Rejected requests are answered with 429 and Retry-After.
+ *
+ * Configuration via environment variables:
+ * RATE_LIMIT_NAME_RATE     writes per second per device name, 0 = off          (default 2)
+ * RATE_LIMIT_NAME_BURST    max writes at once per device name                  (default 10)
+ * RATE_LIMIT_IP_RATE       writes per second per client ip, 0 = off            (default 100)
+ * RATE_LIMIT_IP_BURST      max writes at once per client ip                    (default 200)
+ * RATE_LIMIT_MAX_KEYS      max number of names and ips that are tracked each   (default 100000)
+ * RATE_LIMIT_IP_HEADER     header with the client ip behind a proxy, e.g. X-Forwarded-For (default none)
+ * ADMISSION_MAX_LATENCY    store latency in ms that starts shedding, 0 = off   (default 2000)
+ * ADMISSION_MAX_WAITING    calls waiting for the store that start shedding     (default 32)
+ * ADMISSION_MAX_PENDING    pending writes that start shedding                  (default 80% of WRITE_BEHIND_MAX_PENDING)
+ * ADMISSION_RETRY_AFTER    seconds a shed client should wait                   (default 1)
+ */
+public enum AdmissionControl {
+    INSTANCE;
+
+    private static final long LATENCY_WINDOW = 5_000; // ms a latency sample is considered current
+
+    private final RateLimiter nameLimiter;
+    private final RateLimiter ipLimiter;
+    private final String      ipHeader;
+    private final double      maxLatency;
+    private final int         maxWaiting;
+    private final int         maxPending;
+    private final long        retryAfter;
+    private final AtomicLong  shed;
+
+
+    // ******************** Constructors **************************************
+    AdmissionControl() {
+        final int MAX_KEYS = Math.max(1, Env.getInt("RATE_LIMIT_MAX_KEYS", 100_000));
+        nameLimiter = new RateLimiter(Env.getDouble("RATE_LIMIT_NAME_RATE", 2), Env.getDouble("RATE_LIMIT_NAME_BURST", 10), MAX_KEYS);
+        ipLimiter   = new RateLimiter(Env.getDouble("RATE_LIMIT_IP_RATE", 100), Env.getDouble("RATE_LIMIT_IP_BURST", 200), MAX_KEYS);
+        ipHeader    = Env.getString("RATE_LIMIT_IP_HEADER", "").trim();
+        maxLatency  = Env.getDouble("ADMISSION_MAX_LATENCY", 2_000);
+        maxWaiting  = Env.getInt("ADMISSION_MAX_WAITING", 32);
+        maxPending  = Env.getInt("ADMISSION_MAX_PENDING", (int) (WriteBehindQueue.INSTANCE.getMaxPending() * 0.8));
+        retryAfter  = Math.max(1, Env.getLong("ADMISSION_RETRY_AFTER", 1));
+        shed        = new AtomicLong(0);
+    }
+
+
+    // ******************** Methods *******************************************
+    /**
+     * @return 0 if writes are accepted, otherwise the seconds the client should wait
+     */
+    public long checkLoad() {
+        if (!isOverloaded()) return 0;
+        shed.incrementAndGet();
+        return retryAfter;
+    }
+
+    public boolean isOverloaded() {
+        final Dependency STORE = Dependency.STORE;
+        if (maxLatency > 0 && System.currentTimeMillis() - STORE.getLastCall() < LATENCY_WINDOW && STORE.getLatency() > maxLatency) return true;
+        if (STORE.getWaiting() > maxWaiting) return true;
+        return LocationCache.ConsistencyMode.WRITE_BEHIND == LocationCache.INSTANCE.getConsistencyMode() && WriteBehindQueue.INSTANCE.size() > maxPending;
+    }
+
+    /**
+     * @param NAME name of the device
+     * @return 0 if the write is allowed, otherwise the seconds until the next write of the device is allowed
+     */
+    public long checkName(final String NAME) { return toSeconds(nameLimiter.tryAcquire(NAME)); }
+
+    /**
+     * @param REQUEST
+     * @return 0 if the request is allowed, otherwise the seconds until the next request of the client is allowed
+     */
+    public long checkClient(final HttpServletRequest REQUEST) { return toSeconds(ipLimiter.tryAcquire(getClientIp(REQUEST))); }
+
+    public long getShed() { return shed.get(); }
+
+    public long getLimitedNames() { return nameLimiter.getLimited(); }
+
+    public long getLimitedClients() { return ipLimiter.getLimited(); }
+
+    public JSONObject getStats() {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("overloaded", isOverloaded());
+        jsonObject.put("shed", shed.get());
+        jsonObject.put("name", nameLimiter.toJSON());
+        jsonObject.put("ip", ipLimiter.toJSON());
+        return jsonObject;
+    }
+
+
+    // ******************** Private Methods ***********************************
+    // Behind a proxy the first address of the header is the client
+    private String getClientIp(final HttpServletRequest REQUEST) {
+        final String FORWARDED = ipHeader.isEmpty() ? null : REQUEST.getHeader(ipHeader);
+        if (null == FORWARDED || FORWARDED.trim().isEmpty()) return REQUEST.getRemoteAddr();
+        final int COMMA = FORWARDED.indexOf(',');
+        return (COMMA < 0 ? FORWARDED : FORWARDED.substring(0, COMMA)).trim();
+    }
+
+    private static long toSeconds(final long MILLIS) { return (MILLIS + 999) / 1000; }
+}
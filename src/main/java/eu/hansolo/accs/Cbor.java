@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Encodes and decodes locations in CBOR (RFC 7049) as a map with the same
+ * keys as the json representation. Coordinates are written as float32 if
+ * that is lossless and as float64 otherwise, so a decoded location is
+ * exactly the same as the parsed json. Keys are compared as bytes and
+ * numbers are read without boxing, the only objects that are created per
+ * location are the two strings and the location itself.
+ * Missing keys get the same defaults as in Location(JSONObject), unknown
+ * keys are skipped.
+ */
+public class Cbor {
+    public  static final String CONTENT_TYPE    = "application/cbor";
+    private static final int    MAJOR_UNSIGNED  = 0;
+    private static final int    MAJOR_NEGATIVE  = 1;
+    private static final int    MAJOR_TEXT      = 3;
+    private static final int    MAJOR_ARRAY     = 4;
+    private static final int    MAJOR_MAP       = 5;
+    private static final int    MAJOR_SIMPLE    = 7;
+    private static final int    INDEFINITE      = 31;
+    private static final int    BREAK           = 0xff;
+    private static final int    MAX_DEPTH       = 16;
+    private static final byte[] NAME            = key("name");
+    private static final byte[] TIMESTAMP       = key("timestamp");
+    private static final byte[] LATITUDE        = key("latitude");
+    private static final byte[] LONGITUDE       = key("longitude");
+    private static final byte[] ALTITUDE        = key("altitude");
+    private static final byte[] INFO            = key("info");
+
+
+    // ******************** Methods *******************************************
+    /**
+     * @param HEADER content type or accept header of a request
+     * @return true if the header asks for cbor
+     */
+    public static boolean isCbor(final String HEADER) { return null != HEADER && HEADER.toLowerCase().contains(CONTENT_TYPE); }
+
+    public static byte[] encode(final Location LOCATION) {
+        final byte[] NAME_BYTES = LOCATION.name.getBytes(StandardCharsets.UTF_8);
+        final byte[] INFO_BYTES = LOCATION.info.getBytes(StandardCharsets.UTF_8);
+        final long   SECONDS    = LOCATION.timestamp.getEpochSecond();
+        final int    LENGTH     = 1 + NAME.length + headerLength(NAME_BYTES.length) + NAME_BYTES.length
+                                    + TIMESTAMP.length + headerLength(SECONDS < 0 ? -1 - SECONDS : SECONDS)
+                                    + LATITUDE.length + doubleLength(LOCATION.latitude)
+                                    + LONGITUDE.length + doubleLength(LOCATION.longitude)
+                                    + ALTITUDE.length + doubleLength(LOCATION.altitude)
+                                    + INFO.length + headerLength(INFO_BYTES.length) + INFO_BYTES.length;
+        final byte[] DATA       = new byte[LENGTH];
+        int          pos        = writeHeader(DATA, 0, MAJOR_MAP, 6);
+        pos = writeBytes(DATA, pos, NAME);
+        pos = writeHeader(DATA, pos, MAJOR_TEXT, NAME_BYTES.length);
+        pos = writeBytes(DATA, pos, NAME_BYTES);
+        pos = writeBytes(DATA, pos, TIMESTAMP);
+        pos = SECONDS < 0 ? writeHeader(DATA, pos, MAJOR_NEGATIVE, -1 - SECONDS) : writeHeader(DATA, pos, MAJOR_UNSIGNED, SECONDS);
+        pos = writeBytes(DATA, pos, LATITUDE);
+        pos = writeDouble(DATA, pos, LOCATION.latitude);
+        pos = writeBytes(DATA, pos, LONGITUDE);
+        pos = writeDouble(DATA, pos, LOCATION.longitude);
+        pos = writeBytes(DATA, pos, ALTITUDE);
+        pos = writeDouble(DATA, pos, LOCATION.altitude);
+        pos = writeBytes(DATA, pos, INFO);
+        pos = writeHeader(DATA, pos, MAJOR_TEXT, INFO_BYTES.length);
+        writeBytes(DATA, pos, INFO_BYTES);
+        return DATA;
+    }
+
+    /**
+     * Writes the given locations as one array of unknown length, so the
+     * number of locations doesn't have to be known in advance
+     * @param LOCATIONS
+     * @param OUT should be buffered
+     * @throws IOException
+     */
+    public static void write(final Iterable<Location> LOCATIONS, final OutputStream OUT) throws IOException {
+        OUT.write((MAJOR_ARRAY << 5) | INDEFINITE);
+        for (Location location : LOCATIONS) { OUT.write(encode(location)); }
+        OUT.write(BREAK);
+    }
+
+    /**
+     * @param DATA a cbor encoded map
+     * @return the decoded location
+     * @throws IllegalArgumentException if the data is not a valid cbor map
+     */
+    public static Location decode(final byte[] DATA) {
+        final Reader READER = new Reader(DATA);
+        final int    HEAD   = READER.readUnsignedByte();
+        if (HEAD >>> 5 != MAJOR_MAP) throw new IllegalArgumentException("cbor map expected");
+        final boolean INDEFINITE_MAP = (HEAD & 0x1f) == INDEFINITE;
+        long          entries        = INDEFINITE_MAP ? Long.MAX_VALUE : READER.readArgument(HEAD);
+
+        double  latitude  = 0;
+        double  longitude = 0;
+        double  altitude  = 0;
+        Instant timestamp = null;
+        String  name      = "";
+        String  info      = "";
+        while (entries-- > 0) {
+            if (INDEFINITE_MAP && READER.peek() == BREAK) { READER.pos++; break; }
+            final int KEY_HEAD = READER.readUnsignedByte();
+            if (KEY_HEAD >>> 5 != MAJOR_TEXT || (KEY_HEAD & 0x1f) == INDEFINITE) throw new IllegalArgumentException("cbor text key expected");
+            final int KEY_LENGTH = READER.readLength(KEY_HEAD);
+            final int KEY_START  = READER.pos;
+            READER.skipBytes(KEY_LENGTH);
+            if (matches(DATA, KEY_START - 1, KEY_LENGTH, NAME)) {
+                name = READER.readText();
+            } else if (matches(DATA, KEY_START - 1, KEY_LENGTH, TIMESTAMP)) {
+                timestamp = Instant.ofEpochSecond(READER.readLong());
+            } else if (matches(DATA, KEY_START - 1, KEY_LENGTH, LATITUDE)) {
+                latitude = READER.readDouble();
+            } else if (matches(DATA, KEY_START - 1, KEY_LENGTH, LONGITUDE)) {
+                longitude = READER.readDouble();
+            } else if (matches(DATA, KEY_START - 1, KEY_LENGTH, ALTITUDE)) {
+                altitude = READER.readDouble();
+            } else if (matches(DATA, KEY_START - 1, KEY_LENGTH, INFO)) {
+                info = READER.readText();
+            } else {
+                READER.skipItem(0);
+            }
+        }
+        return new Location(latitude, longitude, altitude, null == timestamp ? Instant.ofEpochSecond(Instant.now().getEpochSecond()) : timestamp, name, info);
+    }
+
+
+    // ******************** Private Methods ***********************************
+    // Keys are shorter than 24 bytes so the header is always one byte
+    private static byte[] key(final String KEY) {
+        final byte[] BYTES = KEY.getBytes(StandardCharsets.UTF_8);
+        final byte[] DATA  = new byte[BYTES.length + 1];
+        DATA[0] = (byte) ((MAJOR_TEXT << 5) | BYTES.length);
+        System.arraycopy(BYTES, 0, DATA, 1, BYTES.length);
+        return DATA;
+    }
+
+    private static boolean matches(final byte[] DATA, final int HEADER_POS, final int LENGTH, final byte[] KEY) {
+        if (LENGTH != KEY.length - 1) return false;
+        for (int i = 1 ; i < KEY.length ; i++) { if (DATA[HEADER_POS + i] != KEY[i]) return false; }
+        return true;
+    }
+
+    private static int headerLength(final long ARGUMENT) {
+        if (ARGUMENT < 24)           return 1;
+        if (ARGUMENT < 0x100)        return 2;
+        if (ARGUMENT < 0x10000)      return 3;
+        if (ARGUMENT < 0x100000000L) return 5;
+        return 9;
+    }
+
+    private static boolean isFloat(final double VALUE) { return Double.isNaN(VALUE) || (double) (float) VALUE == VALUE; }
+
+    private static int doubleLength(final double VALUE) { return isFloat(VALUE) ? 5 : 9; }
+
+    private static int writeHeader(final byte[] DATA, final int POS, final int MAJOR, final long ARGUMENT) {
+        final int TYPE = MAJOR << 5;
+        if (ARGUMENT < 24) {
+            DATA[POS] = (byte) (TYPE | ARGUMENT);
+            return POS + 1;
+        }
+        final int BYTES = headerLength(ARGUMENT) - 1;
+        DATA[POS] = (byte) (TYPE | (BYTES == 1 ? 24 : BYTES == 2 ? 25 : BYTES == 4 ? 26 : 27));
+        return writeBigEndian(DATA, POS + 1, ARGUMENT, BYTES);
+    }
+
+    private static int writeDouble(final byte[] DATA, final int POS, final double VALUE) {
+        if (isFloat(VALUE)) {
+            DATA[POS] = (byte) ((MAJOR_SIMPLE << 5) | 26);
+            return writeBigEndian(DATA, POS + 1, Float.floatToIntBits((float) VALUE) & 0xffffffffL, 4);
+        }
+        DATA[POS] = (byte) ((MAJOR_SIMPLE << 5) | 27);
+        return writeBigEndian(DATA, POS + 1, Double.doubleToLongBits(VALUE), 8);
+    }
+
+    private static int writeBigEndian(final byte[] DATA, final int POS, final long VALUE, final int BYTES) {
+        for (int i = 0 ; i < BYTES ; i++) { DATA[POS + i] = (byte) (VALUE >>> (8 * (BYTES - 1 - i))); }
+        return POS + BYTES;
+    }
+
+    private static int writeBytes(final byte[] DATA, final int POS, final byte[] BYTES) {
+        System.arraycopy(BYTES, 0, DATA, POS, BYTES.length);
+        return POS + BYTES.length;
+    }
+
+
+    // ******************** Inner Classes *************************************
+    private static class Reader {
+        final byte[] data;
+        int          pos;
+
+        Reader(final byte[] DATA) { data = DATA; }
+
+        int peek() {
+            if (pos >= data.length) throw new IllegalArgumentException("cbor data truncated");
+            return data[pos] & 0xff;
+        }
+
+        int readUnsignedByte() {
+            final int VALUE = peek();
+            pos++;
+            return VALUE;
+        }
+
+        void skipBytes(final long LENGTH) {
+            if (LENGTH < 0 || LENGTH > data.length - pos) throw new IllegalArgumentException("cbor data truncated");
+            pos += (int) LENGTH;
+        }
+
+        long readBigEndian(final int BYTES) {
+            if (BYTES > data.length - pos) throw new IllegalArgumentException("cbor data truncated");
+            long value = 0;
+            for (int i = 0 ; i < BYTES ; i++) { value = (value << 8) | (data[pos++] & 0xff); }
+            return value;
+        }
+
+        // Argument of the given header, negative if it doesn't fit in a long
+        long readArgument(final int HEAD) {
+            final int INFO = HEAD & 0x1f;
+            if (INFO < 24) return INFO;
+            switch (INFO) {
+                case 24: return readBigEndian(1);
+                case 25: return readBigEndian(2);
+                case 26: return readBigEndian(4);
+                case 27: return readBigEndian(8);
+                default: throw new IllegalArgumentException("cbor argument " + INFO + " not supported");
+            }
+        }
+
+        int readLength(final int HEAD) {
+            final long LENGTH = readArgument(HEAD);
+            if (LENGTH < 0 || LENGTH > data.length - pos) throw new IllegalArgumentException("cbor data truncated");
+            return (int) LENGTH;
+        }
+
+        String readText() {
+            final int HEAD = readUnsignedByte();
+            if (HEAD >>> 5 != MAJOR_TEXT || (HEAD & 0x1f) == INDEFINITE) throw new IllegalArgumentException("cbor text expected");
+            final int LENGTH = readLength(HEAD);
+            final int START  = pos;
+            pos += LENGTH;
+            return new String(data, START, LENGTH, StandardCharsets.UTF_8);
+        }
+
+        // Integers, floats and numeric text like in the json representation
+        long readLong() {
+            final int HEAD  = peek();
+            final int MAJOR = HEAD >>> 5;
+            if (MAJOR == MAJOR_UNSIGNED || MAJOR == MAJOR_NEGATIVE) {
+                pos++;
+                final long ARGUMENT = readArgument(HEAD);
+                if (ARGUMENT < 0) throw new IllegalArgumentException("cbor integer out of range");
+                return MAJOR == MAJOR_UNSIGNED ? ARGUMENT : -1 - ARGUMENT;
+            }
+            if (MAJOR == MAJOR_TEXT) return Long.parseLong(readText());
+            return (long) readDouble();
+        }
+
+        double readDouble() {
+            final int HEAD  = readUnsignedByte();
+            final int MAJOR = HEAD >>> 5;
+            switch (MAJOR) {
+                case MAJOR_UNSIGNED:
+                case MAJOR_NEGATIVE:
+                    pos--;
+                    return readLong();
+                case MAJOR_TEXT:
+                    pos--;
+                    return Double.parseDouble(readText());
+                case MAJOR_SIMPLE:
+                    switch (HEAD & 0x1f) {
+                        case 25: return halfToDouble((int) readBigEndian(2));
+                        case 26: return Float.intBitsToFloat((int) readBigEndian(4));
+                        case 27: return Double.longBitsToDouble(readBigEndian(8));
+                        default: throw new IllegalArgumentException("cbor number expected");
+                    }
+                default: throw new IllegalArgumentException("cbor number expected");
+            }
+        }
+
+        void skipItem(final int DEPTH) {
+            if (DEPTH > MAX_DEPTH) throw new IllegalArgumentException("cbor nesting too deep");
+            final int HEAD  = readUnsignedByte();
+            final int MAJOR = HEAD >>> 5;
+            if ((HEAD & 0x1f) == INDEFINITE) {
+                if (MAJOR == MAJOR_SIMPLE || MAJOR < 2) throw new IllegalArgumentException("cbor data malformed");
+                while (peek() != BREAK) { skipItem(DEPTH + 1); }
+                pos++;
+                return;
+            }
+            final long ARGUMENT = readArgument(HEAD);
+            switch (MAJOR) {
+                case 2          :
+                case MAJOR_TEXT : skipBytes(ARGUMENT); break;
+                case MAJOR_ARRAY: for (long i = 0 ; i < ARGUMENT ; i++) { skipItem(DEPTH + 1); } break;
+                case MAJOR_MAP  : for (long i = 0 ; i < ARGUMENT * 2 ; i++) { skipItem(DEPTH + 1); } break;
+                case 6          : skipItem(DEPTH + 1); break;
+                default         : break;
+            }
+        }
+
+        static double halfToDouble(final int BITS) {
+            final int    EXPONENT = (BITS >> 10) & 0x1f;
+            final int    MANTISSA = BITS & 0x3ff;
+            final double VALUE;
+            if (EXPONENT == 0) {
+                VALUE = Math.scalb((double) MANTISSA, -24);
+            } else if (EXPONENT != 31) {
+                VALUE = Math.scalb((double) (MANTISSA + 1024), EXPONENT - 25);
+            } else {
+                VALUE = MANTISSA == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+            }
+            return (BITS & 0x8000) == 0 ? VALUE : -VALUE;
+        }
+    }
+}
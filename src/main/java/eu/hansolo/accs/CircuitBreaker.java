@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Opens after the given number of consecutive failures and rejects all
+ * calls until the open duration is over. After that one trial call is let
+ * through (HALF_OPEN), its result closes the breaker again or opens it
+ * for another period.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final    int        failureThreshold;
+    private final    long       openDuration;
+    private          State      state;
+    private          int        failures;
+    private          long       openedAt;
+    private          boolean    trialRunning;
+    private final    AtomicLong rejected;
+    private volatile long       opened;
+
+
+    // ******************** Constructors **************************************
+    /**
+     * @param FAILURE_THRESHOLD consecutive failures that open the breaker
+     * @param OPEN_DURATION milliseconds the breaker stays open
+     */
+    public CircuitBreaker(final int FAILURE_THRESHOLD, final long OPEN_DURATION) {
+        failureThreshold = Math.max(1, FAILURE_THRESHOLD);
+        openDuration     = Math.max(0, OPEN_DURATION);
+        state            = State.CLOSED;
+        rejected         = new AtomicLong(0);
+    }
+
+
+    // ******************** Methods *******************************************
+    /**
+     * @return true if the call may be made, in this case either onSuccess() or onFailure() must be called afterwards
+     */
+    public synchronized boolean allowRequest() {
+        if (State.OPEN == state && System.currentTimeMillis() - openedAt >= openDuration) {
+            state        = State.HALF_OPEN;
+            trialRunning = false;
+        }
+        if (State.CLOSED == state) return true;
+        if (State.HALF_OPEN == state && !trialRunning) {
+            trialRunning = true;
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public synchronized void onSuccess() {
+        failures     = 0;
+        trialRunning = false;
+        state        = State.CLOSED;
+    }
+
+    public synchronized void onFailure() {
+        // Calls that were started before the breaker opened
+        if (State.OPEN == state) return;
+        failures++;
+        trialRunning = false;
+        if (State.HALF_OPEN == state || failures >= failureThreshold) {
+            opened++;
+            state    = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized State getState() { return state; }
+
+    public synchronized boolean isOpen() { return State.OPEN == state && System.currentTimeMillis() - openedAt < openDuration; }
+
+    public JSONObject toJSON() {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("state", getState().name().toLowerCase());
+        jsonObject.put("opened", opened);
+        jsonObject.put("rejected", rejected.get());
+        return jsonObject;
+    }
+}
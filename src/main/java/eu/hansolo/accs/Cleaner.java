@@ -16,67 +16,127 @@
 
 package eu.hansolo.accs;
 
-import javafx.application.Platform;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 
 /**
  * Created by hansolo on 23.06.16.
+ *
+ * Removes locations that have not been updated for LOCATION_TTL seconds
+ * (default 172800 = 2 days). All locations are kept in a set that is
+ * ordered by timestamp and maintained by the location events of the cache,
+ * so a run only looks at the entries that actually expired. Expired
+ * entries will be removed from the cache and deleted from the store with
+ * one range delete. The cleaner runs every CLEANER_INTERVAL seconds
+ * (default 3600) and also drops the history that is older than the
+ * retention of the TrackStore. If a run fails the entries it didn't get
+ * to are kept and the names that couldn't be deleted from the store are
+ * deleted again in the next run.
  */
-public enum Cleaner {
+public enum Cleaner implements LocationEventListener {
     INSTANCE;
 
-    private static final long                     TWO_DAYS = 172800;
+    private static final long                     TTL      = Env.getLong("LOCATION_TTL", 172_800);
+    private static final long                     INTERVAL = Math.max(1, Env.getLong("CLEANER_INTERVAL", 3_600));
     private volatile     ScheduledFuture<?>       cleanerTask;
     private static       ScheduledExecutorService periodicCleanerExecutorService;
     private static       boolean                  started = false;
+    private final        NavigableSet<Expiry>     expiries;
+    private final        Set<String>              undeleted;
+    private volatile     long                     lastRunDuration;
+    private volatile     int                      lastRunEvicted;
 
     Cleaner() {
+        expiries  = new ConcurrentSkipListSet<>(Comparator.comparingLong((Expiry expiry) -> expiry.timestamp).thenComparing(expiry -> expiry.name));
+        undeleted = new HashSet<>();
     }
 
     public void start() {
         if (!started) {
+            for (Location location : LocationCache.INSTANCE.getAll()) { expiries.add(new Expiry(location)); }
             scheduleCleanerTask();
             cleanupLocations();
             started = true;
         }
     }
 
-    private void cleanupLocations() {
-        JSONArray locations = RestClient.INSTANCE.getAllLocations();
-        for (Object obj : locations) {
-            Location location = new Location(((JSONObject) obj));
-            if (location.timestamp.getEpochSecond() < Instant.now().getEpochSecond() - TWO_DAYS) RestClient.INSTANCE.deleteLocation(location);
+    public static long getTtl() { return TTL; }
+
+    public long getLastRunDuration() { return lastRunDuration; }
+
+    public int getLastRunEvicted() { return lastRunEvicted; }
+
+    @Override public void onLocationEvent(final LocationEvent EVENT) {
+        if (null != EVENT.getOldLocation()) { expiries.remove(new Expiry(EVENT.getOldLocation())); }
+        switch(EVENT.getType()) {
+            case ADDED  :
+            case UPDATED: expiries.add(new Expiry(EVENT.getLocation())); break;
+            case REMOVED: expiries.remove(new Expiry(EVENT.getLocation())); break;
+        }
+    }
+
+    // Runs on the executor, an exception would cancel all following runs
+    private synchronized void cleanupLocations() {
+        final long     START   = System.nanoTime();
+        final long     CUTOFF  = Instant.now().getEpochSecond() - TTL;
+        List<Expiry>   polled  = new ArrayList<>();
+        List<Location> expired = new ArrayList<>();
+        try {
+            Expiry expiry;
+            while (null != (expiry = expiries.pollFirst())) {
+                if (expiry.timestamp >= CUTOFF) {
+                    expiries.add(expiry);
+                    break;
+                }
+                polled.add(expiry);
+                // Only evict if the cache still holds the expired version
+                Optional<Location> location = LocationCache.INSTANCE.get(expiry.name);
+                if (location.isPresent() && location.get().timestamp.getEpochSecond() < CUTOFF) { expired.add(location.get()); }
+            }
+            if (!expired.isEmpty()) {
+                LocationCache.INSTANCE.evict(expired);
+                polled.clear();
+                for (Location location : expired) { undeleted.add(location.name); }
+            }
+            if (!undeleted.isEmpty()) {
+                LocationStore.INSTANCE.deleteLocationsOlderThan(CUTOFF, new ArrayList<>(undeleted));
+                undeleted.clear();
+            }
+            TrackStore.INSTANCE.trim(CUTOFF + TTL);
+        } catch (RuntimeException e) {
+            System.out.println("Error: " + e);
+            // Evicted locations are not in the cache anymore, their names stay in undeleted
+            expiries.addAll(polled);
         }
+        final long DURATION = System.nanoTime() - START;
+        lastRunEvicted  = expired.size();
+        lastRunDuration = TimeUnit.NANOSECONDS.toMillis(DURATION);
+        Metrics.INSTANCE.observe("accs_cleaner_run_duration_seconds", "Duration of the cleaner runs", "", DURATION);
     }
 
 
     // ******************** Scheduled task related ****************************
     private synchronized static void enableCleanerExecutorService() {
         if (null == periodicCleanerExecutorService) {
-            periodicCleanerExecutorService = new ScheduledThreadPoolExecutor(1, getThreadFactory("CleanerTask", false));
+            periodicCleanerExecutorService = new ScheduledThreadPoolExecutor(1, Helper.getThreadFactory("CleanerTask", false));
         }
     }
     private synchronized void scheduleCleanerTask() {
         enableCleanerExecutorService();
         stopTask(cleanerTask);
-        cleanerTask = periodicCleanerExecutorService.scheduleAtFixedRate(() -> Platform.runLater(() -> cleanupLocations()), 1, 24, TimeUnit.HOURS);
-    }
-
-    private static ThreadFactory getThreadFactory(final String THREAD_NAME, final boolean IS_DAEMON) {
-        return runnable -> {
-            Thread thread = new Thread(runnable, THREAD_NAME);
-            thread.setDaemon(IS_DAEMON);
-            return thread;
-        };
+        cleanerTask = periodicCleanerExecutorService.scheduleAtFixedRate(() -> cleanupLocations(), INTERVAL, INTERVAL, TimeUnit.SECONDS);
     }
 
     private void stopTask(ScheduledFuture<?> task) {
@@ -85,4 +145,16 @@ public enum Cleaner {
         task.cancel(true);
         task = null;
     }
+
+
+    // ******************** Inner Classes *************************************
+    private static class Expiry {
+        final long   timestamp;
+        final String name;
+
+        Expiry(final Location LOCATION) {
+            timestamp = LOCATION.timestamp.getEpochSecond();
+            name      = LOCATION.name;
+        }
+    }
 }
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Partitions the devices over several instances of the server by
+ * consistent hashing of the name. Every node is placed on a hash ring
+ * CLUSTER_VIRTUAL_NODES times, a device belongs to the node that follows
+ * the hash of its name on the ring. Adding or removing a node only moves
+ * the devices of the ring segments it takes over or gives up.
+ *
+ * The owner of a device handles all of its writes, keeps it in its cache
+ * and expires it. The other nodes forward writes to the owner and answer
+ * reads over all devices by asking all nodes in parallel (scatter gather).
+ * Requests between the nodes carry the NODE_HEADER with the url of the
+ * sending node, they are always answered locally. A request only counts
+ * as a request of a node if it also carries the SECRET_HEADER with the
+ * CLUSTER_SECRET or, if no secret is set, if it comes from the address
+ * of one of the other nodes (which doesn't work behind a proxy, so a
+ * secret should be set there). Listeners of the cache
+ * (geofences, feeds, movement filter) only see the devices of their node.
+ *
+ * Three nodes on localhost, each with its own port and store file:
+ * CLUSTER_NODES=http://localhost:4571,http://localhost:4572,http://localhost:4573
+ * PORT=4571 CLUSTER_SELF=http://localhost:4571 LOCATION_STORE=embedded EMBEDDED_STORE_FILE=/tmp/node1.log java eu.hansolo.accs.Main
+ * and the same with 4572 and 4573. Any node accepts all requests.
+ *
+ * Configuration via environment variables:
+ * CLUSTER_NODES          comma separated base urls of all nodes, empty = single node (default empty)
+ * CLUSTER_SELF           base url of this node, has to be one of CLUSTER_NODES     (default empty)
+ * CLUSTER_VIRTUAL_NODES  points per node on the hash ring                           (default 128)
+ * CLUSTER_TIMEOUT        connect and socket timeout of calls to other nodes in ms   (default 2000)
+ * CLUSTER_THREADS        max number of concurrent calls to other nodes              (default 16)
+ * CLUSTER_SECRET         shared secret that authenticates the nodes, same on all nodes (default empty)
+ */
+public enum Cluster {
+    INSTANCE;
+
+    public  static final String              NODE_HEADER   = "X-Cluster-Node";
+    public  static final String              SECRET_HEADER = "X-Cluster-Secret";
+    private static final CloseableHttpClient HTTP_CLIENT   = ConnectionPool.INSTANCE.getHttpClient();
+
+    private final String                      self;
+    private final List<String>                nodes;
+    private final String                      secret;
+    private final Set<InetAddress>            peerAddresses;
+    private final NavigableMap<Long, String>  ring;
+    private final Map<String, CircuitBreaker> breakers;
+    private final RequestConfig               requestConfig;
+    private final ThreadPoolExecutor          executorService;
+    private final AtomicLong                  forwarded;
+    private final AtomicLong                  gathered;
+    private final AtomicLong                  failures;
+
+
+    // ******************** Constructors **************************************
+    Cluster() {
+        final List<String> NODES = new ArrayList<>();
+        for (String node : Env.getString("CLUSTER_NODES", "").split(",")) {
+            final String NODE = normalize(node);
+            if (!NODE.isEmpty() && !NODES.contains(NODE)) { NODES.add(NODE); }
+        }
+        final String SELF = normalize(Env.getString("CLUSTER_SELF", ""));
+        if (!NODES.isEmpty() && !NODES.contains(SELF)) {
+            System.out.println("Error: CLUSTER_SELF " + SELF + " is not one of CLUSTER_NODES, running as single node");
+            NODES.clear();
+        }
+        self  = SELF;
+        nodes = Collections.unmodifiableList(NODES);
+        ring  = new TreeMap<>();
+        final int VIRTUAL_NODES = Math.max(1, Env.getInt("CLUSTER_VIRTUAL_NODES", 128));
+        for (String node : nodes) {
+            for (int i = 0 ; i < VIRTUAL_NODES ; i++) { ring.put(hash(node + "#" + i), node); }
+        }
+        breakers = new LinkedHashMap<>();
+        for (String node : nodes) { breakers.put(node, new CircuitBreaker(3, 5_000)); }
+        secret        = Env.getString("CLUSTER_SECRET", "");
+        peerAddresses = new HashSet<>();
+        for (String node : nodes) {
+            if (self.equals(node)) continue;
+            try {
+                peerAddresses.addAll(Arrays.asList(InetAddress.getAllByName(URI.create(node).getHost())));
+            } catch (IllegalArgumentException | UnknownHostException e) {
+                System.out.println("Error: " + e);
+            }
+        }
+
+        final int TIMEOUT = Env.getInt("CLUSTER_TIMEOUT", 2_000);
+        requestConfig   = RequestConfig.copy(ConnectionPool.INSTANCE.getDefaultRequestConfig())
+                                       .setConnectTimeout(TIMEOUT)
+                                       .setSocketTimeout(TIMEOUT)
+                                       .setConnectionRequestTimeout(TIMEOUT)
+                                       .build();
+        executorService = new ThreadPoolExecutor(0, Math.max(1, Env.getInt("CLUSTER_THREADS", 16)), 60, TimeUnit.SECONDS,
+                                                 new SynchronousQueue<>(),
+                                                 Helper.getThreadFactory("ClusterGather", true),
+                                                 new ThreadPoolExecutor.CallerRunsPolicy());
+        forwarded       = new AtomicLong(0);
+        gathered        = new AtomicLong(0);
+        failures        = new AtomicLong(0);
+    }
+
+
+    // ******************** Methods *******************************************
+    public boolean isEnabled() { return nodes.size() > 1; }
+
+    public String getSelf() { return self; }
+
+    public List<String> getNodes() { return nodes; }
+
+    /**
+     * @param NAME name of the device
+     * @return the base url of the node that owns the device, the own url if the cluster is disabled
+     */
+    public String getOwner(final String NAME) {
+        if (!isEnabled()) return self;
+        final Map.Entry<Long, String> ENTRY = ring.ceilingEntry(hash(NAME));
+        return null == ENTRY ? ring.firstEntry().getValue() : ENTRY.getValue();
+    }
+
+    public boolean isLocal(final String NAME) { return !isEnabled() || self.equals(getOwner(NAME)); }
+
+    /**
+     * @param NODE value of the NODE_HEADER of a request
+     * @param SECRET value of the SECRET_HEADER of a request
+     * @param REMOTE_ADDRESS ip address the request came from
+     * @return true if the request has been sent by another node of the cluster
+     */
+    public boolean isPeer(final String NODE, final String SECRET, final String REMOTE_ADDRESS) {
+        if (!isEnabled() || null == NODE || self.equals(NODE) || !nodes.contains(NODE)) return false;
+        if (!secret.isEmpty()) return null != SECRET && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), SECRET.getBytes(StandardCharsets.UTF_8));
+        if (null == REMOTE_ADDRESS) return false;
+        try {
+            // The remote address is an ip address, no lookup needed
+            return peerAddresses.contains(InetAddress.getByName(REMOTE_ADDRESS));
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends the request to the given node
+     * @param NODE base url of the node
+     * @param METHOD http method
+     * @param PATH path incl. the query string
+     * @param CONTENT_TYPE content type of the body, may be null
+     * @param ACCEPT accept header, may be null
+     * @param BODY may be null
+     * @return the answer of the node, empty if the node is not available
+     */
+    public Optional<Reply> forward(final String NODE, final String METHOD, final String PATH, final String CONTENT_TYPE, final String ACCEPT, final byte[] BODY) {
+        forwarded.incrementAndGet();
+        final HttpEntityEnclosingRequestBase REQUEST = new HttpEntityEnclosingRequestBase() {
+            @Override public String getMethod() { return METHOD; }
+        };
+        REQUEST.setURI(URI.create(NODE + PATH));
+        if (null != CONTENT_TYPE) { REQUEST.setHeader("Content-Type", CONTENT_TYPE); }
+        if (null != ACCEPT)       { REQUEST.setHeader("Accept", ACCEPT); }
+        if (null != BODY)         { REQUEST.setEntity(new ByteArrayEntity(BODY)); }
+        return execute(NODE, REQUEST);
+    }
+
+    // Same as forward() but on the thread pool of the cluster
+    public CompletableFuture<Optional<Reply>> forwardAsync(final String NODE, final String METHOD, final String PATH, final String CONTENT_TYPE, final String ACCEPT, final byte[] BODY) {
+        return CompletableFuture.supplyAsync(() -> forward(NODE, METHOD, PATH, CONTENT_TYPE, ACCEPT, BODY), executorService);
+    }
+
+    /**
+     * Sends the GET to all other nodes in parallel
+     * @param PATH path incl. the query string
+     * @return the json array of every other node, empty for nodes that are not available
+     */
+    public List<Optional<JSONArray>> gather(final String PATH) {
+        final List<CompletableFuture<Optional<JSONArray>>> FUTURES = new ArrayList<>(nodes.size());
+        for (String node : nodes) {
+            if (self.equals(node)) continue;
+            FUTURES.add(CompletableFuture.supplyAsync(() -> forward(node, "GET", PATH, null, "application/json", null).flatMap(Cluster::toJSONArray), executorService));
+        }
+        final List<Optional<JSONArray>> RESULTS = new ArrayList<>(FUTURES.size());
+        for (CompletableFuture<Optional<JSONArray>> future : FUTURES) { RESULTS.add(future.join()); }
+        gathered.incrementAndGet();
+        return RESULTS;
+    }
+
+    public JSONObject getStats() {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("enabled", isEnabled());
+        jsonObject.put("self", self);
+        jsonObject.put("forwarded", forwarded.get());
+        jsonObject.put("gathered", gathered.get());
+        jsonObject.put("failures", failures.get());
+        JSONArray nodesArray = new JSONArray();
+        for (String node : nodes) {
+            JSONObject nodeObject = breakers.get(node).toJSON();
+            nodeObject.put("url", node);
+            nodeObject.put("share", getShare(node));
+            nodesArray.add(nodeObject);
+        }
+        jsonObject.put("nodes", nodesArray);
+        return jsonObject;
+    }
+
+    public void stop() { executorService.shutdownNow(); }
+
+
+    // ******************** Private Methods ***********************************
+    private Optional<Reply> execute(final String NODE, final HttpRequestBase REQUEST) {
+        final CircuitBreaker BREAKER = breakers.get(NODE);
+        if (null == BREAKER || !BREAKER.allowRequest()) {
+            failures.incrementAndGet();
+            return Optional.empty();
+        }
+        REQUEST.setConfig(requestConfig);
+        REQUEST.setHeader(NODE_HEADER, self);
+        if (!secret.isEmpty()) { REQUEST.setHeader(SECRET_HEADER, secret); }
+        try (CloseableHttpResponse response = HTTP_CLIENT.execute(REQUEST)) {
+            // The node answered, an error status (e.g. 503 if its store is not available) is passed on to the caller
+            final int STATUS = response.getStatusLine().getStatusCode();
+            BREAKER.onSuccess();
+            final HttpEntity ENTITY       = response.getEntity();
+            final Header     CONTENT_TYPE = null == ENTITY ? null : ENTITY.getContentType();
+            final Header     RETRY_AFTER  = response.getFirstHeader("Retry-After");
+            final Header     NEXT_AFTER   = response.getFirstHeader("X-Next-After");
+            return Optional.of(new Reply(STATUS,
+                                         null == CONTENT_TYPE ? null : CONTENT_TYPE.getValue(),
+                                         null == RETRY_AFTER ? null : RETRY_AFTER.getValue(),
+                                         null == NEXT_AFTER ? null : NEXT_AFTER.getValue(),
+                                         null == ENTITY ? new byte[0] : EntityUtils.toByteArray(ENTITY)));
+        } catch (IOException e) {
+            BREAKER.onFailure();
+            failures.incrementAndGet();
+            System.out.println("Error: " + e);
+            return Optional.empty();
+        }
+    }
+
+    // Fraction of the hash ring that belongs to the given node
+    private double getShare(final String NODE) {
+        double share    = 0;
+        long   previous = ring.lastKey();
+        for (Map.Entry<Long, String> entry : ring.entrySet()) {
+            // Unsigned distance handles the wrap around at the start of the ring
+            if (NODE.equals(entry.getValue())) { share += (double) ((entry.getKey() - previous) >>> 1) / Long.MAX_VALUE; }
+            previous = entry.getKey();
+        }
+        return 1 == ring.size() ? 1 : share;
+    }
+
+    private static Optional<JSONArray> toJSONArray(final Reply REPLY) {
+        if (200 != REPLY.status) return Optional.empty();
+        final Object OBJ = JSONValue.parse(new String(REPLY.body, StandardCharsets.UTF_8));
+        return OBJ instanceof JSONArray ? Optional.of((JSONArray) OBJ) : Optional.empty();
+    }
+
+    private static String normalize(final String NODE) {
+        final String TRIMMED = NODE.trim();
+        return TRIMMED.endsWith("/") ? TRIMMED.substring(0, TRIMMED.length() - 1) : TRIMMED;
+    }
+
+    // FNV-1a with the finalizer of murmur3, the same on every node. String.hashCode() spreads the virtual nodes too little.
+    static long hash(final String KEY) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : KEY.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe1a85ec3L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+
+    // ******************** Inner Classes *************************************
+    public static class Reply {
+        public final int    status;
+        public final String contentType;
+        public final String retryAfter;
+        public final String nextAfter;
+        public final byte[] body;
+
+        Reply(final int STATUS, final String CONTENT_TYPE, final String RETRY_AFTER, final String NEXT_AFTER, final byte[] BODY) {
+            status      = STATUS;
+            contentType = CONTENT_TYPE;
+            retryAfter  = RETRY_AFTER;
+            nextAfter   = NEXT_AFTER;
+            body        = BODY;
+        }
+    }
+}
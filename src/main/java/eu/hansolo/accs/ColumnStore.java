@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Keeps the columns of all cached locations and publishes them as an
+ * immutable LocationSnapshot. Every change only updates the slot of the
+ * location (removed locations are replaced by the last one), so a write
+ * costs O(1). A new snapshot is only created when it is requested after a
+ * change, which copies the columns with System.arraycopy(). Readers never
+ * block: while one reader creates the new snapshot the others get the
+ * previous one.
+ */
+public enum ColumnStore implements LocationEventListener {
+    INSTANCE;
+
+    private final    Map<String, Integer> slotOfName;
+    private final    AtomicBoolean        publishing;
+    private          Location[]           locations;
+    private          double[]             latitudes;
+    private          double[]             longitudes;
+    private          double[]             altitudes;
+    private          long[]               timestamps;
+    private          double[]             cosLatitudes;
+    private          double[]             mercators;
+    private          int                  size;
+    private volatile long                 version;
+    private volatile LocationSnapshot     snapshot;
+
+
+    // ******************** Constructors **************************************
+    ColumnStore() {
+        slotOfName   = new HashMap<>(1024);
+        publishing   = new AtomicBoolean(false);
+        snapshot     = LocationSnapshot.EMPTY;
+        locations    = new Location[0];
+        latitudes    = new double[0];
+        longitudes   = new double[0];
+        altitudes    = new double[0];
+        timestamps   = new long[0];
+        cosLatitudes = new double[0];
+        mercators    = new double[0];
+        resize(1024);
+    }
+
+
+    // ******************** Methods *******************************************
+    @Override public void onLocationEvent(final LocationEvent EVENT) {
+        switch(EVENT.getType()) {
+            case ADDED  :
+            case UPDATED: update(EVENT.getLocation()); break;
+            case REMOVED: remove(EVENT.getLocation()); break;
+        }
+    }
+
+    public synchronized void update(final Location LOCATION) {
+        Integer slot = slotOfName.get(LOCATION.name);
+        if (null == slot) {
+            if (size == locations.length) { resize(size * 2); }
+            slot = size++;
+            slotOfName.put(LOCATION.name, slot);
+        }
+        set(slot, LOCATION);
+        version++;
+    }
+
+    public synchronized void remove(final Location LOCATION) {
+        final Integer SLOT = slotOfName.remove(LOCATION.name);
+        if (null == SLOT) return;
+        final int LAST = --size;
+        if (SLOT != LAST) {
+            set(SLOT, locations[LAST]);
+            slotOfName.put(locations[LAST].name, SLOT);
+        }
+        locations[LAST] = null;
+        version++;
+    }
+
+    /**
+     * @return a snapshot that contains all changes up to the call, or the
+     * previous snapshot if another thread is creating the new one right now
+     */
+    public LocationSnapshot getSnapshot() {
+        final LocationSnapshot CURRENT = snapshot;
+        if (CURRENT.getVersion() == version || !publishing.compareAndSet(false, true)) return CURRENT;
+        try {
+            final LocationSnapshot NEXT;
+            synchronized (this) {
+                NEXT = new LocationSnapshot(version, size, Arrays.copyOf(locations, size), Arrays.copyOf(latitudes, size), Arrays.copyOf(longitudes, size),
+                                            Arrays.copyOf(altitudes, size), Arrays.copyOf(timestamps, size), Arrays.copyOf(cosLatitudes, size), Arrays.copyOf(mercators, size));
+            }
+            snapshot = NEXT;
+            return NEXT;
+        } finally {
+            publishing.set(false);
+        }
+    }
+
+
+    // ******************** Private Methods ***********************************
+    private void set(final int SLOT, final Location LOCATION) {
+        locations[SLOT]    = LOCATION;
+        latitudes[SLOT]    = LOCATION.latitude;
+        longitudes[SLOT]   = LOCATION.longitude;
+        altitudes[SLOT]    = LOCATION.altitude;
+        timestamps[SLOT]   = LOCATION.timestamp.getEpochSecond();
+        cosLatitudes[SLOT] = Math.cos(Math.toRadians(LOCATION.latitude));
+        mercators[SLOT]    = LocationSnapshot.mercator(LOCATION.latitude);
+    }
+
+    private void resize(final int CAPACITY) {
+        locations    = Arrays.copyOf(locations, CAPACITY);
+        latitudes    = Arrays.copyOf(latitudes, CAPACITY);
+        longitudes   = Arrays.copyOf(longitudes, CAPACITY);
+        altitudes    = Arrays.copyOf(altitudes, CAPACITY);
+        timestamps   = Arrays.copyOf(timestamps, CAPACITY);
+        cosLatitudes = Arrays.copyOf(cosLatitudes, CAPACITY);
+        mercators    = Arrays.copyOf(mercators, CAPACITY);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Holds the one long-lived http client that is shared by all outbound calls.
+ * Connections are pooled and kept alive so that consecutive requests to the
+ * same host reuse the TCP/TLS connection instead of doing a new handshake.
+ *
+ * Configuration via environment variables:
+ * HTTP_MAX_TOTAL        max number of connections in the pool            (default 64)
+ * HTTP_MAX_PER_ROUTE    max number of connections per host               (default 32)
+ * HTTP_CONNECT_TIMEOUT  timeout to establish a connection in ms          (default 5000)
+ * HTTP_SOCKET_TIMEOUT   max inactivity between two data packets in ms    (default 10000)
+ * HTTP_REQUEST_TIMEOUT  max time to wait for a connection from the pool  (default 5000)
+ * HTTP_KEEP_ALIVE       keep alive in ms if the server doesn't send one  (default 30000)
+ * HTTP_IDLE_TIMEOUT     idle connections will be evicted after ms        (default 60000)
+ */
+public enum ConnectionPool {
+    INSTANCE;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final RequestConfig                      requestConfig;
+    private final CloseableHttpClient                httpClient;
+
+
+    // ******************** Constructors **************************************
+    ConnectionPool() {
+        final int  MAX_TOTAL       = Env.getInt("HTTP_MAX_TOTAL", 64);
+        final int  MAX_PER_ROUTE   = Env.getInt("HTTP_MAX_PER_ROUTE", 32);
+        final int  CONNECT_TIMEOUT = Env.getInt("HTTP_CONNECT_TIMEOUT", 5_000);
+        final int  SOCKET_TIMEOUT  = Env.getInt("HTTP_SOCKET_TIMEOUT", 10_000);
+        final int  REQUEST_TIMEOUT = Env.getInt("HTTP_REQUEST_TIMEOUT", 5_000);
+        final long KEEP_ALIVE      = Env.getLong("HTTP_KEEP_ALIVE", 30_000);
+        final long IDLE_TIMEOUT    = Env.getLong("HTTP_IDLE_TIMEOUT", 60_000);
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(MAX_TOTAL);
+        connectionManager.setDefaultMaxPerRoute(MAX_PER_ROUTE);
+        connectionManager.setValidateAfterInactivity(2_000);
+
+        requestConfig = RequestConfig.custom()
+                                     .setConnectTimeout(CONNECT_TIMEOUT)
+                                     .setSocketTimeout(SOCKET_TIMEOUT)
+                                     .setConnectionRequestTimeout(REQUEST_TIMEOUT)
+                                     .build();
+
+        // Retries are done per dependency by the RestClient
+
+        httpClient = HttpClientBuilder.create()
+                                      .setConnectionManager(connectionManager)
+                                      .setDefaultRequestConfig(requestConfig)
+                                      .setKeepAliveStrategy(getKeepAliveStrategy(KEEP_ALIVE))
+                                      .evictExpiredConnections()
+                                      .evictIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS)
+                                      .disableAutomaticRetries()
+                                      .build();
+    }
+
+
+    // ******************** Methods *******************************************
+    public CloseableHttpClient getHttpClient() { return httpClient; }
+
+    public RequestConfig getDefaultRequestConfig() { return requestConfig; }
+
+    public PoolStats getTotalStats() { return connectionManager.getTotalStats(); }
+
+    public JSONObject getStats() {
+        JSONObject stats  = toJSON(connectionManager.getTotalStats());
+        JSONArray  routes = new JSONArray();
+        for (HttpRoute route : connectionManager.getRoutes()) {
+            JSONObject routeStats = toJSON(connectionManager.getStats(route));
+            routeStats.put("route", route.getTargetHost().toURI());
+            routes.add(routeStats);
+        }
+        stats.put("routes", routes);
+        return stats;
+    }
+
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            System.out.println("Error: " + e);
+        }
+    }
+
+    private JSONObject toJSON(final PoolStats STATS) {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("leased", STATS.getLeased());
+        jsonObject.put("available", STATS.getAvailable());
+        jsonObject.put("pending", STATS.getPending());
+        jsonObject.put("max", STATS.getMax());
+        return jsonObject;
+    }
+
+    private static ConnectionKeepAliveStrategy getKeepAliveStrategy(final long DEFAULT_KEEP_ALIVE) {
+        return (response, context) -> {
+            // Honor the keep-alive timeout of the server if it sends one
+            HeaderElementIterator iterator = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (iterator.hasNext()) {
+                HeaderElement element = iterator.nextElement();
+                if (null != element.getValue() && element.getName().equalsIgnoreCase("timeout")) {
+                    try {
+                        return Long.parseLong(element.getValue()) * 1000;
+                    } catch (NumberFormatException ignore) { }
+                }
+            }
+            return DEFAULT_KEEP_ALIVE;
+        };
+    }
+}
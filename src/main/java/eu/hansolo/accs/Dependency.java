@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.apache.http.client.config.RequestConfig;
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * The external services that are called by the RestClient. Each of them
+ * has its own timeouts, retries, circuit breaker and bulkhead (max number
+ * of concurrent calls) so that a slow or dead geocoder can't use up the
+ * threads and connections that are needed for the store and vice versa.
+ *
+ * Configuration via environment variables, [PREFIX] is STORE or GEOCODER:
+ * [PREFIX]_CONNECT_TIMEOUT   timeout to establish a connection in ms         (default HTTP_CONNECT_TIMEOUT)
+ * [PREFIX]_SOCKET_TIMEOUT    max inactivity between two data packets in ms   (default 5000 / 3000)
+ * [PREFIX]_MAX_CONCURRENT    max number of concurrent calls                  (default 16 / 4)
+ * [PREFIX]_BULKHEAD_WAIT     max ms to wait for a free slot                  (default 1000 / 0)
+ * [PREFIX]_RETRIES           retries of idempotent calls                     (default 2 / 1)
+ * [PREFIX]_RETRY_DELAY       base delay in ms, doubled per retry, jittered   (default 100 / 200)
+ * [PREFIX]_BREAKER_FAILURES  consecutive failures that open the breaker      (default 5)
+ * [PREFIX]_BREAKER_OPEN      ms the breaker stays open before the next trial (default 10000 / 30000)
+ */
+public enum Dependency {
+    STORE("STORE", 5_000, 16, 1_000, 2, 100, 10_000),
+    GEOCODER("GEOCODER", 3_000, 4, 0, 1, 200, 30_000);
+
+    private static final double LATENCY_WEIGHT = 0.2; // of the latest call in the moving average
+
+    private final    RequestConfig  requestConfig;
+    private final    CircuitBreaker circuitBreaker;
+    private final    Semaphore      bulkhead;
+    private final    int            maxConcurrent;
+    private final    long           bulkheadWait;
+    private final    int            retries;
+    private final    long           retryDelay;
+    private          double         latency;
+    private volatile long           lastCall;
+
+
+    // ******************** Constructors **************************************
+    Dependency(final String PREFIX, final int SOCKET_TIMEOUT, final int MAX_CONCURRENT, final long BULKHEAD_WAIT, final int RETRIES, final long RETRY_DELAY, final long BREAKER_OPEN) {
+        final RequestConfig DEFAULT_CONFIG = ConnectionPool.INSTANCE.getDefaultRequestConfig();
+        final int           CONNECT        = Env.getInt(PREFIX + "_CONNECT_TIMEOUT", DEFAULT_CONFIG.getConnectTimeout());
+        final int           SOCKET         = Env.getInt(PREFIX + "_SOCKET_TIMEOUT", SOCKET_TIMEOUT);
+
+        // Waiting for a pooled connection must not take longer than connecting
+        requestConfig  = RequestConfig.copy(DEFAULT_CONFIG)
+                                      .setConnectTimeout(CONNECT)
+                                      .setSocketTimeout(SOCKET)
+                                      .setConnectionRequestTimeout(Math.min(CONNECT, DEFAULT_CONFIG.getConnectionRequestTimeout()))
+                                      .build();
+        circuitBreaker = new CircuitBreaker(Env.getInt(PREFIX + "_BREAKER_FAILURES", 5), Env.getLong(PREFIX + "_BREAKER_OPEN", BREAKER_OPEN));
+        maxConcurrent  = Math.max(1, Env.getInt(PREFIX + "_MAX_CONCURRENT", MAX_CONCURRENT));
+        bulkhead       = new Semaphore(maxConcurrent);
+        bulkheadWait   = Math.max(0, Env.getLong(PREFIX + "_BULKHEAD_WAIT", BULKHEAD_WAIT));
+        retries        = Math.max(0, Env.getInt(PREFIX + "_RETRIES", RETRIES));
+        retryDelay     = Math.max(1, Env.getLong(PREFIX + "_RETRY_DELAY", RETRY_DELAY));
+    }
+
+
+    // ******************** Methods *******************************************
+    public RequestConfig getRequestConfig() { return requestConfig; }
+
+    public CircuitBreaker getCircuitBreaker() { return circuitBreaker; }
+
+    public int getRetries() { return retries; }
+
+    /**
+     * @return true if the dependency can be called right now, false if the breaker is open
+     */
+    public boolean isAvailable() { return !circuitBreaker.isOpen(); }
+
+    /**
+     * Waits up to [PREFIX]_BULKHEAD_WAIT ms for a free slot, a successful
+     * call must be followed by release()
+     * @return false if all slots are in use
+     */
+    public boolean acquire() {
+        try {
+            return bulkhead.tryAcquire(bulkheadWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public void release() { bulkhead.release(); }
+
+    public int getInFlight() { return maxConcurrent - bulkhead.availablePermits(); }
+
+    /**
+     * @return estimated number of calls that wait for a free slot
+     */
+    public int getWaiting() { return bulkhead.getQueueLength(); }
+
+    /**
+     * Adds the duration of a call to the moving average of the latency
+     * @param NANOS
+     */
+    public synchronized void recordLatency(final long NANOS) {
+        latency  = 0 == lastCall ? NANOS : latency + LATENCY_WEIGHT * (NANOS - latency);
+        lastCall = System.currentTimeMillis();
+    }
+
+    /**
+     * @return exponential moving average of the call durations in ms
+     */
+    public synchronized double getLatency() { return latency / 1e6; }
+
+    /**
+     * @return epoch milliseconds of the last recorded call, 0 if there was none
+     */
+    public long getLastCall() { return lastCall; }
+
+    /**
+     * Full jitter: random delay between 0 and RETRY_DELAY * 2^RETRY
+     * @param RETRY number of the retry starting at 0
+     * @return delay in milliseconds
+     */
+    public long getRetryDelay(final int RETRY) { return ThreadLocalRandom.current().nextLong(retryDelay << Math.min(RETRY, 10)); }
+
+    public JSONObject getStats() {
+        JSONObject jsonObject = circuitBreaker.toJSON();
+        jsonObject.put("inFlight", getInFlight());
+        jsonObject.put("maxConcurrent", maxConcurrent);
+        jsonObject.put("connectTimeout", requestConfig.getConnectTimeout());
+        jsonObject.put("socketTimeout", requestConfig.getSocketTimeout());
+        jsonObject.put("retries", retries);
+        jsonObject.put("waiting", getWaiting());
+        jsonObject.put("latency", getLatency());
+        return jsonObject;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * LocationStore that keeps all locations in memory and persists every
+ * change to an append only log in a memory mapped file. On startup the
+ * log will be replayed, a torn record at the end (e.g. after a crash) ends
+ * the replay. Once the log contains more outdated than current records it
+ * will be compacted by writing the current locations to a new log that
+ * replaces the old one.
+ *
+ * Record: [int length][int crc32][byte operation][operation data]
+ *
+ * Configuration via environment variables:
+ * EMBEDDED_STORE_FILE              path of the log                                  (default locations.log)
+ * EMBEDDED_STORE_SIZE              initial size of the mapped file in MB            (default 64)
+ * EMBEDDED_STORE_SYNC              force every write to disk                        (default false)
+ * EMBEDDED_STORE_COMPACT_INTERVAL  seconds between compaction checks and disk syncs (default 300)
+ */
+public enum EmbeddedStore implements LocationStore {
+    INSTANCE;
+
+    private static final int  HEADER_SIZE  = 8;
+    private static final byte UPSERT       = 1;
+    private static final byte DELETE       = 2;
+    private static final byte DELETE_OLDER = 3;
+
+    private final Map<String, Location>    locations;
+    private final Path                     file;
+    private final long                     initialSize;
+    private final boolean                  sync;
+    private final CRC32                    crc;
+    private       FileChannel              channel;
+    private       MappedByteBuffer         buffer;
+    private       long                     noOfRecords;
+    private       long                     compactions;
+    private       boolean                  closed;
+    private       ScheduledExecutorService compactExecutorService;
+    private       ScheduledFuture<?>       compactTask;
+
+
+    // ******************** Constructors **************************************
+    EmbeddedStore() {
+        final long INTERVAL = Math.max(1, Env.getLong("EMBEDDED_STORE_COMPACT_INTERVAL", 300));
+
+        locations   = new ConcurrentHashMap<>(1024);
+        file        = Paths.get(Env.getString("EMBEDDED_STORE_FILE", "locations.log")).toAbsolutePath();
+        initialSize = Math.max(1, Env.getLong("EMBEDDED_STORE_SIZE", 64)) * 1024 * 1024;
+        sync        = Env.getBoolean("EMBEDDED_STORE_SYNC", false);
+        crc         = new CRC32();
+        try {
+            if (null != file.getParent()) { Files.createDirectories(file.getParent()); }
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer  = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(initialSize, channel.size()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error opening " + file, e);
+        }
+        replay();
+
+        compactExecutorService = new ScheduledThreadPoolExecutor(1, Helper.getThreadFactory("EmbeddedStoreCompaction", true));
+        compactTask            = compactExecutorService.scheduleWithFixedDelay(() -> maintain(), INTERVAL, INTERVAL, TimeUnit.SECONDS);
+    }
+
+
+    // ******************** Methods *******************************************
+    @Override public JSONArray getAllLocations() {
+        JSONArray jsonArray = new JSONArray();
+        for (Location location : locations.values()) { jsonArray.add(location.toJSON()); }
+        return jsonArray;
+    }
+
+    @Override public JSONObject getLocation(final String NAME) {
+        final Location LOCATION = null == NAME ? null : locations.get(NAME);
+        return null == LOCATION ? new JSONObject() : LOCATION.toJSON();
+    }
+
+    @Override public void postLocation(final Location LOCATION) { putLocation(LOCATION); }
+
+    // Writes that overtook each other on the way from the cache must not replace a newer location
+    @Override public synchronized void putLocation(final Location LOCATION) {
+        if (closed) return;
+        final Location STORED = locations.get(LOCATION.name);
+        if (null != STORED && STORED.timestamp.isAfter(LOCATION.timestamp)) return;
+        append(encodeUpsert(LOCATION));
+        locations.put(LOCATION.name, LOCATION);
+    }
+
+    @Override public synchronized void putLocations(final Collection<Location> LOCATIONS) {
+        for (Location location : LOCATIONS) { putLocation(location); }
+    }
+
+    @Override public synchronized void deleteLocation(final Location LOCATION) {
+        deleteLocation(LOCATION.name);
+    }
+
+    @Override public synchronized void deleteLocations(final Collection<String> NAMES) {
+        for (String name : NAMES) { deleteLocation(name); }
+    }
+
+    @Override public synchronized void deleteLocationsOlderThan(final long CUTOFF, final Collection<String> NAMES) {
+        if (closed) return;
+        append(ByteBuffer.allocate(9).put(DELETE_OLDER).putLong(CUTOFF));
+        locations.values().removeIf(location -> location.timestamp.getEpochSecond() < CUTOFF);
+    }
+
+    public int size() { return locations.size(); }
+
+    public synchronized long getNoOfRecords() { return noOfRecords; }
+
+    public synchronized long getCompactions() { return compactions; }
+
+    /**
+     * Rewrites the log so that it only contains the current locations
+     */
+    public synchronized void compact() {
+        if (closed) return;
+        final List<ByteBuffer> RECORDS = new ArrayList<>(locations.size());
+        long                   size    = 0;
+        for (Location location : locations.values()) {
+            ByteBuffer record = encodeUpsert(location);
+            RECORDS.add(record);
+            size += HEADER_SIZE + record.position();
+        }
+        final Path TMP = file.resolveSibling(file.getFileName() + ".compact");
+        try {
+            Files.deleteIfExists(TMP);
+            FileChannel      newChannel = FileChannel.open(TMP, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer newBuffer  = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(initialSize, size * 2));
+            for (ByteBuffer record : RECORDS) { write(newBuffer, record); }
+            newBuffer.force();
+            Files.move(TMP, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            channel     = newChannel;
+            buffer      = newBuffer;
+            noOfRecords = RECORDS.size();
+            compactions++;
+        } catch (IOException e) {
+            System.out.println("Error: " + e);
+        }
+    }
+
+    @Override public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        compactTask.cancel(false);
+        compactExecutorService.shutdown();
+        try {
+            buffer.force();
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error: " + e);
+        }
+    }
+
+
+    // ******************** Private Methods ***********************************
+    private void deleteLocation(final String NAME) {
+        if (closed || !locations.containsKey(NAME)) return;
+        final byte[] NAME_BYTES = NAME.getBytes(StandardCharsets.UTF_8);
+        append(ByteBuffer.allocate(5 + NAME_BYTES.length).put(DELETE).putInt(NAME_BYTES.length).put(NAME_BYTES));
+        locations.remove(NAME);
+    }
+
+    private synchronized void maintain() {
+        if (closed) return;
+        // Compact if more than half of the records are outdated
+        if (noOfRecords - locations.size() > locations.size()) {
+            compact();
+        } else if (!sync) {
+            buffer.force();
+        }
+    }
+
+    private void append(final ByteBuffer RECORD) {
+        final int SIZE = HEADER_SIZE + RECORD.position();
+        if (buffer.remaining() < SIZE) {
+            compact();
+            if (buffer.remaining() < SIZE) { grow(SIZE); }
+        }
+        write(buffer, RECORD);
+        noOfRecords++;
+        if (sync) { buffer.force(); }
+    }
+
+    private void write(final MappedByteBuffer BUFFER, final ByteBuffer RECORD) {
+        final int LENGTH = RECORD.position();
+        crc.reset();
+        crc.update(RECORD.array(), 0, LENGTH);
+        BUFFER.putInt(LENGTH).putInt((int) crc.getValue()).put(RECORD.array(), 0, LENGTH);
+    }
+
+    private void grow(final int MIN_FREE) {
+        final int  POSITION = buffer.position();
+        final long SIZE     = Math.max((long) buffer.capacity() * 2, (long) POSITION + MIN_FREE);
+        if (SIZE > Integer.MAX_VALUE) { throw new IllegalStateException("Embedded store is full"); }
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            buffer.position(POSITION);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error growing " + file, e);
+        }
+    }
+
+    private void replay() {
+        final int LIMIT    = buffer.capacity();
+        int       position = 0;
+        while (position + HEADER_SIZE <= LIMIT) {
+            final int LENGTH = buffer.getInt(position);
+            if (LENGTH <= 0 || LENGTH > LIMIT - position - HEADER_SIZE) break;
+            final int    CHECKSUM = buffer.getInt(position + 4);
+            final byte[] PAYLOAD  = new byte[LENGTH];
+            buffer.position(position + HEADER_SIZE);
+            buffer.get(PAYLOAD);
+            crc.reset();
+            crc.update(PAYLOAD, 0, LENGTH);
+            if ((int) crc.getValue() != CHECKSUM) break;
+            apply(ByteBuffer.wrap(PAYLOAD));
+            position += HEADER_SIZE + LENGTH;
+            noOfRecords++;
+        }
+        buffer.position(position);
+    }
+
+    private void apply(final ByteBuffer PAYLOAD) {
+        switch(PAYLOAD.get()) {
+            case UPSERT:
+                final long   TIMESTAMP = PAYLOAD.getLong();
+                final double LATITUDE  = PAYLOAD.getDouble();
+                final double LONGITUDE = PAYLOAD.getDouble();
+                final double ALTITUDE  = PAYLOAD.getDouble();
+                final String NAME      = readString(PAYLOAD);
+                final String INFO      = readString(PAYLOAD);
+                locations.put(NAME, new Location(LATITUDE, LONGITUDE, ALTITUDE, Instant.ofEpochSecond(TIMESTAMP), NAME, INFO));
+                break;
+            case DELETE:
+                locations.remove(readString(PAYLOAD));
+                break;
+            case DELETE_OLDER:
+                final long CUTOFF = PAYLOAD.getLong();
+                locations.values().removeIf(location -> location.timestamp.getEpochSecond() < CUTOFF);
+                break;
+        }
+    }
+
+    private static ByteBuffer encodeUpsert(final Location LOCATION) {
+        final byte[] NAME = LOCATION.name.getBytes(StandardCharsets.UTF_8);
+        final byte[] INFO = (null == LOCATION.info ? "" : LOCATION.info).getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + 8 + 3 * 8 + 4 + NAME.length + 4 + INFO.length)
+                         .put(UPSERT)
+                         .putLong(LOCATION.timestamp.getEpochSecond())
+                         .putDouble(LOCATION.latitude)
+                         .putDouble(LOCATION.longitude)
+                         .putDouble(LOCATION.altitude)
+                         .putInt(NAME.length).put(NAME)
+                         .putInt(INFO.length).put(INFO);
+    }
+
+    private static String readString(final ByteBuffer BUFFER) {
+        final byte[] BYTES = new byte[BUFFER.getInt()];
+        BUFFER.get(BYTES);
+        return new String(BYTES, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import java.util.Optional;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Reads configuration values from environment variables and falls back
+ * to the given default if the variable is not set or cannot be parsed.
+ */
+public class Env {
+
+    // ******************** Methods *******************************************
+    public static String getString(final String NAME, final String DEFAULT) {
+        return get(NAME).orElse(DEFAULT);
+    }
+
+    public static int getInt(final String NAME, final int DEFAULT) {
+        try {
+            return get(NAME).map(Integer::parseInt).orElse(DEFAULT);
+        } catch (NumberFormatException e) {
+            return DEFAULT;
+        }
+    }
+
+    public static long getLong(final String NAME, final long DEFAULT) {
+        try {
+            return get(NAME).map(Long::parseLong).orElse(DEFAULT);
+        } catch (NumberFormatException e) {
+            return DEFAULT;
+        }
+    }
+
+    public static double getDouble(final String NAME, final double DEFAULT) {
+        try {
+            return get(NAME).map(Double::parseDouble).orElse(DEFAULT);
+        } catch (NumberFormatException e) {
+            return DEFAULT;
+        }
+    }
+
+    public static boolean getBoolean(final String NAME, final boolean DEFAULT) {
+        return get(NAME).map(Boolean::parseBoolean).orElse(DEFAULT);
+    }
+
+    private static Optional<String> get(final String NAME) {
+        return Optional.ofNullable(System.getenv(NAME)).map(String::trim).filter(value -> !value.isEmpty());
+    }
+}
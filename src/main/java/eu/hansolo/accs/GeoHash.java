@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Encodes positions as geohash strings. Precision 5 equals a cell of
+ * ~4.9km x 4.9km, 6 equals ~1.2km x 0.6km and 7 equals ~153m x 153m.
+ */
+public class GeoHash {
+    private static final char[] BASE_32       = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+    public  static final int    MAX_PRECISION = 12;
+
+
+    // ******************** Methods *******************************************
+    public static String encode(final double LATITUDE, final double LONGITUDE, final int PRECISION) {
+        final int    LENGTH  = Math.max(1, Math.min(MAX_PRECISION, PRECISION));
+        final char[] HASH    = new char[LENGTH];
+        double       minLat  = -90;
+        double       maxLat  = 90;
+        double       minLon  = -180;
+        double       maxLon  = 180;
+        boolean      evenBit = true;
+        int          bit     = 0;
+        int          ch      = 0;
+        int          index   = 0;
+        while (index < LENGTH) {
+            if (evenBit) {
+                final double MID = (minLon + maxLon) * 0.5;
+                if (LONGITUDE >= MID) {
+                    ch     = (ch << 1) | 1;
+                    minLon = MID;
+                } else {
+                    ch     = ch << 1;
+                    maxLon = MID;
+                }
+            } else {
+                final double MID = (minLat + maxLat) * 0.5;
+                if (LATITUDE >= MID) {
+                    ch     = (ch << 1) | 1;
+                    minLat = MID;
+                } else {
+                    ch     = ch << 1;
+                    maxLat = MID;
+                }
+            }
+            evenBit = !evenBit;
+            if (++bit == 5) {
+                HASH[index++] = BASE_32[ch];
+                bit = 0;
+                ch  = 0;
+            }
+        }
+        return new String(HASH);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Caches the results of the geocoder per geohash cell so that devices that
+ * don't move (or only move within a cell) don't trigger another lookup.
+ * The least recently used entries will be evicted if the cache is full and
+ * entries older than the ttl will be looked up again.
+ * An empty info is a valid result (e.g. for positions at sea) and will be
+ * cached too, only failed lookups are not cached.
+ *
+ * Configuration via environment variables:
+ * GEOCODE_CACHE_PRECISION  geohash precision of the cells       (default 6 = ~1.2km x 0.6km)
+ * GEOCODE_CACHE_SIZE       max number of cached cells           (default 10000)
+ * GEOCODE_CACHE_TTL        max age of an entry in seconds       (default 604800 = 7 days)
+ * GEOCODE_CACHE_FILE       file to load from and save to, optional
+ */
+public enum GeocodeCache {
+    INSTANCE;
+
+    private final int                     precision;
+    private final int                     maxSize;
+    private final long                    ttl;
+    private final Optional<Path>          file;
+    private final Map<String, CacheEntry> entries;
+    private final AtomicLong              hits;
+    private final AtomicLong              misses;
+
+
+    // ******************** Constructors **************************************
+    GeocodeCache() {
+        precision = Env.getInt("GEOCODE_CACHE_PRECISION", 6);
+        maxSize   = Math.max(1, Env.getInt("GEOCODE_CACHE_SIZE", 10_000));
+        ttl       = Env.getLong("GEOCODE_CACHE_TTL", 604_800);
+        file      = Optional.ofNullable(System.getenv("GEOCODE_CACHE_FILE")).filter(name -> !name.trim().isEmpty()).map(Paths::get);
+        entries   = new LinkedHashMap<String, CacheEntry>(256, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry> ELDEST) { return size() > maxSize; }
+        };
+        hits      = new AtomicLong(0);
+        misses    = new AtomicLong(0);
+        load();
+    }
+
+
+    // ******************** Methods *******************************************
+    public Optional<String> get(final double LATITUDE, final double LONGITUDE) {
+        Optional<String> info = peek(LATITUDE, LONGITUDE);
+        if (info.isPresent()) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return info;
+    }
+
+    /**
+     * Same as get() but without counting hits and misses
+     * @param LATITUDE
+     * @param LONGITUDE
+     * @return the cached info of the cell the given position is in
+     */
+    public Optional<String> peek(final double LATITUDE, final double LONGITUDE) {
+        final String HASH = getCell(LATITUDE, LONGITUDE);
+        synchronized (entries) {
+            CacheEntry entry = entries.get(HASH);
+            if (null == entry) return Optional.empty();
+            if (isExpired(entry)) {
+                entries.remove(HASH);
+                return Optional.empty();
+            }
+            return Optional.of(entry.info);
+        }
+    }
+
+    /**
+     * @param LATITUDE
+     * @param LONGITUDE
+     * @param INFO result of a successful lookup, empty if the position has no city and country
+     */
+    public void put(final double LATITUDE, final double LONGITUDE, final String INFO) {
+        if (null == INFO) return;
+        final String HASH = getCell(LATITUDE, LONGITUDE);
+        synchronized (entries) { entries.put(HASH, new CacheEntry(INFO, Instant.now().getEpochSecond())); }
+    }
+
+    /**
+     * Returns the geohash of the cell the given position is in. Positions
+     * in the same cell share one cache entry.
+     * @param LATITUDE
+     * @param LONGITUDE
+     * @return the geohash of the cell
+     */
+    public String getCell(final double LATITUDE, final double LONGITUDE) { return GeoHash.encode(LATITUDE, LONGITUDE, precision); }
+
+    public int size() {
+        synchronized (entries) { return entries.size(); }
+    }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public JSONObject getStats() {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("size", size());
+        jsonObject.put("hits", hits.get());
+        jsonObject.put("misses", misses.get());
+        return jsonObject;
+    }
+
+    /**
+     * Saves the cache to GEOCODE_CACHE_FILE if set
+     */
+    public void save() {
+        if (!file.isPresent()) return;
+        JSONObject jsonObject = new JSONObject();
+        synchronized (entries) {
+            for (Map.Entry<String, CacheEntry> entry : entries.entrySet()) {
+                if (isExpired(entry.getValue())) continue;
+                JSONObject jsonEntry = new JSONObject();
+                jsonEntry.put("info", entry.getValue().info);
+                jsonEntry.put("timestamp", entry.getValue().timestamp);
+                jsonObject.put(entry.getKey(), jsonEntry);
+            }
+        }
+        try {
+            final Path TMP = file.get().resolveSibling(file.get().getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(TMP, StandardCharsets.UTF_8)) { jsonObject.writeJSONString(writer); }
+            Files.move(TMP, file.get(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Error: " + e);
+        }
+    }
+
+    private void load() {
+        if (!file.isPresent() || !Files.exists(file.get())) return;
+        try (Reader reader = Files.newBufferedReader(file.get(), StandardCharsets.UTF_8)) {
+            Object obj = JSONValue.parse(reader);
+            if (!(obj instanceof JSONObject)) return;
+            for (Object key : ((JSONObject) obj).keySet()) {
+                JSONObject jsonEntry = (JSONObject) ((JSONObject) obj).get(key);
+                CacheEntry entry     = new CacheEntry(jsonEntry.getOrDefault("info", "").toString(), Long.parseLong(jsonEntry.getOrDefault("timestamp", 0).toString()));
+                if (!isExpired(entry)) { entries.put(key.toString(), entry); }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error: " + e);
+        }
+    }
+
+    private boolean isExpired(final CacheEntry ENTRY) { return ENTRY.timestamp < Instant.now().getEpochSecond() - ttl; }
+
+
+    // ******************** Inner Classes *************************************
+    private static class CacheEntry {
+        final String info;
+        final long   timestamp;
+
+        CacheEntry(final String INFO, final long TIMESTAMP) {
+            info      = INFO;
+            timestamp = TIMESTAMP;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Resolves the "City, Country" info of locations in the background so that
+ * writes don't have to wait for the geocoder. The result will be stored in
+ * the GeocodeCache and patched into the cache (and with it into the store)
+ * once it is available.
+ * Requests for a device that is already waiting in the queue replace the
+ * queued position instead of adding another request. If the queue is full
+ * the request will be dropped and the location keeps its previous info,
+ * the same happens while the circuit breaker of the geocoder is open.
+ *
+ * Configuration via environment variables:
+ * GEOCODER_THREADS        max number of concurrent geocoder calls   (default 4)
+ * GEOCODER_QUEUE          max number of waiting requests            (default 1000)
+ * GEOCODER_DRAIN_TIMEOUT  max seconds to wait for pending requests on shutdown (default 10)
+ */
+public enum Geocoder {
+    INSTANCE;
+
+    private final ThreadPoolExecutor    executorService;
+    private final Map<String, Location> pending;
+    private final long                  drainTimeout;
+    private final AtomicLong            submitted;
+    private final AtomicLong            completed;
+    private final AtomicLong            dropped;
+
+
+    // ******************** Constructors **************************************
+    Geocoder() {
+        final int THREADS    = Math.max(1, Env.getInt("GEOCODER_THREADS", 4));
+        final int QUEUE_SIZE = Math.max(1, Env.getInt("GEOCODER_QUEUE", 1_000));
+
+        executorService = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                                                 new LinkedBlockingQueue<>(QUEUE_SIZE),
+                                                 Helper.getThreadFactory("Geocoder", true),
+                                                 new ThreadPoolExecutor.AbortPolicy());
+        pending         = new ConcurrentHashMap<>(64);
+        drainTimeout    = Env.getLong("GEOCODER_DRAIN_TIMEOUT", 10);
+        submitted       = new AtomicLong(0);
+        completed       = new AtomicLong(0);
+        dropped         = new AtomicLong(0);
+    }
+
+
+    // ******************** Methods *******************************************
+    /**
+     * Queues the given location for reverse geocoding.
+     * @param LOCATION
+     * @return false if the request was dropped because the queue is full
+     */
+    public boolean enrich(final Location LOCATION) {
+        if (LOCATION.isZero()) return true;
+
+        submitted.incrementAndGet();
+        // Don't queue requests that would fail anyway
+        if (!Dependency.GEOCODER.isAvailable()) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        // Only the latest position of a device is of interest
+        if (null != pending.put(LOCATION.name, LOCATION)) return true;
+        try {
+            executorService.execute(() -> process(LOCATION.name));
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(LOCATION.name);
+            dropped.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Queues the given locations for reverse geocoding with one lookup per
+     * cell of the GeocodeCache, all locations within a cell get the same
+     * info.
+     * @param LOCATIONS
+     * @return the number of locations that were dropped because the queue is full
+     */
+    public int enrich(final Collection<Location> LOCATIONS) {
+        Map<String, List<Location>> cells = new HashMap<>();
+        for (Location location : LOCATIONS) {
+            if (location.isZero()) continue;
+            cells.computeIfAbsent(GeocodeCache.INSTANCE.getCell(location.latitude, location.longitude), cell -> new ArrayList<>()).add(location);
+        }
+        int noOfDropped = 0;
+        for (List<Location> locations : cells.values()) {
+            submitted.addAndGet(locations.size());
+            if (!Dependency.GEOCODER.isAvailable()) {
+                dropped.addAndGet(locations.size());
+                noOfDropped += locations.size();
+                continue;
+            }
+            try {
+                executorService.execute(() -> resolve(locations));
+            } catch (RejectedExecutionException e) {
+                dropped.addAndGet(locations.size());
+                noOfDropped += locations.size();
+            }
+        }
+        return noOfDropped;
+    }
+
+    /**
+     * Looks up the "City, Country" info for the given position by calling
+     * the geocoder.
+     * @param LATITUDE
+     * @param LONGITUDE
+     * @return "City, Country", an empty string if the position is unknown or nothing if the geocoder failed
+     */
+    public Optional<String> lookupInfo(final double LATITUDE, final double LONGITUDE) {
+        JSONObject json   = RestClient.INSTANCE.getAddress(LATITUDE, LONGITUDE);
+        Object     status = json.get("status");
+        // Only ZERO_RESULTS means there is no address, no status or an error status (e.g. OVER_QUERY_LIMIT) must not be cached
+        if (null == status) return Optional.empty();
+        if (status.toString().equals("ZERO_RESULTS")) return Optional.of("");
+        if (status.toString().equals("OK")) {
+            JSONArray results = (JSONArray) json.get("results");
+            if (null == results || results.isEmpty()) return Optional.of("");
+            JSONObject addressComponents = (JSONObject) results.get(0);
+            String[]   formattedAddress  = addressComponents.get("formatted_address").toString().split(",");
+            int        length            = formattedAddress.length;
+            if (length > 2) {
+                String city    = Main.UMLAUT.replaceUmlauts(formattedAddress[length - 2].trim().replaceAll("\\P{L}+", ""));
+                String country = formattedAddress[length - 1].trim();
+                return Optional.of(String.join("", city, ", ", country));
+            }
+            return Optional.of("");
+        }
+        return Optional.empty();
+    }
+
+    public int getQueueSize() { return executorService.getQueue().size(); }
+
+    public JSONObject getStats() {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("submitted", submitted.get());
+        jsonObject.put("completed", completed.get());
+        jsonObject.put("dropped", dropped.get());
+        jsonObject.put("pending", pending.size());
+        jsonObject.put("active", executorService.getActiveCount());
+        return jsonObject;
+    }
+
+    /**
+     * Stops accepting new requests and waits until the queued ones are done.
+     */
+    public void stop() {
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(drainTimeout, TimeUnit.SECONDS)) { executorService.shutdownNow(); }
+        } catch (InterruptedException e) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void process(final String NAME) {
+        final Location LOCATION = pending.remove(NAME);
+        if (null == LOCATION) return;
+        resolve(Collections.singletonList(LOCATION));
+    }
+
+    // All given locations are in the same cell
+    private void resolve(final List<Location> LOCATIONS) {
+        final Location LOCATION = LOCATIONS.get(0);
+        try {
+            // Another device in the same cell might have been resolved in the meantime
+            Optional<String> info = GeocodeCache.INSTANCE.peek(LOCATION.latitude, LOCATION.longitude);
+            if (!info.isPresent()) {
+                info = lookupInfo(LOCATION.latitude, LOCATION.longitude);
+                // Keep the previous info of the locations if the geocoder failed
+                if (!info.isPresent()) return;
+                GeocodeCache.INSTANCE.put(LOCATION.latitude, LOCATION.longitude, info.get());
+            }
+            for (Location location : LOCATIONS) { LocationCache.INSTANCE.updateInfo(location, info.get()); }
+        } catch (RuntimeException e) {
+            // The store didn't take the patched info, the cache keeps it
+            System.out.println("Error: " + e);
+        } finally {
+            completed.addAndGet(LOCATIONS.size());
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Named circle or polygon. The bounding box is calculated once so that
+ * most locations can be rejected without the exact test. The box of a
+ * circle that crosses the antimeridian wraps around, its minLongitude is
+ * greater than its maxLongitude then.
+ * Polygons must not cross the antimeridian.
+ */
+public class Geofence {
+    public enum Type { CIRCLE, POLYGON }
+
+    public final String name;
+    public final Type   type;
+    public final long   dwellTime;
+    public final double minLatitude;
+    public final double minLongitude;
+    public final double maxLatitude;
+    public final double maxLongitude;
+    // Circle
+    private final double latitude;
+    private final double longitude;
+    private final double radius;
+    // Polygon
+    private final double[] latitudes;
+    private final double[] longitudes;
+
+
+    // ******************** Constructors **************************************
+    public Geofence(final String NAME, final double LATITUDE, final double LONGITUDE, final double RADIUS, final long DWELL_TIME) {
+        name       = NAME;
+        type       = Type.CIRCLE;
+        dwellTime  = DWELL_TIME;
+        latitude   = LATITUDE;
+        longitude  = LONGITUDE;
+        radius     = RADIUS;
+        latitudes  = null;
+        longitudes = null;
+
+        final double DELTA_LAT = RADIUS / Location.METERS_PER_DEGREE;
+        final double MAX_COS   = Math.cos(Math.toRadians(Math.min(90, Math.abs(LATITUDE) + DELTA_LAT)));
+        final double DELTA_LON = MAX_COS < 1e-9 ? 180 : Math.min(180, DELTA_LAT / MAX_COS);
+        minLatitude  = Math.max(-90, LATITUDE - DELTA_LAT);
+        maxLatitude  = Math.min(90, LATITUDE + DELTA_LAT);
+        if (DELTA_LON >= 180) {
+            minLongitude = -180;
+            maxLongitude = 180;
+        } else {
+            // Continues on the other side of the antimeridian
+            final double MIN_LON = LONGITUDE - DELTA_LON;
+            final double MAX_LON = LONGITUDE + DELTA_LON;
+            minLongitude = MIN_LON < -180 ? MIN_LON + 360 : MIN_LON;
+            maxLongitude = MAX_LON > 180  ? MAX_LON - 360 : MAX_LON;
+        }
+    }
+    public Geofence(final String NAME, final double[] LATITUDES, final double[] LONGITUDES, final long DWELL_TIME) {
+        if (LATITUDES.length < 3 || LATITUDES.length != LONGITUDES.length) throw new IllegalArgumentException("polygon needs at least 3 points");
+        name       = NAME;
+        type       = Type.POLYGON;
+        dwellTime  = DWELL_TIME;
+        latitude   = 0;
+        longitude  = 0;
+        radius     = 0;
+        latitudes  = LATITUDES.clone();
+        longitudes = LONGITUDES.clone();
+
+        double minLat = 90, minLon = 180, maxLat = -90, maxLon = -180;
+        for (int i = 0 ; i < latitudes.length ; i++) {
+            minLat = Math.min(minLat, latitudes[i]);
+            maxLat = Math.max(maxLat, latitudes[i]);
+            minLon = Math.min(minLon, longitudes[i]);
+            maxLon = Math.max(maxLon, longitudes[i]);
+        }
+        minLatitude  = minLat;
+        minLongitude = minLon;
+        maxLatitude  = maxLat;
+        maxLongitude = maxLon;
+    }
+
+
+    // ******************** Methods *******************************************
+    public boolean contains(final Location LOCATION) {
+        final double LAT = LOCATION.latitude;
+        final double LON = LOCATION.longitude;
+        if (LAT < minLatitude || LAT > maxLatitude) return false;
+        if (wrapsLongitude() ? LON < minLongitude && LON > maxLongitude : LON < minLongitude || LON > maxLongitude) return false;
+        if (Type.CIRCLE == type) return LOCATION.calcDistanceInMeter(latitude, longitude, LAT, LON) <= radius;
+
+        // Even-odd rule
+        boolean inside = false;
+        for (int i = 0, j = latitudes.length - 1 ; i < latitudes.length ; j = i++) {
+            if ((latitudes[i] > LAT) != (latitudes[j] > LAT) &&
+                LON < (longitudes[j] - longitudes[i]) * (LAT - latitudes[i]) / (latitudes[j] - latitudes[i]) + longitudes[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * @return true if the bounding box crosses the antimeridian, it covers minLongitude to 180 and -180 to maxLongitude then
+     */
+    public boolean wrapsLongitude() { return minLongitude > maxLongitude; }
+
+    public JSONObject toJSON() {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("name", name);
+        jsonObject.put("type", type.name().toLowerCase());
+        jsonObject.put("dwell", dwellTime);
+        if (Type.CIRCLE == type) {
+            jsonObject.put("latitude", latitude);
+            jsonObject.put("longitude", longitude);
+            jsonObject.put("radius", radius);
+        } else {
+            JSONArray points = new JSONArray();
+            for (int i = 0 ; i < latitudes.length ; i++) {
+                JSONArray point = new JSONArray();
+                point.add(latitudes[i]);
+                point.add(longitudes[i]);
+                points.add(point);
+            }
+            jsonObject.put("points", points);
+        }
+        return jsonObject;
+    }
+
+    /**
+     * Creates a geofence from json
+     * circle : {"name":"a", "type":"circle", "latitude":1, "longitude":2, "radius":100, "dwell":300}
+     * polygon: {"name":"b", "type":"polygon", "points":[[lat,lon],...], "dwell":300}
+     * @param JSON
+     * @param DEFAULT_DWELL_TIME dwell time in seconds if not given
+     * @return the geofence
+     * @throws IllegalArgumentException if the json doesn't describe a valid geofence
+     */
+    public static Geofence fromJSON(final JSONObject JSON, final long DEFAULT_DWELL_TIME) {
+        final String NAME = getString(JSON, "name", "").trim();
+        if (NAME.isEmpty()) throw new IllegalArgumentException("name missing");
+        try {
+            final long DWELL_TIME = Long.parseLong(getString(JSON, "dwell", DEFAULT_DWELL_TIME));
+            if ("polygon".equalsIgnoreCase(getString(JSON, "type", ""))) {
+                final JSONArray POINTS     = (JSONArray) JSON.get("points");
+                if (null == POINTS) throw new IllegalArgumentException("points missing");
+                final double[]  LATITUDES  = new double[POINTS.size()];
+                final double[]  LONGITUDES = new double[POINTS.size()];
+                for (int i = 0 ; i < POINTS.size() ; i++) {
+                    final JSONArray POINT = (JSONArray) POINTS.get(i);
+                    if (null == POINT || null == POINT.get(0) || null == POINT.get(1)) throw new IllegalArgumentException("point " + i + " incomplete");
+                    LATITUDES[i]  = checkLatitude(Double.parseDouble(POINT.get(0).toString()));
+                    LONGITUDES[i] = checkLongitude(Double.parseDouble(POINT.get(1).toString()));
+                }
+                return new Geofence(NAME, LATITUDES, LONGITUDES, DWELL_TIME);
+            } else {
+                final double LATITUDE  = checkLatitude(Double.parseDouble(getString(JSON, "latitude", "")));
+                final double LONGITUDE = checkLongitude(Double.parseDouble(getString(JSON, "longitude", "")));
+                final double RADIUS    = Double.parseDouble(getString(JSON, "radius", ""));
+                if (!(RADIUS > 0)) throw new IllegalArgumentException("radius must be > 0");
+                return new Geofence(NAME, LATITUDE, LONGITUDE, RADIUS, DWELL_TIME);
+            }
+        } catch (NumberFormatException | ClassCastException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("invalid geofence");
+        }
+    }
+
+    // A json null counts as missing
+    private static String getString(final JSONObject JSON, final String KEY, final Object DEFAULT) {
+        final Object VALUE = JSON.get(KEY);
+        return (null == VALUE ? DEFAULT : VALUE).toString();
+    }
+
+    private static double checkLatitude(final double LATITUDE) {
+        if (!(Math.abs(LATITUDE) <= 90)) throw new IllegalArgumentException("latitude out of range");
+        return LATITUDE;
+    }
+
+    private static double checkLongitude(final double LONGITUDE) {
+        if (!(Math.abs(LONGITUDE) <= 180)) throw new IllegalArgumentException("longitude out of range");
+        return LONGITUDE;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Tests every new position against the registered geofences and emits
+ * enter, exit and dwell (inside for longer than the dwell time) events.
+ * Geofences are registered in all cells of a grid (GEOFENCE_CELL_SIZE
+ * degrees, default 0.1) that their bounding box overlaps, so a position
+ * is only tested against the geofences of its own cell. Geofences that
+ * would cover too many cells are kept in a separate list and tested by
+ * their bounding box first.
+ *
+ * Configuration via environment variables:
+ * GEOFENCE_CELL_SIZE  cell size of the grid in degrees           (default 0.1)
+ * GEOFENCE_DWELL      default dwell time in seconds              (default 300)
+ */
+public enum GeofenceEngine implements LocationEventListener {
+    INSTANCE;
+
+    public enum EventType { ENTER, EXIT, DWELL }
+
+    private static final int        MAX_CELLS_PER_FENCE = 4096;
+    private static final Geofence[] NO_FENCES           = new Geofence[0];
+
+    private final    double                               cellSize;
+    private final    long                                 defaultDwellTime;
+    private final    Map<String, Geofence>                fences;
+    private final    Map<Long, Geofence[]>                cells;
+    private volatile Geofence[]                           largeFences;
+    private final    Map<String, Map<String, Membership>> memberships;
+    private final    AtomicLong                           evaluations;
+    private final    AtomicLong                           tests;
+    private final    AtomicLong                           events;
+
+
+    // ******************** Constructors **************************************
+    GeofenceEngine() {
+        cellSize         = Env.getDouble("GEOFENCE_CELL_SIZE", 0.1);
+        defaultDwellTime = Env.getLong("GEOFENCE_DWELL", 300);
+        fences           = new ConcurrentHashMap<>(64);
+        cells            = new ConcurrentHashMap<>(256);
+        largeFences      = new Geofence[0];
+        memberships      = new ConcurrentHashMap<>(256);
+        evaluations      = new AtomicLong(0);
+        tests            = new AtomicLong(0);
+        events           = new AtomicLong(0);
+    }
+
+
+    // ******************** Methods *******************************************
+    @Override public void onLocationEvent(final LocationEvent EVENT) {
+        switch(EVENT.getType()) {
+            case ADDED  :
+            case UPDATED: evaluate(EVENT.getLocation()); break;
+            case REMOVED: memberships.remove(EVENT.getLocation().name); break;
+        }
+    }
+
+    public long getDefaultDwellTime() { return defaultDwellTime; }
+
+    /**
+     * Adds the given geofence or replaces the one with the same name
+     * @param FENCE
+     */
+    public synchronized void add(final Geofence FENCE) {
+        remove(FENCE.name);
+        fences.put(FENCE.name, FENCE);
+        final long[] CELLS = getCells(FENCE);
+        if (null == CELLS) {
+            largeFences = append(largeFences, FENCE);
+        } else {
+            for (long cell : CELLS) { cells.compute(cell, (key, cellFences) -> append(null == cellFences ? NO_FENCES : cellFences, FENCE)); }
+        }
+    }
+
+    public synchronized Optional<Geofence> remove(final String NAME) {
+        final Geofence FENCE = fences.remove(NAME);
+        if (null == FENCE) return Optional.empty();
+        final long[] CELLS = getCells(FENCE);
+        if (null == CELLS) {
+            largeFences = without(largeFences, FENCE);
+        } else {
+            for (long cell : CELLS) {
+                cells.computeIfPresent(cell, (key, cellFences) -> {
+                    Geofence[] remaining = without(cellFences, FENCE);
+                    return remaining.length == 0 ? null : remaining;
+                });
+            }
+        }
+        for (Map<String, Membership> membership : memberships.values()) {
+            synchronized (membership) { membership.remove(NAME); }
+        }
+        return Optional.of(FENCE);
+    }
+
+    public JSONArray getAllAsJSON() {
+        JSONArray jsonArray = new JSONArray();
+        for (Geofence fence : fences.values()) { jsonArray.add(fence.toJSON()); }
+        return jsonArray;
+    }
+
+    public int size() { return fences.size(); }
+
+    public JSONObject getStats() {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("fences", fences.size());
+        jsonObject.put("cells", cells.size());
+        jsonObject.put("largeFences", largeFences.length);
+        jsonObject.put("evaluations", evaluations.get());
+        jsonObject.put("tests", tests.get());
+        jsonObject.put("events", events.get());
+        return jsonObject;
+    }
+
+
+    // ******************** Private Methods ***********************************
+    private void evaluate(final Location LOCATION) {
+        if (fences.isEmpty() && !memberships.containsKey(LOCATION.name)) return;
+        evaluations.incrementAndGet();
+
+        // Geofences that contain the location
+        final Map<String, Geofence> INSIDE = new HashMap<>();
+        test(cells.getOrDefault(getKey(getRow(LOCATION.latitude), getCol(LOCATION.longitude)), NO_FENCES), LOCATION, INSIDE);
+        test(largeFences, LOCATION, INSIDE);
+
+        final long                    TIMESTAMP  = LOCATION.timestamp.getEpochSecond();
+        final List<JSONObject>        FIRED      = new ArrayList<>();
+        final Map<String, Membership> MEMBERSHIP = INSIDE.isEmpty() ? memberships.get(LOCATION.name) : memberships.computeIfAbsent(LOCATION.name, name -> new HashMap<>());
+        if (null == MEMBERSHIP) return;
+        synchronized (MEMBERSHIP) {
+            for (Map.Entry<String, Membership> entry : new ArrayList<>(MEMBERSHIP.entrySet())) {
+                if (INSIDE.containsKey(entry.getKey())) continue;
+                MEMBERSHIP.remove(entry.getKey());
+                FIRED.add(toJSON(EventType.EXIT, entry.getValue().fence, LOCATION));
+            }
+            for (Geofence fence : INSIDE.values()) {
+                Membership membership = MEMBERSHIP.get(fence.name);
+                if (null == membership) {
+                    MEMBERSHIP.put(fence.name, new Membership(fence, TIMESTAMP));
+                    FIRED.add(toJSON(EventType.ENTER, fence, LOCATION));
+                } else if (!membership.dwelling && TIMESTAMP - membership.enterTimestamp >= fence.dwellTime) {
+                    membership.dwelling = true;
+                    FIRED.add(toJSON(EventType.DWELL, fence, LOCATION));
+                }
+            }
+            if (MEMBERSHIP.isEmpty()) { memberships.remove(LOCATION.name, MEMBERSHIP); }
+        }
+        for (JSONObject event : FIRED) {
+            events.incrementAndGet();
+            LocationFeed.INSTANCE.publish(event.get("type").toString(), event, LOCATION);
+        }
+    }
+
+    private void test(final Geofence[] FENCES, final Location LOCATION, final Map<String, Geofence> INSIDE) {
+        for (Geofence fence : FENCES) {
+            tests.incrementAndGet();
+            if (fence.contains(LOCATION)) { INSIDE.put(fence.name, fence); }
+        }
+    }
+
+    private static JSONObject toJSON(final EventType TYPE, final Geofence FENCE, final Location LOCATION) {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("type", TYPE.name().toLowerCase());
+        jsonObject.put("geofence", FENCE.name);
+        jsonObject.put("location", LOCATION.toJSON());
+        return jsonObject;
+    }
+
+    // Returns null if the geofence covers more than MAX_CELLS_PER_FENCE cells
+    private long[] getCells(final Geofence FENCE) {
+        final int  MIN_ROW    = getRow(FENCE.minLatitude);
+        final int  MAX_ROW    = getRow(FENCE.maxLatitude);
+        final int  MIN_COL    = getCol(FENCE.minLongitude);
+        final int  MAX_COL    = getCol(FENCE.maxLongitude);
+        // A box across the antimeridian covers the columns from MIN_COL to 180 and from -180 to MAX_COL
+        final int  NO_OF_COLS = getCol(180) + 1;
+        final int  COLS       = FENCE.wrapsLongitude() ? NO_OF_COLS - MIN_COL + MAX_COL + 1 : MAX_COL - MIN_COL + 1;
+        final long COUNT      = (long) (MAX_ROW - MIN_ROW + 1) * COLS;
+        if (COUNT > MAX_CELLS_PER_FENCE) return null;
+        long[] keys  = new long[(int) COUNT];
+        int    index = 0;
+        for (int row = MIN_ROW ; row <= MAX_ROW ; row++) {
+            for (int i = 0 ; i < COLS ; i++) { keys[index++] = getKey(row, (MIN_COL + i) % NO_OF_COLS); }
+        }
+        return keys;
+    }
+
+    private int getRow(final double LATITUDE) { return (int) Math.floor((Math.max(-90, Math.min(90, LATITUDE)) + 90) / cellSize); }
+
+    private int getCol(final double LONGITUDE) { return (int) Math.floor((Math.max(-180, Math.min(180, LONGITUDE)) + 180) / cellSize); }
+
+    private static long getKey(final int ROW, final int COL) { return ((long) ROW << 32) | (COL & 0xffffffffL); }
+
+    private static Geofence[] append(final Geofence[] FENCES, final Geofence FENCE) {
+        Geofence[] result = Arrays.copyOf(FENCES, FENCES.length + 1);
+        result[FENCES.length] = FENCE;
+        return result;
+    }
+
+    private static Geofence[] without(final Geofence[] FENCES, final Geofence FENCE) {
+        return Arrays.stream(FENCES).filter(fence -> fence != FENCE).toArray(Geofence[]::new);
+    }
+
+
+    // ******************** Inner Classes *************************************
+    private static class Membership {
+        final Geofence fence;
+        final long     enterTimestamp;
+        boolean        dwelling;
+
+        Membership(final Geofence FENCE, final long ENTER_TIMESTAMP) {
+            fence          = FENCE;
+            enterTimestamp = ENTER_TIMESTAMP;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ */
+public class Helper {
+
+    // ******************** Methods *******************************************
+    public static ThreadFactory getThreadFactory(final String THREAD_NAME, final boolean IS_DAEMON) {
+        final AtomicInteger COUNTER = new AtomicInteger(0);
+        return runnable -> {
+            final int  NUMBER = COUNTER.getAndIncrement();
+            Thread     thread = new Thread(runnable, NUMBER == 0 ? THREAD_NAME : String.join("-", THREAD_NAME, Integer.toString(NUMBER)));
+            thread.setDaemon(IS_DAEMON);
+            return thread;
+        };
+    }
+}
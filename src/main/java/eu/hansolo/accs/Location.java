@@ -17,6 +17,10 @@
 package eu.hansolo.accs;
 
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.io.Writer;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
@@ -25,6 +29,9 @@ import java.util.Objects;
 
 /**
  * Created by hansolo on 15.06.16.
+ *
+ * Immutable value, a changed position is a new Location. Instances can be
+ * shared between threads without copying or locking.
  */
 public class Location {
     public enum CardinalDirection {
@@ -56,13 +63,17 @@ public class Location {
         }
     }
 
+    public static final double EARTH_RADIUS      = 6_371_000; // m
+    // Length of one degree latitude on the sphere that is used for the distances
+    public static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180.0;
+
     // Location related information
-    public Instant timestamp;
-    public double  latitude;
-    public double  longitude;
-    public double  altitude;
-    public String  name;
-    public String  info;
+    public final Instant timestamp;
+    public final double  latitude;
+    public final double  longitude;
+    public final double  altitude;
+    public final String  name;
+    public final String  info;
 
 
     // ******************** Constructors **************************************
@@ -95,25 +106,26 @@ public class Location {
     public LocalDateTime getLocaleDateTime() { return getLocalDateTime(ZoneId.systemDefault()); }
     public LocalDateTime getLocalDateTime(final ZoneId ZONE_ID) { return LocalDateTime.ofInstant(timestamp, ZONE_ID); }
 
-    public void update(final double LATITUDE, final double LONGITUDE) { set(LATITUDE, LONGITUDE); }
+    /**
+     * @param INFO
+     * @return a copy of this location with the given info
+     */
+    public Location withInfo(final String INFO) { return new Location(latitude, longitude, altitude, timestamp, name, INFO); }
 
-    public void set(final double LATITUDE, final double LONGITUDE) {
-        latitude  = LATITUDE;
-        longitude = LONGITUDE;
-        timestamp = Instant.now();
-    }
-    public void set(final double LATITUDE, final double LONGITUDE, final double ALTITUDE, final Instant TIMESTAMP) {
-        latitude  = LATITUDE;
-        longitude = LONGITUDE;
-        altitude  = ALTITUDE;
-        timestamp = TIMESTAMP;
-    }
-    public void set(final Location LOCATION) {
-        latitude    = LOCATION.latitude;
-        longitude   = LOCATION.longitude;
-        altitude    = LOCATION.altitude;
-        timestamp   = LOCATION.timestamp;
-        info        = LOCATION.info;
+    /**
+     * @param TIMESTAMP
+     * @return a copy of this location with the given timestamp
+     */
+    public Location withTimestamp(final Instant TIMESTAMP) { return new Location(latitude, longitude, altitude, TIMESTAMP, name, info); }
+
+    /**
+     * @param LOCATION
+     * @return true if the given location has the same latitude, longitude and altitude
+     */
+    public boolean isAtSamePosition(final Location LOCATION) {
+        return (Double.compare(latitude, LOCATION.latitude) == 0 &&
+                Double.compare(longitude, LOCATION.longitude) == 0 &&
+                Double.compare(altitude, LOCATION.altitude) == 0);
     }
 
     public double getDistanceTo(final Location LOCATION) { return calcDistanceInMeter(this, LOCATION); }
@@ -127,7 +139,6 @@ public class Location {
         return calcDistanceInMeter(P1, P2) / 1000.0;
     }
     public double calcDistanceInMeter(final double LAT_1, final double LON_1, final double LAT_2, final double LON_2) {
-        final double EARTH_RADIUS      = 6_371_000; // m
         final double LAT_1_RADIANS     = Math.toRadians(LAT_1);
         final double LAT_2_RADIANS     = Math.toRadians(LAT_2);
         final double DELTA_LAT_RADIANS = Math.toRadians(LAT_2-LAT_1);
@@ -186,9 +197,10 @@ public class Location {
     @Override public boolean equals(final Object OBJECT) {
         if (OBJECT instanceof Location) {
             final Location LOCATION = (Location) OBJECT;
-            return (Double.compare(latitude, LOCATION.latitude) == 0 &&
-                    Double.compare(longitude, LOCATION.longitude) == 0 &&
-                    Double.compare(altitude, LOCATION.altitude) == 0);
+            return (isAtSamePosition(LOCATION) &&
+                    Objects.equals(timestamp, LOCATION.timestamp) &&
+                    Objects.equals(name, LOCATION.name) &&
+                    Objects.equals(info, LOCATION.info));
         } else {
             return false;
         }
@@ -206,6 +218,28 @@ public class Location {
     }
     public String toJSONString() { return toJSON().toJSONString(); }
 
+    /**
+     * Writes the same json as toJSONString() directly to the given writer
+     * without creating a JSONObject and a String for each location.
+     * @param WRITER
+     * @throws IOException
+     */
+    public void writeJSON(final Writer WRITER) throws IOException {
+        WRITER.write("{\"name\":\"");
+        WRITER.write(JSONValue.escape(name));
+        WRITER.write("\",\"timestamp\":");
+        WRITER.write(Long.toString(timestamp.getEpochSecond()));
+        WRITER.write(",\"latitude\":");
+        WRITER.write(Double.toString(latitude));
+        WRITER.write(",\"longitude\":");
+        WRITER.write(Double.toString(longitude));
+        WRITER.write(",\"altitude\":");
+        WRITER.write(Double.toString(altitude));
+        WRITER.write(",\"info\":\"");
+        WRITER.write(JSONValue.escape(info));
+        WRITER.write("\"}");
+    }
+
     @Override public String toString() {
         return new StringBuilder().append("Name     : ").append(name).append("\n")
                                   .append("Timestamp: ").append(timestamp).append("\n")
@@ -216,5 +250,5 @@ public class Location {
                                   .toString();
     }
 
-    @Override public int hashCode() { return Objects.hashCode(this); }
+    @Override public int hashCode() { return Objects.hash(name, timestamp, latitude, longitude, altitude); }
 }
@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * In-memory copy of all locations keyed and ordered by name. Reads are served from
+ * memory only, writes go to the cache first and are then forwarded to
+ * the backing store.
+ *
+ * In WRITE_BEHIND mode the writes are collected in the WriteBehindQueue
+ * and flushed periodically.
+ *
+ * Writes are a compare-and-set on the timestamp of the cached location: a
+ * location that is older than the cached one is rejected as STALE, so
+ * updates that arrive out of order never overwrite a newer position.
+ * Writes of the same name are serialized by one of NO_OF_STRIPES locks,
+ * which keeps the events in the order of the changes. Locations are
+ * immutable, so readers never lock and never see a partially written
+ * location.
+ *
+ * Configuration via environment variables:
+ * LOCATION_CACHE_MODE     WRITE_THROUGH or WRITE_BEHIND               (default WRITE_THROUGH)
+ * LOCATION_CACHE_REFRESH  reload from the store every n seconds, 0=off (default 300)
+ */
+public enum LocationCache {
+    INSTANCE;
+
+    public enum ConsistencyMode { WRITE_THROUGH, WRITE_BEHIND }
+    public enum WriteResult { ADDED, UPDATED, STALE }
+
+    private static final int NO_OF_STRIPES = 64;
+
+    private final    NavigableMap<String, Location> locations;
+    private final    Object[]                       stripes;
+    private final    List<LocationEventListener>    listeners;
+    private final    ConsistencyMode                consistencyMode;
+    private final    long                           refreshInterval;
+    private          ScheduledExecutorService       refreshExecutorService;
+    private volatile ScheduledFuture<?>             refreshTask;
+    private final    AtomicLong                     hits;
+    private final    AtomicLong                     misses;
+    private final    AtomicLong                     version;
+    private final    AtomicLong                     stale;
+    private volatile long                           lastModified;
+
+
+    // ******************** Constructors **************************************
+    LocationCache() {
+        locations       = new ConcurrentSkipListMap<>();
+        stripes         = new Object[NO_OF_STRIPES];
+        listeners       = new CopyOnWriteArrayList<>();
+        consistencyMode = getConsistencyMode(Env.getString("LOCATION_CACHE_MODE", ConsistencyMode.WRITE_THROUGH.name()));
+        refreshInterval = Env.getLong("LOCATION_CACHE_REFRESH", 300);
+        hits            = new AtomicLong(0);
+        misses          = new AtomicLong(0);
+        version         = new AtomicLong(0);
+        stale           = new AtomicLong(0);
+        lastModified    = System.currentTimeMillis();
+        for (int i = 0 ; i < NO_OF_STRIPES ; i++) { stripes[i] = new Object(); }
+    }
+
+
+    // ******************** Methods *******************************************
+    /**
+     * Loads all locations from the store and schedules the periodic refresh
+     */
+    public synchronized void warm() {
+        refresh();
+        if (ConsistencyMode.WRITE_BEHIND == consistencyMode) { WriteBehindQueue.INSTANCE.start(); }
+        if (refreshInterval > 0 && null == refreshTask) {
+            refreshExecutorService = new ScheduledThreadPoolExecutor(1, Helper.getThreadFactory("LocationCacheRefresh", true));
+            refreshTask            = refreshExecutorService.scheduleAtFixedRate(() -> refresh(), refreshInterval, refreshInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Merges the content of the store into the cache. Entries will only be
+     * replaced by newer ones and never be removed because the store returns
+     * an empty result in case of an error. In a cluster only the devices
+     * this node owns are loaded.
+     */
+    public void refresh() {
+        JSONArray locationsArray = LocationStore.INSTANCE.getAllLocations();
+        for (Object obj : locationsArray) {
+            Location location = new Location((JSONObject) obj);
+            if (!Cluster.INSTANCE.isLocal(location.name)) continue;
+            synchronized (getStripe(location.name)) {
+                Location oldLocation = locations.get(location.name);
+                if (null == oldLocation) {
+                    locations.put(location.name, location);
+                    fireLocationEvent(new LocationEvent(LocationEvent.EventType.ADDED, location));
+                } else if (location.timestamp.isAfter(oldLocation.timestamp)) {
+                    locations.put(location.name, location);
+                    fireLocationEvent(new LocationEvent(LocationEvent.EventType.UPDATED, location, oldLocation));
+                }
+            }
+        }
+    }
+
+    public Optional<Location> get(final String NAME) {
+        final Location LOCATION = null == NAME ? null : locations.get(NAME);
+        if (null == LOCATION) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return Optional.ofNullable(LOCATION);
+    }
+
+    public Collection<Location> getAll() { return locations.values(); }
+
+    /**
+     * Returns up to LIMIT locations ordered by name, starting after the
+     * given name. Pass the name of the last location of a page to get the
+     * next one.
+     * @param AFTER name of the last location of the previous page, null for the first page
+     * @param LIMIT max number of locations
+     * @return the locations of the requested page
+     */
+    public List<Location> getPage(final String AFTER, final int LIMIT) {
+        List<Location> page = new ArrayList<>(Math.max(0, Math.min(LIMIT, 1024)));
+        for (Location location : (null == AFTER ? locations : locations.tailMap(AFTER, false)).values()) {
+            if (page.size() >= LIMIT) break;
+            page.add(location);
+        }
+        return page;
+    }
+
+    public JSONArray getAllAsJSON() {
+        JSONArray jsonArray = new JSONArray();
+        for (Location location : locations.values()) { jsonArray.add(location.toJSON()); }
+        return jsonArray;
+    }
+
+    public int size() { return locations.size(); }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    /**
+     * @return number of writes that have been rejected because the cache contained a newer location
+     */
+    public long getStale() { return stale.get(); }
+
+    public ConsistencyMode getConsistencyMode() { return consistencyMode; }
+
+    /**
+     * Read the version before reading the locations, so a response never
+     * contains older locations than its version says
+     * @return number of changes since the start, increases with every add, update and remove
+     */
+    public long getVersion() { return version.get(); }
+
+    /**
+     * @return epoch milliseconds of the last change
+     */
+    public long getLastModified() { return lastModified; }
+
+    /**
+     * Adds or updates the location unless the cached one is newer
+     * @param LOCATION
+     * @return ADDED, UPDATED or STALE if the location has not been stored
+     */
+    public WriteResult add(final Location LOCATION) {
+        final WriteResult RESULT = putIfNewer(LOCATION);
+        if (WriteResult.STALE != RESULT) { writeUpsert(LOCATION, WriteResult.UPDATED == RESULT); }
+        return RESULT;
+    }
+
+    /**
+     * Same as add() and update() but the returned future completes when the
+     * location has been written, the caller doesn't wait for the store.
+     * @param LOCATION
+     * @return completes when the location has been written (or queued in WRITE_BEHIND mode), right away if it is STALE
+     */
+    public CompletableFuture<WriteResult> upsertAsync(final Location LOCATION) {
+        final WriteResult RESULT = putIfNewer(LOCATION);
+        if (WriteResult.STALE == RESULT) return CompletableFuture.completedFuture(RESULT);
+        switch(consistencyMode) {
+            case WRITE_BEHIND:
+                WriteBehindQueue.INSTANCE.upsert(LOCATION);
+                return CompletableFuture.completedFuture(RESULT);
+            default:
+                return (WriteResult.ADDED == RESULT ? LocationStore.INSTANCE.postLocationAsync(LOCATION) : LocationStore.INSTANCE.putLocationAsync(LOCATION)).thenApply(written -> RESULT);
+        }
+    }
+
+    // Locations that are not known yet have to be created in the store
+    public WriteResult update(final Location LOCATION) { return add(LOCATION); }
+
+    /**
+     * Adds or updates all given locations and writes them to the store with
+     * one bulk operation. Locations that are older than the cached ones are
+     * skipped.
+     * @param LOCATIONS locations with distinct names
+     * @return the locations that have not been stored because they are STALE
+     */
+    public List<Location> addAll(final Collection<Location> LOCATIONS) {
+        final List<Location> STORED   = new ArrayList<>(LOCATIONS.size());
+        final List<Location> REJECTED = new ArrayList<>();
+        for (Location location : LOCATIONS) { (WriteResult.STALE == putIfNewer(location) ? REJECTED : STORED).add(location); }
+        if (STORED.isEmpty()) return REJECTED;
+        switch(consistencyMode) {
+            case WRITE_BEHIND: for (Location location : STORED) { WriteBehindQueue.INSTANCE.upsert(location); } break;
+            default          : LocationStore.INSTANCE.putLocations(STORED); break;
+        }
+        return REJECTED;
+    }
+
+    /**
+     * Same as addAll() but the caller doesn't wait for the store
+     * @param LOCATIONS locations with distinct names
+     * @return the STALE locations, completes when the locations have been written (or queued in WRITE_BEHIND mode)
+     */
+    public CompletableFuture<List<Location>> addAllAsync(final Collection<Location> LOCATIONS) {
+        if (ConsistencyMode.WRITE_BEHIND == consistencyMode) return CompletableFuture.completedFuture(addAll(LOCATIONS));
+        final List<Location> STORED   = new ArrayList<>(LOCATIONS.size());
+        final List<Location> REJECTED = new ArrayList<>();
+        for (Location location : LOCATIONS) { (WriteResult.STALE == putIfNewer(location) ? REJECTED : STORED).add(location); }
+        if (STORED.isEmpty()) return CompletableFuture.completedFuture(REJECTED);
+        return LocationStore.INSTANCE.putLocationsAsync(STORED).thenApply(written -> REJECTED);
+    }
+
+    /**
+     * Sets the info of the cached location if it is still at the position
+     * of the given location. Used to patch in results of the geocoder.
+     * @param LOCATION the location that was geocoded
+     * @param INFO
+     */
+    public void updateInfo(final Location LOCATION, final String INFO) {
+        final Location PATCHED;
+        synchronized (getStripe(LOCATION.name)) {
+            final Location CACHED = locations.get(LOCATION.name);
+            if (null == CACHED || null == INFO || INFO.isEmpty() || INFO.equals(CACHED.info) || !CACHED.isAtSamePosition(LOCATION)) return;
+            PATCHED = CACHED.withInfo(INFO);
+            locations.put(LOCATION.name, PATCHED);
+            fireLocationEvent(new LocationEvent(LocationEvent.EventType.UPDATED, PATCHED, CACHED));
+        }
+        writeUpsert(PATCHED, true);
+    }
+
+    /**
+     * Sets the timestamp of the cached location without writing it to the
+     * store. Used for positions that didn't change significantly.
+     * @param EXPECTED the cached location the decision was based on
+     * @param TIMESTAMP
+     * @return the refreshed location, null if the cached location has been changed in the meantime or is newer
+     */
+    public Location touch(final Location EXPECTED, final Instant TIMESTAMP) {
+        synchronized (getStripe(EXPECTED.name)) {
+            final Location CACHED = locations.get(EXPECTED.name);
+            if (CACHED != EXPECTED || CACHED.timestamp.isAfter(TIMESTAMP)) return null;
+            final Location TOUCHED = CACHED.withTimestamp(TIMESTAMP);
+            locations.put(CACHED.name, TOUCHED);
+            fireLocationEvent(new LocationEvent(LocationEvent.EventType.UPDATED, TOUCHED, CACHED));
+            return TOUCHED;
+        }
+    }
+
+    public void remove(final Location LOCATION) {
+        final Location OLD_LOCATION;
+        synchronized (getStripe(LOCATION.name)) {
+            OLD_LOCATION = locations.remove(LOCATION.name);
+            if (null == OLD_LOCATION) return;
+            fireLocationEvent(new LocationEvent(LocationEvent.EventType.REMOVED, OLD_LOCATION));
+        }
+        writeDelete(OLD_LOCATION);
+    }
+
+    /**
+     * Removes the given locations from the cache without touching the
+     * store. Locations that have been updated in the meantime are kept.
+     * @param LOCATIONS
+     */
+    public void evict(final Collection<Location> LOCATIONS) {
+        for (Location location : LOCATIONS) {
+            synchronized (getStripe(location.name)) {
+                if (locations.remove(location.name, location)) { fireLocationEvent(new LocationEvent(LocationEvent.EventType.REMOVED, location)); }
+            }
+        }
+    }
+
+    public void stop() {
+        if (null != refreshTask) {
+            refreshTask.cancel(false);
+            refreshExecutorService.shutdownNow();
+        }
+        if (ConsistencyMode.WRITE_BEHIND == consistencyMode) { WriteBehindQueue.INSTANCE.stop(); }
+    }
+
+
+    // ******************** Event handling ************************************
+    public void addLocationEventListener(final LocationEventListener LISTENER)    { if (!listeners.contains(LISTENER)) listeners.add(LISTENER); }
+    public void removeLocationEventListener(final LocationEventListener LISTENER) { listeners.remove(LISTENER); }
+
+    private void fireLocationEvent(final LocationEvent EVENT) {
+        // Every change of the map ends up here
+        lastModified = System.currentTimeMillis();
+        version.incrementAndGet();
+        for (LocationEventListener listener : listeners) { listener.onLocationEvent(EVENT); }
+    }
+
+
+    // ******************** Private Methods ***********************************
+    /**
+     * Compare-and-set on the timestamp: stores the location if there is no
+     * cached location with the same name or if the cached one is not newer.
+     * Equal timestamps are accepted because the timestamps only have a
+     * resolution of one second.
+     * @param LOCATION
+     * @return ADDED, UPDATED or STALE if the cached location is newer
+     */
+    private WriteResult putIfNewer(final Location LOCATION) {
+        synchronized (getStripe(LOCATION.name)) {
+            final Location CACHED = locations.get(LOCATION.name);
+            if (null != CACHED && CACHED.timestamp.isAfter(LOCATION.timestamp)) {
+                stale.incrementAndGet();
+                return WriteResult.STALE;
+            }
+            locations.put(LOCATION.name, LOCATION);
+            fireLocationEvent(null == CACHED ? new LocationEvent(LocationEvent.EventType.ADDED, LOCATION) : new LocationEvent(LocationEvent.EventType.UPDATED, LOCATION, CACHED));
+            return null == CACHED ? WriteResult.ADDED : WriteResult.UPDATED;
+        }
+    }
+
+    // Writes of the same name are serialized so that the listeners get the events in the order of the changes
+    private Object getStripe(final String NAME) {
+        final int HASH = NAME.hashCode();
+        return stripes[(HASH ^ (HASH >>> 16)) & (NO_OF_STRIPES - 1)];
+    }
+
+    private void writeUpsert(final Location LOCATION, final boolean EXISTS) {
+        switch(consistencyMode) {
+            case WRITE_BEHIND: WriteBehindQueue.INSTANCE.upsert(LOCATION); break;
+            default          :
+                if (EXISTS) {
+                    LocationStore.INSTANCE.putLocation(LOCATION);
+                } else {
+                    LocationStore.INSTANCE.postLocation(LOCATION);
+                }
+                break;
+        }
+    }
+
+    private void writeDelete(final Location LOCATION) {
+        switch(consistencyMode) {
+            case WRITE_BEHIND: WriteBehindQueue.INSTANCE.delete(LOCATION); break;
+            default          : LocationStore.INSTANCE.deleteLocation(LOCATION); break;
+        }
+    }
+
+    private static ConsistencyMode getConsistencyMode(final String MODE) {
+        try {
+            return ConsistencyMode.valueOf(MODE.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return ConsistencyMode.WRITE_THROUGH;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ */
+public class LocationEvent {
+    public enum EventType { ADDED, UPDATED, REMOVED }
+
+    private final EventType type;
+    private final Location  location;
+    private final Location  oldLocation;
+
+
+    // ******************** Constructors **************************************
+    public LocationEvent(final EventType TYPE, final Location LOCATION) { this(TYPE, LOCATION, null); }
+    public LocationEvent(final EventType TYPE, final Location LOCATION, final Location OLD_LOCATION) {
+        type        = TYPE;
+        location    = LOCATION;
+        oldLocation = OLD_LOCATION;
+    }
+
+
+    // ******************** Methods *******************************************
+    public EventType getType() { return type; }
+
+    public Location getLocation() { return location; }
+
+    public Location getOldLocation() { return oldLocation; }
+}
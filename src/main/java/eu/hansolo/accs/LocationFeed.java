@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONObject;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Pushes changes of the cached locations to subscribed clients as
+ * Server-Sent Events (added, updated, removed). Every subscriber has its
+ * own bounded buffer so a slow client never blocks the writers or other
+ * clients. If the buffer is full new events will be dropped (DROP) or,
+ * with COALESCE, only the latest event per device will be kept.
+ * Subscribers can limit the feed to a set of names and/or a bounding box.
+ * Geofence events (enter, exit, dwell) are sent on their own channel.
+ *
+ * Configuration via environment variables:
+ * FEED_THREADS          threads that write to the subscribers     (default 4)
+ * FEED_BUFFER_SIZE      max number of buffered events per client  (default 1000)
+ * FEED_MAX_SUBSCRIBERS  max number of connected clients           (default 1000)
+ * FEED_HEARTBEAT        seconds between keep alive comments       (default 15)
+ */
+public enum LocationFeed implements LocationEventListener {
+    INSTANCE;
+
+    public enum Policy  { DROP, COALESCE }
+    public enum Channel { LOCATIONS, GEOFENCES }
+
+    private final Set<Subscriber>          subscribers;
+    private final ThreadPoolExecutor       writerExecutorService;
+    private final ScheduledExecutorService heartbeatExecutorService;
+    private final int                      bufferSize;
+    private final int                      maxSubscribers;
+    private final AtomicLong               eventId;
+    private final AtomicLong               sent;
+    private final AtomicLong               dropped;
+    private final AtomicLong               coalesced;
+
+
+    // ******************** Constructors **************************************
+    LocationFeed() {
+        final int  THREADS   = Math.max(1, Env.getInt("FEED_THREADS", 4));
+        final long HEARTBEAT = Math.max(1, Env.getLong("FEED_HEARTBEAT", 15));
+
+        subscribers              = new CopyOnWriteArraySet<>();
+        writerExecutorService    = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), Helper.getThreadFactory("LocationFeed", true));
+        heartbeatExecutorService = new ScheduledThreadPoolExecutor(1, Helper.getThreadFactory("LocationFeedHeartbeat", true));
+        bufferSize               = Math.max(1, Env.getInt("FEED_BUFFER_SIZE", 1_000));
+        maxSubscribers           = Math.max(1, Env.getInt("FEED_MAX_SUBSCRIBERS", 1_000));
+        eventId                  = new AtomicLong(0);
+        sent                     = new AtomicLong(0);
+        dropped                  = new AtomicLong(0);
+        coalesced                = new AtomicLong(0);
+
+        heartbeatExecutorService.scheduleAtFixedRate(() -> { for (Subscriber subscriber : subscribers) subscriber.ping(); }, HEARTBEAT, HEARTBEAT, TimeUnit.SECONDS);
+    }
+
+
+    // ******************** Methods *******************************************
+    @Override public void onLocationEvent(final LocationEvent EVENT) {
+        if (subscribers.isEmpty()) return;
+        // Serialized lazily and only once for all subscribers
+        FeedEvent feedEvent = null;
+        for (Subscriber subscriber : subscribers) {
+            if (Channel.LOCATIONS != subscriber.channel) continue;
+            if (!subscriber.filter.test(EVENT.getLocation()) && (null == EVENT.getOldLocation() || !subscriber.filter.test(EVENT.getOldLocation()))) continue;
+            if (null == feedEvent) { feedEvent = new FeedEvent(EVENT.getType().name().toLowerCase(), EVENT.getLocation()); }
+            subscriber.offer(feedEvent);
+        }
+    }
+
+    /**
+     * Sends the given event to all subscribers of the geofence channel
+     * whose filter matches the location that caused the event. Geofence
+     * events are never coalesced.
+     * @param TYPE
+     * @param DATA
+     * @param LOCATION
+     */
+    public void publish(final String TYPE, final JSONObject DATA, final Location LOCATION) {
+        if (subscribers.isEmpty()) return;
+        FeedEvent feedEvent = null;
+        for (Subscriber subscriber : subscribers) {
+            if (Channel.GEOFENCES != subscriber.channel || !subscriber.filter.test(LOCATION)) continue;
+            if (null == feedEvent) { feedEvent = new FeedEvent(TYPE, DATA); }
+            subscriber.offer(feedEvent);
+        }
+    }
+
+    public boolean isFull() { return subscribers.size() >= maxSubscribers; }
+
+    /**
+     * Turns the given request into an event stream. The response will be
+     * committed and stays open after the request handler returned.
+     * @param REQUEST
+     * @param RESPONSE
+     * @param CHANNEL location changes or geofence events
+     * @param FILTER only locations that match the filter will be sent
+     * @param POLICY what to do if the buffer of the subscriber is full
+     * @param SNAPSHOT if true all matching locations will be sent as added events first
+     * @throws IOException
+     */
+    public void subscribe(final HttpServletRequest REQUEST, final HttpServletResponse RESPONSE, final Channel CHANNEL, final Filter FILTER, final Policy POLICY, final boolean SNAPSHOT) throws IOException {
+        final OutputStream OUTPUT_STREAM = RESPONSE.getOutputStream();
+        OUTPUT_STREAM.write(": connected\n\n".getBytes(StandardCharsets.UTF_8));
+        OUTPUT_STREAM.flush();
+
+        final AsyncContext ASYNC_CONTEXT = REQUEST.startAsync();
+        ASYNC_CONTEXT.setTimeout(0);
+        final Subscriber SUBSCRIBER = new Subscriber(ASYNC_CONTEXT, OUTPUT_STREAM, CHANNEL, FILTER, POLICY);
+        ASYNC_CONTEXT.addListener(new AsyncListener() {
+            @Override public void onComplete(final AsyncEvent EVENT)   { subscribers.remove(SUBSCRIBER); }
+            @Override public void onTimeout(final AsyncEvent EVENT)    { SUBSCRIBER.close(); }
+            @Override public void onError(final AsyncEvent EVENT)      { SUBSCRIBER.close(); }
+            @Override public void onStartAsync(final AsyncEvent EVENT) { }
+        });
+        subscribers.add(SUBSCRIBER);
+        if (SNAPSHOT && Channel.LOCATIONS == CHANNEL) {
+            for (Location location : LocationCache.INSTANCE.getAll()) {
+                if (FILTER.test(location)) { SUBSCRIBER.offer(new FeedEvent("added", location)); }
+            }
+        }
+    }
+
+    public int getNoOfSubscribers() { return subscribers.size(); }
+
+    public JSONObject getStats() {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("subscribers", subscribers.size());
+        jsonObject.put("sent", sent.get());
+        jsonObject.put("dropped", dropped.get());
+        jsonObject.put("coalesced", coalesced.get());
+        return jsonObject;
+    }
+
+
+    // ******************** Inner Classes *************************************
+    /**
+     * Matches locations by name and/or bounding box, empty filters match all
+     */
+    public static class Filter {
+        private final Set<String> names;
+        private final double[]    bbox;
+
+        /**
+         * @param NAMES names of the locations of interest, empty for all
+         * @param BBOX minLat, minLon, maxLat, maxLon or null for all
+         */
+        public Filter(final Collection<String> NAMES, final double[] BBOX) {
+            names = NAMES.isEmpty() ? null : new HashSet<>(NAMES);
+            bbox  = BBOX;
+        }
+
+        public boolean test(final Location LOCATION) {
+            if (null != names && !names.contains(LOCATION.name)) return false;
+            if (null == bbox) return true;
+            if (LOCATION.latitude < bbox[0] || LOCATION.latitude > bbox[2]) return false;
+            // Boxes that cross the antimeridian have minLon > maxLon
+            return bbox[1] <= bbox[3] ? LOCATION.longitude >= bbox[1] && LOCATION.longitude <= bbox[3] : LOCATION.longitude >= bbox[1] || LOCATION.longitude <= bbox[3];
+        }
+    }
+
+    private class FeedEvent {
+        final long     id;
+        final String   name;
+        final String   type;
+        final Location location;
+        final String   data;
+        byte[]         bytes;
+
+        FeedEvent(final String TYPE, final Location LOCATION) {
+            id       = eventId.incrementAndGet();
+            name     = LOCATION.name;
+            type     = TYPE;
+            location = LOCATION;
+            data     = null;
+        }
+        FeedEvent(final String TYPE, final JSONObject DATA) {
+            id       = eventId.incrementAndGet();
+            // Unique key, so these events won't be coalesced
+            name     = "#" + id;
+            type     = TYPE;
+            location = null;
+            data     = DATA.toJSONString();
+        }
+
+        synchronized byte[] getBytes() {
+            if (null == bytes) {
+                StringWriter writer = new StringWriter(192);
+                try {
+                    writer.write("id: ");
+                    writer.write(Long.toString(id));
+                    writer.write("\nevent: ");
+                    writer.write(type);
+                    writer.write("\ndata: ");
+                    if (null == location) {
+                        writer.write(data);
+                    } else {
+                        location.writeJSON(writer);
+                    }
+                    writer.write("\n\n");
+                } catch (IOException e) {
+                    // StringWriter doesn't throw
+                }
+                bytes = writer.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            return bytes;
+        }
+    }
+
+    private class Subscriber {
+        final AsyncContext                     asyncContext;
+        final OutputStream                     outputStream;
+        final Channel                          channel;
+        final Filter                           filter;
+        final Policy                           policy;
+        final ArrayDeque<FeedEvent>            queue;
+        final LinkedHashMap<String, FeedEvent> latest;
+        final AtomicBoolean                    scheduled;
+        volatile boolean                       ping;
+        volatile boolean                       closed;
+
+        Subscriber(final AsyncContext ASYNC_CONTEXT, final OutputStream OUTPUT_STREAM, final Channel CHANNEL, final Filter FILTER, final Policy POLICY) {
+            asyncContext = ASYNC_CONTEXT;
+            outputStream = OUTPUT_STREAM;
+            channel      = CHANNEL;
+            filter       = FILTER;
+            policy       = POLICY;
+            queue        = new ArrayDeque<>();
+            latest       = new LinkedHashMap<>();
+            scheduled    = new AtomicBoolean(false);
+        }
+
+        void offer(final FeedEvent EVENT) {
+            if (closed) return;
+            synchronized (this) {
+                if (Policy.COALESCE == policy) {
+                    // Remove first so that the newer event moves to the end
+                    if (null != latest.remove(EVENT.name)) {
+                        coalesced.incrementAndGet();
+                    } else if (latest.size() >= bufferSize) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    latest.put(EVENT.name, EVENT);
+                } else {
+                    if (queue.size() >= bufferSize) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    queue.add(EVENT);
+                }
+            }
+            schedule();
+        }
+
+        void ping() {
+            ping = true;
+            schedule();
+        }
+
+        void schedule() {
+            if (closed || !scheduled.compareAndSet(false, true)) return;
+            try {
+                writerExecutorService.execute(() -> drain());
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+            }
+        }
+
+        // Only one drain per subscriber is running at a time
+        void drain() {
+            do {
+                write();
+                scheduled.set(false);
+            } while (!closed && hasPending() && scheduled.compareAndSet(false, true));
+        }
+
+        synchronized boolean hasPending() { return ping || !queue.isEmpty() || !latest.isEmpty(); }
+
+        void write() {
+            final List<FeedEvent> EVENTS;
+            synchronized (this) {
+                EVENTS = new ArrayList<>(Policy.COALESCE == policy ? latest.values() : queue);
+                latest.clear();
+                queue.clear();
+            }
+            if (closed) return;
+            try {
+                for (FeedEvent event : EVENTS) { outputStream.write(event.getBytes()); }
+                if (EVENTS.isEmpty() && ping) { outputStream.write(": ping\n\n".getBytes(StandardCharsets.UTF_8)); }
+                ping = false;
+                outputStream.flush();
+                sent.addAndGet(EVENTS.size());
+            } catch (IOException | RuntimeException e) {
+                // Client is gone
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            subscribers.remove(this);
+            try {
+                asyncContext.complete();
+            } catch (RuntimeException e) {
+                // Already completed
+            }
+        }
+    }
+}
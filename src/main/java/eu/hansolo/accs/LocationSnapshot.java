@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Immutable columnar copy of all locations. The coordinates are kept in
+ * parallel primitive arrays so that bulk operations run over contiguous
+ * memory without touching a single Location object. Entry i of every
+ * column belongs to the same location. The cosine of the latitude and the
+ * mercator y of the latitude are precomputed per entry, which leaves one
+ * sin/cos pair per entry for distances and one atan2 for bearings.
+ * Snapshots with more than PARALLEL_THRESHOLD entries are processed in
+ * chunks on the common fork/join pool.
+ */
+public class LocationSnapshot {
+    public  static final LocationSnapshot EMPTY              = new LocationSnapshot(0, 0, new Location[0], new double[0], new double[0], new double[0], new long[0], new double[0], new double[0]);
+    private static final double           EARTH_RADIUS       = 6_371_000; // m
+    private static final int              CHUNK_SIZE         = 4096;
+    private static final int              PARALLEL_THRESHOLD = 4 * CHUNK_SIZE;
+
+    private final long       version;
+    private final int        size;
+    private final Location[] locations;
+    private final double[]   latitudes;
+    private final double[]   longitudes;
+    private final double[]   altitudes;
+    private final long[]     timestamps;
+    private final double[]   cosLatitudes;
+    private final double[]   mercators;
+
+
+    // ******************** Constructors **************************************
+    // Takes ownership of the given arrays, they must not be changed afterwards
+    LocationSnapshot(final long VERSION, final int SIZE, final Location[] LOCATIONS, final double[] LATITUDES, final double[] LONGITUDES, final double[] ALTITUDES,
+                     final long[] TIMESTAMPS, final double[] COS_LATITUDES, final double[] MERCATORS) {
+        version      = VERSION;
+        size         = SIZE;
+        locations    = LOCATIONS;
+        latitudes    = LATITUDES;
+        longitudes   = LONGITUDES;
+        altitudes    = ALTITUDES;
+        timestamps   = TIMESTAMPS;
+        cosLatitudes = COS_LATITUDES;
+        mercators    = MERCATORS;
+    }
+
+
+    // ******************** Methods *******************************************
+    public long getVersion() { return version; }
+
+    public int size() { return size; }
+
+    public Location getLocation(final int INDEX) { return locations[checkIndex(INDEX)]; }
+
+    public String getName(final int INDEX) { return locations[checkIndex(INDEX)].name; }
+
+    public double getLatitude(final int INDEX) { return latitudes[checkIndex(INDEX)]; }
+
+    public double getLongitude(final int INDEX) { return longitudes[checkIndex(INDEX)]; }
+
+    public double getAltitude(final int INDEX) { return altitudes[checkIndex(INDEX)]; }
+
+    public long getTimestamp(final int INDEX) { return timestamps[checkIndex(INDEX)]; }
+
+    /**
+     * Great circle distances (haversine) from the given point to all locations
+     * @param LATITUDE
+     * @param LONGITUDE
+     * @return distance in meters per entry
+     */
+    public double[] getDistances(final double LATITUDE, final double LONGITUDE) {
+        final double   LAT_RAD = Math.toRadians(LATITUDE);
+        final double   COS_LAT = Math.cos(LAT_RAD);
+        final double[] RESULT  = new double[size];
+        forEachChunk((chunk, from, to) -> {
+            for (int i = from ; i < to ; i++) {
+                final double SIN_DELTA_LAT = Math.sin((Math.toRadians(latitudes[i]) - LAT_RAD) * 0.5);
+                final double SIN_DELTA_LON = Math.sin(Math.toRadians(longitudes[i] - LONGITUDE) * 0.5);
+                final double A             = SIN_DELTA_LAT * SIN_DELTA_LAT + COS_LAT * cosLatitudes[i] * SIN_DELTA_LON * SIN_DELTA_LON;
+                RESULT[i] = EARTH_RADIUS * 2 * Math.atan2(Math.sqrt(A), Math.sqrt(1 - A));
+            }
+        });
+        return RESULT;
+    }
+
+    /**
+     * Rhumb line bearings from the given point to all locations, same as
+     * Location.calcBearingInDegree()
+     * @param LATITUDE
+     * @param LONGITUDE
+     * @return bearing in degrees [0, 360) per entry
+     */
+    public double[] getBearings(final double LATITUDE, final double LONGITUDE) {
+        final double   LON_RAD  = Math.toRadians(LONGITUDE);
+        final double   MERCATOR = mercator(LATITUDE);
+        final double[] RESULT   = new double[size];
+        forEachChunk((chunk, from, to) -> {
+            for (int i = from ; i < to ; i++) {
+                double deltaLon = Math.toRadians(longitudes[i]) - LON_RAD;
+                if (deltaLon > Math.PI) {
+                    deltaLon -= 2.0 * Math.PI;
+                } else if (deltaLon < -Math.PI) {
+                    deltaLon += 2.0 * Math.PI;
+                }
+                RESULT[i] = (Math.toDegrees(Math.atan2(deltaLon, mercators[i] - MERCATOR)) + 360.0) % 360.0;
+            }
+        });
+        return RESULT;
+    }
+
+    /**
+     * Returns the indices of all locations inside of the given bounding
+     * box in ascending order. If MIN_LONGITUDE is larger than MAX_LONGITUDE
+     * the box crosses the antimeridian.
+     * @param MIN_LATITUDE
+     * @param MIN_LONGITUDE
+     * @param MAX_LATITUDE
+     * @param MAX_LONGITUDE
+     * @return indices of the locations inside of the box
+     */
+    public int[] getWithin(final double MIN_LATITUDE, final double MIN_LONGITUDE, final double MAX_LATITUDE, final double MAX_LONGITUDE) {
+        final boolean WRAPS   = MIN_LONGITUDE > MAX_LONGITUDE;
+        final int[][] MATCHES = new int[(size + CHUNK_SIZE - 1) / CHUNK_SIZE][];
+        forEachChunk((chunk, from, to) -> {
+            int[] matches = new int[to - from];
+            int   count   = 0;
+            for (int i = from ; i < to ; i++) {
+                final double  LAT    = latitudes[i];
+                final double  LON    = longitudes[i];
+                final boolean INSIDE = LAT >= MIN_LATITUDE && LAT <= MAX_LATITUDE && (WRAPS ? (LON >= MIN_LONGITUDE || LON <= MAX_LONGITUDE) : (LON >= MIN_LONGITUDE && LON <= MAX_LONGITUDE));
+                // Branch free, the index is always written but only counted if inside
+                matches[count] = i;
+                count += INSIDE ? 1 : 0;
+            }
+            MATCHES[chunk] = count == matches.length ? matches : Arrays.copyOf(matches, count);
+        });
+        int total = 0;
+        for (int[] matches : MATCHES) { total += matches.length; }
+        final int[] RESULT = new int[total];
+        int         index  = 0;
+        for (int[] matches : MATCHES) {
+            System.arraycopy(matches, 0, RESULT, index, matches.length);
+            index += matches.length;
+        }
+        return RESULT;
+    }
+
+
+    // ******************** Private Methods ***********************************
+    static double mercator(final double LATITUDE) { return Math.log(Math.tan(Math.toRadians(LATITUDE) * 0.5 + Math.PI * 0.25)); }
+
+    private int checkIndex(final int INDEX) {
+        if (INDEX < 0 || INDEX >= size) throw new IndexOutOfBoundsException("Index: " + INDEX + ", Size: " + size);
+        return INDEX;
+    }
+
+    private void forEachChunk(final ChunkAction ACTION) {
+        final int NO_OF_CHUNKS = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (size < PARALLEL_THRESHOLD) {
+            for (int chunk = 0 ; chunk < NO_OF_CHUNKS ; chunk++) { ACTION.apply(chunk, chunk * CHUNK_SIZE, Math.min(size, (chunk + 1) * CHUNK_SIZE)); }
+        } else {
+            ForkJoinPool.commonPool().invoke(new ChunkTask(ACTION, 0, NO_OF_CHUNKS, size));
+        }
+    }
+
+
+    // ******************** Inner Classes *************************************
+    @FunctionalInterface private interface ChunkAction {
+        void apply(int chunk, int from, int to);
+    }
+
+    // Splits the chunks in halves until a single chunk is left
+    private static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ChunkAction action;
+        private final int         fromChunk;
+        private final int         toChunk;
+        private final int         size;
+
+        ChunkTask(final ChunkAction ACTION, final int FROM_CHUNK, final int TO_CHUNK, final int SIZE) {
+            action    = ACTION;
+            fromChunk = FROM_CHUNK;
+            toChunk   = TO_CHUNK;
+            size      = SIZE;
+        }
+
+        @Override protected void compute() {
+            if (toChunk - fromChunk == 1) {
+                action.apply(fromChunk, fromChunk * CHUNK_SIZE, Math.min(size, toChunk * CHUNK_SIZE));
+            } else {
+                final int MID = (fromChunk + toChunk) >>> 1;
+                invokeAll(new ChunkTask(action, fromChunk, MID, size), new ChunkTask(action, MID, toChunk, size));
+            }
+        }
+    }
+}
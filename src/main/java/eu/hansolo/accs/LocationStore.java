@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Persistent storage of the locations. The backend is selected with the
+ * LOCATION_STORE environment variable:
+ * rest      the REST api of the RestClient (default)
+ * embedded  local append only log of the EmbeddedStore
+ */
+public interface LocationStore {
+    enum Type { REST, EMBEDDED }
+
+    LocationStore INSTANCE = Type.EMBEDDED.name().equalsIgnoreCase(Env.getString("LOCATION_STORE", Type.REST.name())) ? EmbeddedStore.INSTANCE : RestClient.INSTANCE;
+
+
+    JSONArray getAllLocations();
+
+    JSONObject getLocation(String NAME);
+
+    void postLocation(Location LOCATION);
+
+    void putLocation(Location LOCATION);
+
+    void putLocations(Collection<Location> LOCATIONS);
+
+    void deleteLocation(Location LOCATION);
+
+    void deleteLocations(Collection<String> NAMES);
+
+    /**
+     * Deletes all locations with a timestamp older than the given cutoff
+     * @param CUTOFF epoch second
+     * @param NAMES names of the expired locations that are known to the caller
+     */
+    void deleteLocationsOlderThan(long CUTOFF, Collection<String> NAMES);
+
+    /**
+     * Same as postLocation() but doesn't block the caller if the store
+     * has to wait for a remote call. The default implementation writes
+     * synchronously.
+     * @param LOCATION
+     * @return completes when the location has been written
+     */
+    default CompletableFuture<Void> postLocationAsync(final Location LOCATION) {
+        postLocation(LOCATION);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    default CompletableFuture<Void> putLocationAsync(final Location LOCATION) {
+        putLocation(LOCATION);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    default CompletableFuture<Void> putLocationsAsync(final Collection<Location> LOCATIONS) {
+        putLocations(LOCATIONS);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Releases the resources of the store, nothing will be written afterwards
+     */
+    default void close() {}
+}
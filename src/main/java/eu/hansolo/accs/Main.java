@@ -19,17 +19,73 @@ package eu.hansolo.accs;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
+import spark.Request;
+import spark.Response;
+import spark.Route;
 import spark.Spark;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 
 /**
  * Created by hansolo on 15.06.16.
+ *
+ * Configuration via environment variables:
+ * SERVER_MODE           BLOCKING: the request thread waits for the store,
+ *                       ASYNC: writes free the request thread until the store answered (default BLOCKING)
+ * SERVER_MAX_THREADS    max number of request threads, 0 = Spark default (default 0)
+ * SERVER_MIN_THREADS    min number of request threads                    (default 8)
+ * SERVER_ASYNC_TIMEOUT  max ms an async request may take                 (default 30000)
  */
 public class Main {
-    private static final Optional<String> PORT                = Optional.ofNullable(System.getenv("PORT"));
-    private enum UMLAUT {
+    enum ServerMode { BLOCKING, ASYNC }
+
+    private static final Optional<String>  PORT                = Optional.ofNullable(System.getenv("PORT"));
+    private static final int               MAX_NEAREST         = 1000;
+    private static final int               MAX_PAGE_SIZE       = 10_000;
+    private static final int               MAX_BATCH_SIZE      = Env.getInt("MAX_BATCH_SIZE", 10_000);
+    private static final int               MAX_HISTORY_POINTS  = 10_000;
+    private static final ServerMode        SERVER_MODE         = "async".equalsIgnoreCase(Env.getString("SERVER_MODE", "")) ? ServerMode.ASYNC : ServerMode.BLOCKING;
+    private static final long              ASYNC_TIMEOUT       = Env.getLong("SERVER_ASYNC_TIMEOUT", 30_000);
+    private static final DateTimeFormatter HTTP_DATE           = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    // The version of the cache starts at 0 with every start of the server
+    private static final String            ETAG_PREFIX         = "W/\"" + Long.toString(System.currentTimeMillis(), 36) + "-";
+    enum UMLAUT {
         Ae("\u00C4", "Ae"),
         Ue("\u00DC", "Ue"),
         Oe("\u00D6", "Oe"),
@@ -62,6 +118,21 @@ public class Main {
         // Port
         Spark.port(Integer.parseInt(PORT.get()));
 
+        // Request threads
+        final int MAX_THREADS = Env.getInt("SERVER_MAX_THREADS", 0);
+        if (MAX_THREADS > 0) { Spark.threadPool(MAX_THREADS, Math.min(MAX_THREADS, Env.getInt("SERVER_MIN_THREADS", 8)), 60_000); }
+
+        // Load all locations into memory before serving requests
+        LocationCache.INSTANCE.addLocationEventListener(SpatialIndex.INSTANCE);
+        LocationCache.INSTANCE.addLocationEventListener(Cleaner.INSTANCE);
+        LocationCache.INSTANCE.addLocationEventListener(LocationFeed.INSTANCE);
+        LocationCache.INSTANCE.addLocationEventListener(TrackStore.INSTANCE);
+        LocationCache.INSTANCE.addLocationEventListener(GeofenceEngine.INSTANCE);
+        LocationCache.INSTANCE.addLocationEventListener(ColumnStore.INSTANCE);
+        LocationCache.INSTANCE.addLocationEventListener(MovementFilter.INSTANCE);
+        LocationCache.INSTANCE.warm();
+        registerMetrics();
+
         // CORS filter
         Spark.before((request, response) -> {
             response.header("Access-Control-Allow-Origin", request.headers("origin"));
@@ -71,80 +142,891 @@ public class Main {
 
 
         // REST GET endpoints
-        Spark.get("/", (request, response) -> {
+        Spark.get("/", timed("GET", "/", (request, response) -> {
             response.type("application/json");
             return new JSONObject().toJSONString();
-        });
-        Spark.get("/locations", (request, response) -> {
+        }));
+        Spark.get("/locations", timed("GET", "/locations", (request, response) -> {
+            final boolean CBOR    = acceptsCbor(request);
+            final long    VERSION = LocationCache.INSTANCE.getVersion();
+            response.type(CBOR ? Cbor.CONTENT_TYPE : "application/json");
+            response.header("Vary", "Accept, Accept-Encoding");
+            final String AFTER = request.queryParams("after");
+            final String LIMIT = request.queryParams("limit");
+            // Paging, the name of the last location is the cursor for the next page
+            Optional<Double> limit = null == LIMIT ? Optional.of((double) MAX_PAGE_SIZE) : getDouble(LIMIT);
+            if (!limit.isPresent() || limit.get() < 1) {
+                response.status(400);
+                return new JSONObject().toJSONString();
+            }
+            if (isClustered(request)) {
+                // Every node answers with its own page, the merged page is cut to the limit again
+                final Collection<Location> LOCAL  = null == AFTER && null == LIMIT ? LocationCache.INSTANCE.getAll() : LocationCache.INSTANCE.getPage(AFTER, (int) Math.min(limit.get(), MAX_PAGE_SIZE));
+                List<Location>             merged = new ArrayList<>(gatherLocations(request, response, LOCAL).values());
+                if (null != AFTER || null != LIMIT) {
+                    final int PAGE_SIZE = (int) Math.min(limit.get(), MAX_PAGE_SIZE);
+                    if (merged.size() >= PAGE_SIZE) {
+                        merged = merged.subList(0, PAGE_SIZE);
+                        response.header("X-Next-After", merged.get(PAGE_SIZE - 1).name);
+                    }
+                }
+                writeLocations(request, response, merged, CBOR);
+                return "";
+            }
+            // Answered from the version of the cache without reading a single location
+            if (isNotModified(request, response, ETAG_PREFIX + Long.toHexString(VERSION) + (CBOR ? "-cbor\"" : "\""), LocationCache.INSTANCE.getLastModified())) return "";
+            if (null == AFTER && null == LIMIT) {
+                writeLocations(request, response, LocationCache.INSTANCE.getAll(), CBOR);
+                return "";
+            }
+            final int      PAGE_SIZE = (int) Math.min(limit.get(), MAX_PAGE_SIZE);
+            List<Location> page      = LocationCache.INSTANCE.getPage(AFTER, PAGE_SIZE);
+            if (page.size() == PAGE_SIZE) { response.header("X-Next-After", page.get(PAGE_SIZE - 1).name); }
+            writeLocations(request, response, page, CBOR);
+            return "";
+        }));
+        Spark.get("/location", timed("GET", "/location", (request, response) -> {
             response.type("application/json");
-            return RestClient.INSTANCE.getAllLocations().toJSONString();
-        });
-        Spark.get("/location", (request, response) -> {
+            final String NAME = request.queryParams("name");
+            if (null != NAME && isClustered(request) && !Cluster.INSTANCE.isLocal(NAME)) return forward(request, response, Cluster.INSTANCE.getOwner(NAME));
+            final Optional<Location> LOCATION = LocationCache.INSTANCE.get(request.queryParams("name"));
+            if (LOCATION.isPresent() && isNotModified(request, response, getETag(LOCATION.get()), LOCATION.get().timestamp.toEpochMilli())) return "";
+            return LOCATION.map(Location::toJSON).orElse(new JSONObject());
+        }));
+        Spark.get("/nearby", timed("GET", "/nearby", (request, response) -> {
+            response.type("application/json");
+            Optional<Double> latitude  = getDouble(request.queryParams("lat"));
+            Optional<Double> longitude = getDouble(request.queryParams("lon"));
+            Optional<Double> radius    = getDouble(request.queryParams("radius"));
+            if (!latitude.isPresent() || !longitude.isPresent() || !radius.isPresent()) {
+                response.status(400);
+                return new JSONObject().toJSONString();
+            }
+            final JSONArray NEARBY = SpatialIndex.toJSON(SpatialIndex.INSTANCE.getNearby(latitude.get(), longitude.get(), radius.get()));
+            return (isClustered(request) ? gatherNeighbours(request, response, NEARBY, Integer.MAX_VALUE) : NEARBY).toJSONString();
+        }));
+        Spark.get("/nearest", timed("GET", "/nearest", (request, response) -> {
+            response.type("application/json");
+            Optional<Double> latitude  = getDouble(request.queryParams("lat"));
+            Optional<Double> longitude = getDouble(request.queryParams("lon"));
+            int              k         = getDouble(request.queryParams("k")).orElse(1d).intValue();
+            if (!latitude.isPresent() || !longitude.isPresent()) {
+                response.status(400);
+                return new JSONObject().toJSONString();
+            }
+            final JSONArray NEAREST = SpatialIndex.toJSON(SpatialIndex.INSTANCE.getNearest(latitude.get(), longitude.get(), Math.min(k, MAX_NEAREST)));
+            return (isClustered(request) ? gatherNeighbours(request, response, NEAREST, Math.min(k, MAX_NEAREST)) : NEAREST).toJSONString();
+        }));
+        Spark.get("/history", timed("GET", "/history", (request, response) -> {
+            response.type("application/json");
+            final String NAME = request.queryParams("name");
+            final long   FROM = getDouble(request.queryParams("from")).orElse(0d).longValue();
+            final long   TO   = getDouble(request.queryParams("to")).orElse((double) Instant.now().getEpochSecond()).longValue();
+            final int    MAX  = (int) Math.max(2, Math.min(MAX_HISTORY_POINTS, getDouble(request.queryParams("max")).orElse(1000d)));
+            if (null == NAME || FROM > TO) {
+                response.status(400);
+                return new JSONObject().toJSONString();
+            }
+            // The history is kept by the owner of the device
+            if (isClustered(request) && !Cluster.INSTANCE.isLocal(NAME)) return forward(request, response, Cluster.INSTANCE.getOwner(NAME));
+            final TrackStore.Downsampling DOWNSAMPLING = "bucket".equalsIgnoreCase(request.queryParams("mode")) ? TrackStore.Downsampling.TIME_BUCKET : TrackStore.Downsampling.DOUGLAS_PEUCKER;
+            final double                  EPSILON      = getDouble(request.queryParams("epsilon")).orElse(0d);
+            return TrackStore.INSTANCE.getHistory(NAME, FROM, TO, MAX, DOWNSAMPLING, EPSILON).toJSONString();
+        }));
+        Spark.get("/locations/within", timed("GET", "/locations/within", (request, response) -> {
+            // bbox=minLat,minLon,maxLat,maxLon, minLon > maxLon crosses the antimeridian
+            final boolean CBOR = acceptsCbor(request);
+            response.type(CBOR ? Cbor.CONTENT_TYPE : "application/json");
+            final Optional<double[]> BBOX = getBoundingBox(request.queryParams("bbox"));
+            if (!BBOX.isPresent()) {
+                response.status(400);
+                return new JSONObject().toJSONString();
+            }
+            final LocationSnapshot SNAPSHOT = ColumnStore.INSTANCE.getSnapshot();
+            final int[]            INDICES  = SNAPSHOT.getWithin(BBOX.get()[0], BBOX.get()[1], BBOX.get()[2], BBOX.get()[3]);
+            final List<Location>   WITHIN   = new ArrayList<>(INDICES.length);
+            for (int index : INDICES) { WITHIN.add(SNAPSHOT.getLocation(index)); }
+            writeLocations(request, response, isClustered(request) ? gatherLocations(request, response, WITHIN).values() : WITHIN, CBOR);
+            return "";
+        }));
+        Spark.get("/locations/stream", timed("GET", "/locations/stream", (request, response) -> subscribe(request, response, LocationFeed.Channel.LOCATIONS)));
+        Spark.get("/geofences", timed("GET", "/geofences", (request, response) -> {
+            response.type("application/json");
+            return GeofenceEngine.INSTANCE.getAllAsJSON().toJSONString();
+        }));
+        Spark.get("/geofences/stream", timed("GET", "/geofences/stream", (request, response) -> subscribe(request, response, LocationFeed.Channel.GEOFENCES)));
+        Spark.get("/stats/pool", timed("GET", "/stats/pool", (request, response) -> {
+            response.type("application/json");
+            return ConnectionPool.INSTANCE.getStats().toJSONString();
+        }));
+        Spark.get("/stats/geocoder", timed("GET", "/stats/geocoder", (request, response) -> {
             response.type("application/json");
-            return RestClient.INSTANCE.getLocation(request.queryParams("name"));
+            JSONObject stats = Geocoder.INSTANCE.getStats();
+            stats.put("cache", GeocodeCache.INSTANCE.getStats());
+            return stats.toJSONString();
+        }));
+        Spark.get("/stats/writes", timed("GET", "/stats/writes", (request, response) -> {
+            response.type("application/json");
+            return WriteBehindQueue.INSTANCE.getStats().toJSONString();
+        }));
+        Spark.get("/stats/feed", timed("GET", "/stats/feed", (request, response) -> {
+            response.type("application/json");
+            return LocationFeed.INSTANCE.getStats().toJSONString();
+        }));
+        Spark.get("/stats/geofences", timed("GET", "/stats/geofences", (request, response) -> {
+            response.type("application/json");
+            return GeofenceEngine.INSTANCE.getStats().toJSONString();
+        }));
+        Spark.get("/stats/cluster", timed("GET", "/stats/cluster", (request, response) -> {
+            response.type("application/json");
+            return Cluster.INSTANCE.getStats().toJSONString();
+        }));
+        Spark.get("/stats/movement", timed("GET", "/stats/movement", (request, response) -> {
+            response.type("application/json");
+            return MovementFilter.INSTANCE.getStats().toJSONString();
+        }));
+        Spark.get("/stats/admission", timed("GET", "/stats/admission", (request, response) -> {
+            response.type("application/json");
+            return AdmissionControl.INSTANCE.getStats().toJSONString();
+        }));
+        Spark.get("/stats/dependencies", timed("GET", "/stats/dependencies", (request, response) -> {
+            response.type("application/json");
+            JSONObject stats = new JSONObject();
+            for (Dependency dependency : Dependency.values()) { stats.put(dependency.name().toLowerCase(), dependency.getStats()); }
+            return stats.toJSONString();
+        }));
+        Spark.get("/metrics", (request, response) -> {
+            response.type("text/plain; version=0.0.4; charset=utf-8");
+            return Metrics.INSTANCE.scrape();
         });
 
 
         // REST POST endpoints
-        Spark.post("/add", (request, response) -> {
-            response.status(200);
-            if (request.contentType().equals("application/json") ||
-                request.contentType().equals("application/json; charset=utf-8") ||
-                request.contentType().equals("text/plain")) {
-                Object obj = JSONValue.parse(request.body());
-                return addLocation(new Location((JSONObject) obj));
-            }
-            return String.join(" ", "{", "}");
-        });
+        Spark.post("/add", timed("POST", "/add", (request, response) -> upsertLocation(request, response, false)));
+
+        Spark.put("/update", timed("PUT", "/update", (request, response) -> upsertLocation(request, response, true)));
+
+        Spark.post("/locations/batch", timed("POST", "/locations/batch", (request, response) -> {
+            // A batch is written with one bulk call, so it counts as one write of the client
+            final Object REJECTED = admitWrite(request, response);
+            if (null != REJECTED) return REJECTED;
+            response.type("application/json");
+            final String CONTENT_TYPE = null == request.contentType() ? "" : request.contentType().toLowerCase();
+            final List<?> ITEMS;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(request.raw().getInputStream(), StandardCharsets.UTF_8))) {
+                ITEMS = CONTENT_TYPE.startsWith("application/x-ndjson") ? parseNdjson(reader) : parseArray(reader);
+            }
+            if (null == ITEMS) {
+                response.status(400);
+                return new JSONObject().toJSONString();
+            }
+            if (ITEMS.size() > MAX_BATCH_SIZE) {
+                response.status(413);
+                return new JSONObject().toJSONString();
+            }
+            final CompletableFuture<JSONObject> RESULT = addLocations(ITEMS, isClustered(request));
+            return ServerMode.ASYNC == SERVER_MODE ? respondAsync(request, RESULT.thenApply(Main::toBytes)) : RESULT.join().toJSONString();
+        }));
 
-        Spark.put("/update", (request, response) -> {
-            response.status(200);
-            if (request.contentType().equals("application/json") ||
-                request.contentType().equals("application/json; charset=utf-8") ||
-                request.contentType().equals("text/plain")) {
-                Object obj = JSONValue.parse(request.body());
-                return updateLocation(new Location((JSONObject) obj));
+        Spark.post("/geofences", timed("POST", "/geofences", (request, response) -> {
+            // Single geofence or array of geofences, existing ones with the same name will be replaced
+            response.type("application/json");
+            final Object         OBJ    = JSONValue.parse(request.body());
+            final List<Geofence> FENCES = new ArrayList<>();
+            try {
+                if (OBJ instanceof JSONObject) {
+                    FENCES.add(Geofence.fromJSON((JSONObject) OBJ, GeofenceEngine.INSTANCE.getDefaultDwellTime()));
+                } else if (OBJ instanceof JSONArray) {
+                    for (Object item : (JSONArray) OBJ) {
+                        if (!(item instanceof JSONObject)) throw new IllegalArgumentException("geofence must be an object");
+                        FENCES.add(Geofence.fromJSON((JSONObject) item, GeofenceEngine.INSTANCE.getDefaultDwellTime()));
+                    }
+                } else {
+                    throw new IllegalArgumentException("invalid json");
+                }
+            } catch (IllegalArgumentException e) {
+                response.status(400);
+                JSONObject error = new JSONObject();
+                error.put("error", e.getMessage());
+                return error.toJSONString();
             }
-            return String.join(" ", "{", "}");
+            JSONArray jsonArray = new JSONArray();
+            for (Geofence fence : FENCES) {
+                GeofenceEngine.INSTANCE.add(fence);
+                jsonArray.add(fence.toJSON());
+            }
+            return jsonArray.toJSONString();
+        }));
+
+
+        // REST DELETE endpoints
+        Spark.delete("/geofence", timed("DELETE", "/geofence", (request, response) -> {
+            response.type("application/json");
+            Optional<Geofence> fence = null == request.queryParams("name") ? Optional.empty() : GeofenceEngine.INSTANCE.remove(request.queryParams("name"));
+            if (!fence.isPresent()) { response.status(404); }
+            return fence.map(Geofence::toJSON).orElse(new JSONObject()).toJSONString();
+        }));
+
+        // The store didn't confirm a write, the cache already contains the location
+        Spark.exception(UncheckedIOException.class, (exception, request, response) -> {
+            System.out.println("Error: " + exception);
+            response.status(503);
+            response.type("application/json");
+            response.body(storeNotAvailable());
         });
 
         Cleaner.INSTANCE.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            Geocoder.INSTANCE.stop();
+            GeocodeCache.INSTANCE.save();
+            LocationCache.INSTANCE.stop();
+            Cluster.INSTANCE.stop();
+            LocationStore.INSTANCE.close();
+            ConnectionPool.INSTANCE.close();
+        }, "ShutdownHook"));
     }
 
 
     // ******************** Methods *******************************************
-    private JSONObject addLocation(final Location LOCATION) {
-        LOCATION.info = updateInfo(LOCATION);
-        RestClient.INSTANCE.postLocation(LOCATION);
-        return LOCATION.toJSON();
+    // Records the duration and the status code of every request to the given route
+    private static Route timed(final String METHOD, final String PATH, final Route ROUTE) {
+        final String LABELS = "method=\"" + METHOD + "\",route=\"" + PATH + "\"";
+        return (request, response) -> {
+            final long   START = System.nanoTime();
+            final Object RESULT;
+            try {
+                RESULT = ROUTE.handle(request, response);
+            } catch (Exception e) {
+                record(LABELS, START, e instanceof UncheckedIOException ? 503 : 500);
+                throw e;
+            }
+            if (request.raw().isAsyncStarted()) {
+                // Record once the async response is complete
+                request.raw().getAsyncContext().addListener(new AsyncListener() {
+                    @Override public void onComplete(final AsyncEvent EVENT)   { record(LABELS, START, ((HttpServletResponse) EVENT.getSuppliedResponse()).getStatus()); }
+                    @Override public void onTimeout(final AsyncEvent EVENT)    { }
+                    @Override public void onError(final AsyncEvent EVENT)      { }
+                    @Override public void onStartAsync(final AsyncEvent EVENT) { }
+                });
+            } else {
+                // Spark sets the default status after the route returned
+                record(LABELS, START, 0 == response.raw().getStatus() ? 200 : response.raw().getStatus());
+            }
+            return RESULT;
+        };
+    }
+
+    private static void record(final String LABELS, final long START, final int STATUS) {
+        Metrics.INSTANCE.observe("accs_http_request_duration_seconds", "Duration of the requests per route", LABELS, System.nanoTime() - START);
+        Metrics.INSTANCE.increment("accs_http_requests_total", "Requests per route and status code", LABELS + ",status=\"" + STATUS + "\"");
     }
 
-    private JSONObject updateLocation(final Location LOCATION) {
-        LOCATION.info = updateInfo(LOCATION);
-        RestClient.INSTANCE.putLocation(LOCATION);
-        return LOCATION.toJSON();
+    private static void registerMetrics() {
+        final Metrics METRICS = Metrics.INSTANCE;
+        METRICS.gauge("accs_locations", "Number of cached locations", "", () -> LocationCache.INSTANCE.size());
+        METRICS.counter("accs_cache_hits_total", "Cache hits", "cache=\"location\"", () -> LocationCache.INSTANCE.getHits());
+        METRICS.counter("accs_cache_misses_total", "Cache misses", "cache=\"location\"", () -> LocationCache.INSTANCE.getMisses());
+        METRICS.counter("accs_cache_hits_total", "Cache hits", "cache=\"geocode\"", () -> GeocodeCache.INSTANCE.getHits());
+        METRICS.counter("accs_cache_misses_total", "Cache misses", "cache=\"geocode\"", () -> GeocodeCache.INSTANCE.getMisses());
+        METRICS.gauge("accs_cache_hit_ratio", "Hits / (hits + misses)", "cache=\"location\"", () -> getRatio(LocationCache.INSTANCE.getHits(), LocationCache.INSTANCE.getMisses()));
+        METRICS.gauge("accs_cache_hit_ratio", "Hits / (hits + misses)", "cache=\"geocode\"", () -> getRatio(GeocodeCache.INSTANCE.getHits(), GeocodeCache.INSTANCE.getMisses()));
+        METRICS.gauge("accs_cleaner_last_run_duration_seconds", "Duration of the last cleaner run", "", () -> Cleaner.INSTANCE.getLastRunDuration() / 1000.0);
+        METRICS.gauge("accs_cleaner_last_run_evicted", "Locations evicted by the last cleaner run", "", () -> Cleaner.INSTANCE.getLastRunEvicted());
+        METRICS.gauge("accs_geocoder_queue_size", "Pending geocoder lookups", "", () -> Geocoder.INSTANCE.getQueueSize());
+        METRICS.gauge("accs_write_behind_queue_size", "Pending writes in WRITE_BEHIND mode", "", () -> WriteBehindQueue.INSTANCE.size());
+        METRICS.gauge("accs_feed_subscribers", "Connected event stream clients", "", () -> LocationFeed.INSTANCE.getNoOfSubscribers());
+        METRICS.gauge("accs_pool_connections", "Connections of the http connection pool", "state=\"leased\"", () -> ConnectionPool.INSTANCE.getTotalStats().getLeased());
+        METRICS.gauge("accs_pool_connections", "Connections of the http connection pool", "state=\"available\"", () -> ConnectionPool.INSTANCE.getTotalStats().getAvailable());
+        METRICS.gauge("accs_pool_connections", "Connections of the http connection pool", "state=\"pending\"", () -> ConnectionPool.INSTANCE.getTotalStats().getPending());
+        METRICS.counter("accs_movement_filter_total", "Updates per result of the movement filter", "result=\"suppressed\"", () -> MovementFilter.INSTANCE.getSuppressed());
+        METRICS.counter("accs_movement_filter_total", "Updates per result of the movement filter", "result=\"written\"", () -> MovementFilter.INSTANCE.getWritten());
+        METRICS.counter("accs_admission_shed_total", "Writes rejected because the server is overloaded", "", () -> AdmissionControl.INSTANCE.getShed());
+        METRICS.counter("accs_rate_limited_total", "Writes rejected by the rate limits", "limit=\"name\"", () -> AdmissionControl.INSTANCE.getLimitedNames());
+        METRICS.counter("accs_rate_limited_total", "Writes rejected by the rate limits", "limit=\"ip\"", () -> AdmissionControl.INSTANCE.getLimitedClients());
+        for (Dependency dependency : Dependency.values()) {
+            final String LABELS = "dependency=\"" + dependency.name().toLowerCase() + "\"";
+            METRICS.gauge("accs_circuit_breaker_open", "1 if the circuit breaker of the dependency is open", LABELS, () -> dependency.isAvailable() ? 0 : 1);
+            METRICS.gauge("accs_bulkhead_in_flight", "Concurrent calls to the dependency", LABELS, () -> dependency.getInFlight());
+            METRICS.gauge("accs_outbound_latency_seconds", "Moving average of the call durations", LABELS, () -> dependency.getLatency() / 1000.0);
+        }
     }
 
-    private String updateInfo(final Location LOCATION) {
-        if (LOCATION.isZero()) return "";
+    private static double getRatio(final long HITS, final long MISSES) { return HITS + MISSES == 0 ? Double.NaN : (double) HITS / (HITS + MISSES); }
 
-        JSONObject   json   = RestClient.INSTANCE.getAddress(LOCATION.latitude, LOCATION.longitude);
-        final String STATUS = json.get("status").toString();
-        if (STATUS.equals("OK")) {
-            JSONArray  results           = (JSONArray) json.get("results");
-            JSONObject addressComponents = (JSONObject) results.get(0);
-            String[]   formattedAddress  = addressComponents.get("formatted_address").toString().split(",");
-            int        length            = formattedAddress.length;
-            if (length > 2) {
-                String city    = UMLAUT.replaceUmlauts(formattedAddress[length - 2].trim().replaceAll("\\P{L}+", ""));
-                String country = formattedAddress[length - 1].trim();
-                return String.join("", city, ", ", country);
+    /**
+     * Turns the request into an event stream of the given channel
+     * Optional filters: names=a,b  bbox=minLat,minLon,maxLat,maxLon
+     */
+    private String subscribe(final Request REQUEST, final Response RESPONSE, final LocationFeed.Channel CHANNEL) throws IOException {
+        final String       NAMES = REQUEST.queryParams("names");
+        final String       BBOX  = REQUEST.queryParams("bbox");
+        final List<String> names = new ArrayList<>();
+        if (null != NAMES) { for (String name : NAMES.split(",")) { if (!name.trim().isEmpty()) names.add(name.trim()); } }
+        double[] bbox = null;
+        if (null != BBOX) {
+            bbox = getBoundingBox(BBOX).orElse(null);
+            if (null == bbox) {
+                RESPONSE.status(400);
+                return new JSONObject().toJSONString();
             }
-        } else {
-            return "";
         }
+        if (LocationFeed.INSTANCE.isFull()) {
+            RESPONSE.status(503);
+            return new JSONObject().toJSONString();
+        }
+        final LocationFeed.Policy POLICY = "drop".equalsIgnoreCase(REQUEST.queryParams("policy")) ? LocationFeed.Policy.DROP : LocationFeed.Policy.COALESCE;
+        RESPONSE.type("text/event-stream");
+        RESPONSE.header("Cache-Control", "no-cache");
+        LocationFeed.INSTANCE.subscribe(REQUEST.raw(), RESPONSE.raw(), CHANNEL, new LocationFeed.Filter(names, bbox), POLICY, "true".equalsIgnoreCase(REQUEST.queryParams("snapshot")));
         return "";
     }
 
+    /**
+     * Adds or updates the location of the request body. Locations that are
+     * older than the cached one are answered with 409 and the cached location.
+     * In ASYNC mode the stale check is done before the request thread is
+     * freed, the response only waits for the store.
+     * @param REQUEST
+     * @param RESPONSE
+     * @param FILTER true if updates without a significant movement only refresh the timestamp of the cached location
+     * @return the stored location with the resolved info
+     */
+    private Object upsertLocation(final Request REQUEST, final Response RESPONSE, final boolean FILTER) {
+        RESPONSE.status(200);
+        final Object REJECTED = admitWrite(REQUEST, RESPONSE);
+        if (null != REJECTED) return REJECTED;
+        final Location LOCATION = readLocation(REQUEST, RESPONSE);
+        if (null == LOCATION) return String.join(" ", "{", "}");
+        if (isClustered(REQUEST) && !Cluster.INSTANCE.isLocal(LOCATION.name)) return forward(REQUEST, RESPONSE, Cluster.INSTANCE.getOwner(LOCATION.name));
+        final long NAME_RETRY_AFTER = AdmissionControl.INSTANCE.checkName(LOCATION.name);
+        if (NAME_RETRY_AFTER > 0) return tooManyRequests(RESPONSE, NAME_RETRY_AFTER, "rate limit of " + LOCATION.name + " exceeded");
+        final boolean CBOR = acceptsCbor(REQUEST);
+        RESPONSE.type(CBOR ? Cbor.CONTENT_TYPE : "application/json");
+
+        final Location TOUCHED = FILTER ? MovementFilter.INSTANCE.suppress(LOCATION) : null;
+        if (null != TOUCHED) return CBOR ? Cbor.encode(TOUCHED) : TOUCHED.toJSON();
+
+        final List<Location> UNRESOLVED = new ArrayList<>(1);
+        final Location       RESOLVED   = resolveInfo(LOCATION, UNRESOLVED);
+        if (ServerMode.ASYNC == SERVER_MODE) {
+            final CompletableFuture<LocationCache.WriteResult> WRITTEN = LocationCache.INSTANCE.upsertAsync(RESOLVED);
+            if (LocationCache.WriteResult.STALE == WRITTEN.getNow(null)) return rejectStale(LOCATION.name, RESPONSE, CBOR);
+            UNRESOLVED.forEach(Geocoder.INSTANCE::enrich);
+            return respondAsync(REQUEST, WRITTEN.thenApply(result -> toBytes(RESOLVED, CBOR)));
+        }
+        if (LocationCache.WriteResult.STALE == LocationCache.INSTANCE.add(RESOLVED)) return rejectStale(LOCATION.name, RESPONSE, CBOR);
+        UNRESOLVED.forEach(Geocoder.INSTANCE::enrich);
+        return CBOR ? Cbor.encode(RESOLVED) : RESOLVED.toJSON();
+    }
+
+    /**
+     * Sheds the write if the server is overloaded or the client sent too
+     * many writes. The rate limit per device name is checked once the body
+     * has been parsed.
+     * @param REQUEST
+     * @param RESPONSE
+     * @return null if the write is admitted, otherwise the body of the 429 response
+     */
+    private static Object admitWrite(final Request REQUEST, final Response RESPONSE) {
+        final long LOAD_RETRY_AFTER = AdmissionControl.INSTANCE.checkLoad();
+        if (LOAD_RETRY_AFTER > 0) return tooManyRequests(RESPONSE, LOAD_RETRY_AFTER, "overloaded");
+        // Writes forwarded by another node have been counted for the client there
+        final long CLIENT_RETRY_AFTER = isInternal(REQUEST) ? 0 : AdmissionControl.INSTANCE.checkClient(REQUEST.raw());
+        if (CLIENT_RETRY_AFTER > 0) return tooManyRequests(RESPONSE, CLIENT_RETRY_AFTER, "rate limit of client exceeded");
+        return null;
+    }
+
+    private static String tooManyRequests(final Response RESPONSE, final long RETRY_AFTER, final String ERROR) {
+        RESPONSE.status(429);
+        RESPONSE.type("application/json");
+        RESPONSE.header("Retry-After", Long.toString(RETRY_AFTER));
+        JSONObject error = new JSONObject();
+        error.put("error", ERROR);
+        return error.toJSONString();
+    }
+
+    // ******************** Cluster *******************************************
+    // Requests of other nodes are answered with the local data only
+    private static boolean isInternal(final Request REQUEST) { return Cluster.INSTANCE.isPeer(REQUEST.headers(Cluster.NODE_HEADER), REQUEST.headers(Cluster.SECRET_HEADER), REQUEST.ip()); }
+
+    private static boolean isClustered(final Request REQUEST) { return Cluster.INSTANCE.isEnabled() && !isInternal(REQUEST); }
+
+    private static String getPath(final Request REQUEST) {
+        final String QUERY = REQUEST.raw().getQueryString();
+        return REQUEST.pathInfo() + (null == QUERY ? "" : "?" + QUERY);
+    }
+
+    // Sends the request to the owner of the device and its answer to the client
+    private static Object forward(final Request REQUEST, final Response RESPONSE, final String NODE) {
+        final byte[]                  BODY  = "GET".equals(REQUEST.requestMethod()) ? null : REQUEST.bodyAsBytes();
+        final Optional<Cluster.Reply> REPLY = Cluster.INSTANCE.forward(NODE, REQUEST.requestMethod(), getPath(REQUEST), REQUEST.contentType(), REQUEST.headers("Accept"), BODY);
+        if (!REPLY.isPresent()) {
+            RESPONSE.status(503);
+            RESPONSE.type("application/json");
+            JSONObject error = new JSONObject();
+            error.put("error", "owner " + NODE + " not available");
+            return error.toJSONString();
+        }
+        RESPONSE.status(REPLY.get().status);
+        if (null != REPLY.get().contentType) { RESPONSE.type(REPLY.get().contentType); }
+        if (null != REPLY.get().retryAfter)  { RESPONSE.header("Retry-After", REPLY.get().retryAfter); }
+        return REPLY.get().body;
+    }
+
+    /**
+     * Adds the locations of all other nodes for the same request to the
+     * given local ones. If a node doesn't answer the result is incomplete,
+     * which is signalled by the header X-Cluster-Missing.
+     * @param REQUEST
+     * @param RESPONSE
+     * @param LOCAL
+     * @return the locations of all nodes ordered by name
+     */
+    private static NavigableMap<String, Location> gatherLocations(final Request REQUEST, final Response RESPONSE, final Collection<Location> LOCAL) {
+        final NavigableMap<String, Location> MERGED = new TreeMap<>();
+        for (Location location : LOCAL) { MERGED.put(location.name, location); }
+        int missing = 0;
+        for (Optional<JSONArray> reply : Cluster.INSTANCE.gather(getPath(REQUEST))) {
+            if (!reply.isPresent()) {
+                missing++;
+                continue;
+            }
+            for (Object obj : reply.get()) {
+                final Location LOCATION = new Location((JSONObject) obj);
+                MERGED.merge(LOCATION.name, LOCATION, (oldLocation, newLocation) -> newLocation.timestamp.isAfter(oldLocation.timestamp) ? newLocation : oldLocation);
+            }
+        }
+        if (missing > 0) { RESPONSE.header("X-Cluster-Missing", Integer.toString(missing)); }
+        return MERGED;
+    }
+
+    // Same as gatherLocations() for results with a distance, returns the MAX closest ones
+    private static JSONArray gatherNeighbours(final Request REQUEST, final Response RESPONSE, final JSONArray LOCAL, final int MAX) {
+        final List<JSONObject> MERGED = new ArrayList<>();
+        for (Object obj : LOCAL) { MERGED.add((JSONObject) obj); }
+        int missing = 0;
+        for (Optional<JSONArray> reply : Cluster.INSTANCE.gather(getPath(REQUEST))) {
+            if (!reply.isPresent()) {
+                missing++;
+                continue;
+            }
+            for (Object obj : reply.get()) { MERGED.add((JSONObject) obj); }
+        }
+        if (missing > 0) { RESPONSE.header("X-Cluster-Missing", Integer.toString(missing)); }
+        MERGED.sort(Comparator.comparingDouble(neighbour -> ((Number) neighbour.get("distance")).doubleValue()));
+        JSONArray jsonArray = new JSONArray();
+        jsonArray.addAll(MERGED.subList(0, Math.min(MAX, MERGED.size())));
+        return jsonArray;
+    }
+
+    // Answers with 409 and the cached location that is newer than the one of the request
+    private static Object rejectStale(final String NAME, final Response RESPONSE, final boolean CBOR) {
+        RESPONSE.status(409);
+        final Optional<Location> CACHED = LocationCache.INSTANCE.get(NAME);
+        if (!CACHED.isPresent()) return String.join(" ", "{", "}");
+        return CBOR ? Cbor.encode(CACHED.get()) : CACHED.get().toJSON();
+    }
+
+    /**
+     * Parses a location from a json or cbor body
+     * @param REQUEST
+     * @param RESPONSE status will be set to 400 if the cbor is malformed
+     * @return null if the content type is not supported or the body is malformed
+     */
+    private static Location readLocation(final Request REQUEST, final Response RESPONSE) {
+        final String CONTENT_TYPE = null == REQUEST.contentType() ? "" : REQUEST.contentType();
+        if (Cbor.isCbor(CONTENT_TYPE)) {
+            try {
+                return Cbor.decode(REQUEST.bodyAsBytes());
+            } catch (IllegalArgumentException e) {
+                RESPONSE.status(400);
+                return null;
+            }
+        }
+        if (CONTENT_TYPE.equals("application/json") ||
+            CONTENT_TYPE.equals("application/json; charset=utf-8") ||
+            CONTENT_TYPE.equals("text/plain")) {
+            return new Location((JSONObject) JSONValue.parse(REQUEST.body()));
+        }
+        return null;
+    }
+
+    // Cbor if the client accepts it or sent cbor without asking for something else
+    private static boolean acceptsCbor(final Request REQUEST) {
+        final String ACCEPT = REQUEST.headers("Accept");
+        if (Cbor.isCbor(ACCEPT)) return true;
+        return (null == ACCEPT || ACCEPT.trim().isEmpty() || ACCEPT.trim().equals("*/*")) && Cbor.isCbor(REQUEST.contentType());
+    }
+
+    private static byte[] toBytes(final Location LOCATION, final boolean CBOR) { return CBOR ? Cbor.encode(LOCATION) : toBytes(LOCATION.toJSON()); }
+
+    private static byte[] toBytes(final JSONObject JSON) { return JSON.toJSONString().getBytes(StandardCharsets.UTF_8); }
+
+    /**
+     * Frees the request thread and sends the body once the future is
+     * done. Spark 2.2 answers with 404 if a route returns null, so the
+     * route returns an empty body which commits the headers (the content
+     * type has to be set before) and the body is written as soon as the
+     * store answered.
+     * @param REQUEST
+     * @param BODY
+     * @return an empty body
+     */
+    private static Object respondAsync(final Request REQUEST, final CompletableFuture<byte[]> BODY) {
+        final AsyncContext ASYNC_CONTEXT = REQUEST.raw().startAsync();
+        ASYNC_CONTEXT.setTimeout(ASYNC_TIMEOUT);
+        BODY.whenComplete((body, throwable) -> {
+            try {
+                if (null == throwable) {
+                    ASYNC_CONTEXT.getResponse().getOutputStream().write(body);
+                } else {
+                    // The status has been set to 200 before, the write didn't happen
+                    System.out.println("Error: " + throwable);
+                    final HttpServletResponse RESPONSE = (HttpServletResponse) ASYNC_CONTEXT.getResponse();
+                    RESPONSE.setStatus(503);
+                    RESPONSE.setContentType("application/json");
+                    RESPONSE.getOutputStream().write(storeNotAvailable().getBytes(StandardCharsets.UTF_8));
+                }
+                ASYNC_CONTEXT.complete();
+            } catch (IOException | RuntimeException e) {
+                // Client is gone or the request timed out
+            }
+        });
+        return "";
+    }
+
+    /**
+     * Validates all given items, adds the valid ones with one write to the
+     * store and queues them for the geocoder with one lookup per cell. If a
+     * batch contains a device more than once only the position with the
+     * latest timestamp will be used. Items that are older than the cached
+     * location of the device are reported as superseded too. Devices that
+     * exceeded their rate limit are reported as rate_limited with the
+     * seconds after which they may write again. In a cluster the devices
+     * of other nodes are sent to their owners, one batch per owner, and the
+     * results of the owners are merged into the result.
+     * @param ITEMS parsed json items of the batch
+     * @param CLUSTERED true if devices of other nodes have to be forwarded
+     * @return the number of accepted, superseded, rate limited and rejected items and the result per item, completes when the locations have been written
+     */
+    private CompletableFuture<JSONObject> addLocations(final List<?> ITEMS, final boolean CLUSTERED) {
+        final Map<String, Location>   LATEST         = new LinkedHashMap<>();
+        final Map<String, JSONObject> RESULT_OF_NAME = new HashMap<>();
+        final JSONArray               RESULTS        = new JSONArray();
+        int                           rejected       = 0;
+        int                           superseded     = 0;
+        for (int i = 0 ; i < ITEMS.size() ; i++) {
+            JSONObject result = new JSONObject();
+            result.put("index", i);
+            RESULTS.add(result);
+            final Location LOCATION;
+            try {
+                LOCATION = parseLocation(ITEMS.get(i));
+            } catch (IllegalArgumentException e) {
+                result.put("status", "rejected");
+                result.put("error", e.getMessage());
+                rejected++;
+                continue;
+            }
+            result.put("name", LOCATION.name);
+            final Location PREVIOUS = LATEST.get(LOCATION.name);
+            if (null != PREVIOUS && PREVIOUS.timestamp.isAfter(LOCATION.timestamp)) {
+                result.put("status", "superseded");
+                superseded++;
+                continue;
+            }
+            if (null != PREVIOUS) {
+                RESULT_OF_NAME.get(LOCATION.name).put("status", "superseded");
+                superseded++;
+            }
+            result.put("status", "accepted");
+            LATEST.put(LOCATION.name, LOCATION);
+            RESULT_OF_NAME.put(LOCATION.name, result);
+        }
+
+        final List<CompletableFuture<int[]>> FORWARDED = new ArrayList<>();
+        if (CLUSTERED) {
+            final Map<String, List<Location>> REMOTE = new LinkedHashMap<>();
+            LATEST.values().removeIf(location -> {
+                if (Cluster.INSTANCE.isLocal(location.name)) return false;
+                REMOTE.computeIfAbsent(Cluster.INSTANCE.getOwner(location.name), owner -> new ArrayList<>()).add(location);
+                return true;
+            });
+            REMOTE.forEach((owner, locations) -> FORWARDED.add(forwardLocations(owner, locations, RESULT_OF_NAME)));
+        }
+
+        // Only the local devices, the owners check the rate limit of their devices
+        int rateLimited = 0;
+        for (Iterator<Location> iterator = LATEST.values().iterator() ; iterator.hasNext() ; ) {
+            final String NAME        = iterator.next().name;
+            final long   RETRY_AFTER = AdmissionControl.INSTANCE.checkName(NAME);
+            if (RETRY_AFTER <= 0) continue;
+            RESULT_OF_NAME.get(NAME).put("status", "rate_limited");
+            RESULT_OF_NAME.get(NAME).put("error", "rate limit of " + NAME + " exceeded");
+            RESULT_OF_NAME.get(NAME).put("retry_after", RETRY_AFTER);
+            iterator.remove();
+            rateLimited++;
+        }
+
+        final List<Location> UNRESOLVED = new ArrayList<>();
+        final List<Location> RESOLVED   = new ArrayList<>(LATEST.size());
+        for (Location location : LATEST.values()) { RESOLVED.add(resolveInfo(location, UNRESOLVED)); }
+        final CompletableFuture<List<Location>> STALE;
+        if (ServerMode.ASYNC == SERVER_MODE) {
+            STALE = LocationCache.INSTANCE.addAllAsync(RESOLVED);
+        } else {
+            STALE = CompletableFuture.completedFuture(LocationCache.INSTANCE.addAll(RESOLVED));
+        }
+        Geocoder.INSTANCE.enrich(UNRESOLVED);
+
+        final int REJECTED     = rejected;
+        final int SUPERSEDED   = superseded;
+        final int RATE_LIMITED = rateLimited;
+        return STALE.thenCombine(CompletableFuture.allOf(FORWARDED.toArray(new CompletableFuture[0])), (stale, done) -> {
+            // The cache already contains newer positions of these devices
+            for (Location location : stale) { RESULT_OF_NAME.get(location.name).put("status", "superseded"); }
+            // Counts of the owners: accepted, superseded, rejected, rate limited
+            final int[] REMOTE = new int[4];
+            for (CompletableFuture<int[]> future : FORWARDED) {
+                final int[] COUNTS = future.join();
+                for (int i = 0 ; i < REMOTE.length ; i++) { REMOTE[i] += COUNTS[i]; }
+            }
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put("accepted", LATEST.size() - stale.size() + REMOTE[0]);
+            jsonObject.put("superseded", SUPERSEDED + stale.size() + REMOTE[1]);
+            jsonObject.put("rejected", REJECTED + REMOTE[2]);
+            jsonObject.put("rate_limited", RATE_LIMITED + REMOTE[3]);
+            jsonObject.put("results", RESULTS);
+            return jsonObject;
+        });
+    }
+
+    /**
+     * Sends the locations to their owner as one batch and copies the status
+     * per device into the results of the original batch. If the owner is not
+     * available all of its locations are rejected.
+     * @param OWNER base url of the owner
+     * @param LOCATIONS at most one location per device
+     * @param RESULT_OF_NAME result per device of the original batch
+     * @return the number of accepted, superseded, rejected and rate limited locations
+     */
+    private static CompletableFuture<int[]> forwardLocations(final String OWNER, final List<Location> LOCATIONS, final Map<String, JSONObject> RESULT_OF_NAME) {
+        final JSONArray BATCH = new JSONArray();
+        for (Location location : LOCATIONS) { BATCH.add(location.toJSON()); }
+        final byte[] BODY = BATCH.toJSONString().getBytes(StandardCharsets.UTF_8);
+        return Cluster.INSTANCE.forwardAsync(OWNER, "POST", "/locations/batch", "application/json", "application/json", BODY).thenApply(reply -> {
+            final Object OBJ = reply.map(r -> JSONValue.parse(new String(r.body, StandardCharsets.UTF_8))).orElse(null);
+            if (200 != reply.map(r -> r.status).orElse(0) || !(OBJ instanceof JSONObject)) {
+                // Keep the error of the owner, e.g. that its store is not available
+                final Object OWNER_ERROR = OBJ instanceof JSONObject ? ((JSONObject) OBJ).get("error") : null;
+                final String ERROR       = !reply.isPresent()   ? "owner " + OWNER + " not available" :
+                                           null != OWNER_ERROR ? "owner " + OWNER + " answered with " + reply.get().status + ": " + OWNER_ERROR :
+                                                                 "owner " + OWNER + " answered with " + reply.get().status;
+                for (Location location : LOCATIONS) {
+                    RESULT_OF_NAME.get(location.name).put("status", "rejected");
+                    RESULT_OF_NAME.get(location.name).put("error", ERROR);
+                }
+                return new int[] { 0, 0, LOCATIONS.size(), 0 };
+            }
+            final JSONObject RESULT = (JSONObject) OBJ;
+            for (Object obj : (JSONArray) RESULT.get("results")) {
+                final JSONObject REMOTE_RESULT = (JSONObject) obj;
+                final JSONObject LOCAL_RESULT  = RESULT_OF_NAME.get(String.valueOf(REMOTE_RESULT.get("name")));
+                if (null == LOCAL_RESULT) continue;
+                LOCAL_RESULT.put("status", REMOTE_RESULT.get("status"));
+                if (REMOTE_RESULT.containsKey("error"))       { LOCAL_RESULT.put("error", REMOTE_RESULT.get("error")); }
+                if (REMOTE_RESULT.containsKey("retry_after")) { LOCAL_RESULT.put("retry_after", REMOTE_RESULT.get("retry_after")); }
+            }
+            return new int[] { ((Number) RESULT.get("accepted")).intValue(), ((Number) RESULT.get("superseded")).intValue(), ((Number) RESULT.get("rejected")).intValue(), ((Number) RESULT.get("rate_limited")).intValue() };
+        });
+    }
+
+    private static Location parseLocation(final Object ITEM) {
+        if (!(ITEM instanceof JSONObject)) throw new IllegalArgumentException("not a json object");
+        final Location LOCATION;
+        try {
+            LOCATION = new Location((JSONObject) ITEM);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid number");
+        }
+        if (LOCATION.name.trim().isEmpty()) throw new IllegalArgumentException("name missing");
+        if (!(Math.abs(LOCATION.latitude) <= 90))   throw new IllegalArgumentException("latitude out of range");
+        if (!(Math.abs(LOCATION.longitude) <= 180)) throw new IllegalArgumentException("longitude out of range");
+        return LOCATION;
+    }
+
+    // Returns null if the body is not a json array
+    private static List<?> parseArray(final Reader READER) {
+        Object obj = JSONValue.parse(READER);
+        return obj instanceof JSONArray ? (JSONArray) obj : null;
+    }
+
+    // One json object per line, lines that can't be parsed will be rejected as items
+    private static List<?> parseNdjson(final BufferedReader READER) throws IOException {
+        List<Object> items = new ArrayList<>();
+        String       line;
+        while (null != (line = READER.readLine())) {
+            if (line.trim().isEmpty()) continue;
+            items.add(JSONValue.parse(line));
+        }
+        return items;
+    }
+
+    /**
+     * Uses the cached geocoder result if available, otherwise the last known
+     * info until the geocoder is done
+     * @param LOCATION
+     * @param UNRESOLVED the returned location will be added if it has to be geocoded
+     * @return a copy of the location with the resolved info
+     */
+    private Location resolveInfo(final Location LOCATION, final Collection<Location> UNRESOLVED) {
+        if (LOCATION.isZero()) return LOCATION.withInfo("");
+        final Optional<String> INFO = GeocodeCache.INSTANCE.get(LOCATION.latitude, LOCATION.longitude);
+        if (INFO.isPresent()) return LOCATION.withInfo(INFO.get());
+        final Location RESOLVED = LOCATION.withInfo(LocationCache.INSTANCE.get(LOCATION.name).map(location -> location.info).orElse(""));
+        UNRESOLVED.add(RESOLVED);
+        return RESOLVED;
+    }
+
+    // Streams the locations to the client without building the whole json in memory
+    // Compressed with gzip or deflate if the client accepts it. Closing the
+    // streams writes the trailer of the compression but keeps the response open.
+    private static void writeLocations(final Request REQUEST, final Response RESPONSE, final Iterable<Location> LOCATIONS, final boolean CBOR) throws IOException {
+        final String ENCODING = getContentEncoding(REQUEST.headers("Accept-Encoding"));
+        OutputStream out      = new NonClosingOutputStream(RESPONSE.raw().getOutputStream());
+        if (null != ENCODING) {
+            RESPONSE.header("Content-Encoding", ENCODING);
+            out = "gzip".equals(ENCODING) ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out);
+        }
+        if (CBOR) {
+            out = new BufferedOutputStream(out, 8192);
+            Cbor.write(LOCATIONS, out);
+            out.close();
+            return;
+        }
+        Writer  writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+        boolean first  = true;
+        writer.write('[');
+        for (Location location : LOCATIONS) {
+            if (!first) { writer.write(','); }
+            location.writeJSON(writer);
+            first = false;
+        }
+        writer.write(']');
+        writer.close();
+    }
+
+    // gzip is preferred over deflate, codings with q=0 are not accepted
+    private static String getContentEncoding(final String ACCEPT_ENCODING) {
+        if (null == ACCEPT_ENCODING) return null;
+        boolean deflate = false;
+        for (String part : ACCEPT_ENCODING.toLowerCase().split(",")) {
+            final String[] CODING   = part.trim().split(";");
+            boolean        accepted = true;
+            for (int i = 1 ; i < CODING.length ; i++) {
+                final String PARAMETER = CODING[i].trim();
+                if (PARAMETER.startsWith("q=") && getDouble(PARAMETER.substring(2)).orElse(1d) <= 0) { accepted = false; }
+            }
+            if (!accepted) continue;
+            if ("gzip".equals(CODING[0].trim())) return "gzip";
+            if ("deflate".equals(CODING[0].trim())) { deflate = true; }
+        }
+        return deflate ? "deflate" : null;
+    }
+
+    /**
+     * Sets the ETag and Last-Modified headers and checks the conditional
+     * headers of the request, If-None-Match wins over If-Modified-Since.
+     * Last-Modified has a resolution of one second, so it is only used
+     * once its second is over, otherwise a change within the same second
+     * would go unnoticed.
+     * @param REQUEST
+     * @param RESPONSE
+     * @param ETAG weak etag of the representation
+     * @param LAST_MODIFIED epoch milliseconds of the last change
+     * @return true if the response status has been set to 304 and no body must be sent
+     */
+    private static boolean isNotModified(final Request REQUEST, final Response RESPONSE, final String ETAG, final long LAST_MODIFIED) {
+        final long    SECOND   = LAST_MODIFIED / 1000;
+        final boolean COMPLETE = SECOND < System.currentTimeMillis() / 1000;
+        RESPONSE.header("ETag", ETAG);
+        if (COMPLETE) { RESPONSE.header("Last-Modified", HTTP_DATE.format(Instant.ofEpochSecond(SECOND))); }
+
+        final String  IF_NONE_MATCH = REQUEST.headers("If-None-Match");
+        final boolean NOT_MODIFIED;
+        if (null != IF_NONE_MATCH) {
+            NOT_MODIFIED = matchesETag(IF_NONE_MATCH, ETAG);
+        } else {
+            NOT_MODIFIED = COMPLETE && getEpochSecond(REQUEST.headers("If-Modified-Since")).map(since -> SECOND <= since).orElse(false);
+        }
+        if (NOT_MODIFIED) { RESPONSE.status(304); }
+        return NOT_MODIFIED;
+    }
+
+    // Weak comparison, W/"x" matches "x"
+    private static boolean matchesETag(final String IF_NONE_MATCH, final String ETAG) {
+        final String OPAQUE_TAG = ETAG.startsWith("W/") ? ETAG.substring(2) : ETAG;
+        for (String tag : IF_NONE_MATCH.split(",")) {
+            final String TAG = tag.trim();
+            if (TAG.equals("*") || (TAG.startsWith("W/") ? TAG.substring(2) : TAG).equals(OPAQUE_TAG)) return true;
+        }
+        return false;
+    }
+
+    // Changes with every change of the location, the name is part of the url
+    private static String getETag(final Location LOCATION) {
+        int hash = Double.hashCode(LOCATION.latitude);
+        hash = 31 * hash + Double.hashCode(LOCATION.longitude);
+        hash = 31 * hash + Double.hashCode(LOCATION.altitude);
+        hash = 31 * hash + LOCATION.info.hashCode();
+        return "W/\"" + Long.toHexString(LOCATION.timestamp.getEpochSecond()) + "-" + Integer.toHexString(hash) + "\"";
+    }
+
+    private static Optional<Long> getEpochSecond(final String HTTP_DATE) {
+        if (null == HTTP_DATE) return Optional.empty();
+        try {
+            return Optional.of(ZonedDateTime.parse(HTTP_DATE.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond());
+        } catch (DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    // minLat,minLon,maxLat,maxLon
+    private static Optional<double[]> getBoundingBox(final String VALUE) {
+        if (null == VALUE) return Optional.empty();
+        final String[] VALUES = VALUE.split(",");
+        final double[] BBOX   = new double[VALUES.length];
+        for (int i = 0 ; i < VALUES.length ; i++) { BBOX[i] = getDouble(VALUES[i].trim()).orElse(Double.NaN); }
+        if (BBOX.length != 4 || Double.isNaN(BBOX[0] + BBOX[1] + BBOX[2] + BBOX[3])) return Optional.empty();
+        return Optional.of(BBOX);
+    }
+
+    private static Optional<Double> getDouble(final String VALUE) {
+        if (null == VALUE) return Optional.empty();
+        try {
+            return Optional.of(Double.parseDouble(VALUE));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static String storeNotAvailable() {
+        JSONObject error = new JSONObject();
+        error.put("error", "store not available");
+        return error.toJSONString();
+    }
+
     public static void main(String[] args) { new Main(); }
+
+
+    // ******************** Inner Classes *************************************
+    // Closing a compressed stream releases its deflater but must not close the response
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(final OutputStream OUT) { super(OUT); }
+
+        @Override public void write(final byte[] BYTES, final int OFFSET, final int LENGTH) throws IOException { out.write(BYTES, OFFSET, LENGTH); }
+
+        @Override public void close() throws IOException { flush(); }
+    }
 }
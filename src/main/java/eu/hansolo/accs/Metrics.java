@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Counters, gauges and latency histograms that will be exposed in the
+ * Prometheus text format. Histograms use fixed buckets from 100us to 30s
+ * so recording a value is one binary search and two adds without any
+ * locking. Labels are given as preformatted strings, e.g.
+ * route="/add",method="POST", and must only contain a bounded set of
+ * values.
+ */
+public enum Metrics {
+    INSTANCE;
+
+    // Upper bounds of the histogram buckets in seconds
+    private static final double[] BUCKETS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30 };
+    private static final String[] LE      = Arrays.stream(BUCKETS).mapToObj(bound -> "le=\"" + BigDecimal.valueOf(bound).stripTrailingZeros().toPlainString() + "\"").toArray(String[]::new);
+
+    private final Map<String, Family> families;
+
+
+    // ******************** Constructors **************************************
+    Metrics() {
+        families = new ConcurrentSkipListMap<>();
+    }
+
+
+    // ******************** Methods *******************************************
+    public void increment(final String NAME, final String HELP, final String LABELS) {
+        ((LongAdder) getFamily(NAME, HELP, "counter").series.computeIfAbsent(LABELS, labels -> new LongAdder())).increment();
+    }
+
+    /**
+     * Records a duration in the histogram with the given name and labels
+     * @param NAME
+     * @param HELP
+     * @param LABELS
+     * @param NANOS duration in nanoseconds
+     */
+    public void observe(final String NAME, final String HELP, final String LABELS, final long NANOS) {
+        ((Histogram) getFamily(NAME, HELP, "histogram").series.computeIfAbsent(LABELS, labels -> new Histogram())).observe(NANOS / 1e9);
+    }
+
+    public void gauge(final String NAME, final String HELP, final String LABELS, final DoubleSupplier SUPPLIER) {
+        getFamily(NAME, HELP, "gauge").series.put(LABELS, SUPPLIER);
+    }
+
+    /**
+     * Exposes a counter that is maintained somewhere else
+     * @param NAME
+     * @param HELP
+     * @param LABELS
+     * @param SUPPLIER returns the current value of the counter
+     */
+    public void counter(final String NAME, final String HELP, final String LABELS, final DoubleSupplier SUPPLIER) {
+        getFamily(NAME, HELP, "counter").series.put(LABELS, SUPPLIER);
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format (version 0.0.4)
+     */
+    public String scrape() {
+        StringBuilder builder = new StringBuilder(8192);
+        for (Family family : families.values()) {
+            builder.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            builder.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> entry : family.series.entrySet()) {
+                final String LABELS = entry.getKey();
+                final Object METRIC = entry.getValue();
+                if (METRIC instanceof Histogram) {
+                    ((Histogram) METRIC).write(builder, family.name, LABELS);
+                } else if (METRIC instanceof LongAdder) {
+                    sample(builder, family.name, LABELS, ((LongAdder) METRIC).sum());
+                } else {
+                    double value;
+                    try {
+                        value = ((DoubleSupplier) METRIC).getAsDouble();
+                    } catch (RuntimeException e) {
+                        value = Double.NaN;
+                    }
+                    sample(builder, family.name, LABELS, value);
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+
+    // ******************** Private Methods ***********************************
+    private Family getFamily(final String NAME, final String HELP, final String TYPE) {
+        return families.computeIfAbsent(NAME, name -> new Family(name, HELP, TYPE));
+    }
+
+    private static void sample(final StringBuilder BUILDER, final String NAME, final String LABELS, final double VALUE) {
+        BUILDER.append(NAME);
+        if (!LABELS.isEmpty()) { BUILDER.append('{').append(LABELS).append('}'); }
+        BUILDER.append(' ').append(format(VALUE)).append('\n');
+    }
+
+    private static String format(final double VALUE) {
+        if (Double.isNaN(VALUE))      return "NaN";
+        if (Double.isInfinite(VALUE)) return VALUE > 0 ? "+Inf" : "-Inf";
+        if (VALUE == Math.rint(VALUE) && Math.abs(VALUE) < 1e15) return Long.toString((long) VALUE);
+        return Double.toString(VALUE);
+    }
+
+
+    // ******************** Inner Classes *************************************
+    private static class Family {
+        final String              name;
+        final String              help;
+        final String              type;
+        final Map<String, Object> series;
+
+        Family(final String NAME, final String HELP, final String TYPE) {
+            name   = NAME;
+            help   = HELP;
+            type   = TYPE;
+            series = new ConcurrentSkipListMap<>();
+        }
+    }
+
+    private static class Histogram {
+        final LongAdder[] counts;
+        final DoubleAdder sum;
+
+        Histogram() {
+            // Last slot counts the values above the largest bucket
+            counts = new LongAdder[BUCKETS.length + 1];
+            for (int i = 0 ; i < counts.length ; i++) { counts[i] = new LongAdder(); }
+            sum = new DoubleAdder();
+        }
+
+        void observe(final double SECONDS) {
+            int index = Arrays.binarySearch(BUCKETS, SECONDS);
+            counts[index < 0 ? -index - 1 : index].increment();
+            sum.add(SECONDS);
+        }
+
+        void write(final StringBuilder BUILDER, final String NAME, final String LABELS) {
+            final String PREFIX     = LABELS.isEmpty() ? "" : LABELS + ",";
+            long         cumulative = 0;
+            for (int i = 0 ; i < BUCKETS.length ; i++) {
+                cumulative += counts[i].sum();
+                sample(BUILDER, NAME + "_bucket", PREFIX + LE[i], cumulative);
+            }
+            cumulative += counts[BUCKETS.length].sum();
+            sample(BUILDER, NAME + "_bucket", PREFIX + "le=\"+Inf\"", cumulative);
+            sample(BUILDER, NAME + "_sum", LABELS, sum.sum());
+            sample(BUILDER, NAME + "_count", LABELS, cumulative);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONObject;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Dead band for position updates. Trackers keep reporting while they are
+ * not moving, an update that is within MOVEMENT_MIN_DISTANCE and
+ * MOVEMENT_MIN_ALTITUDE of the cached location only refreshes the
+ * timestamp of the cached location. It is neither geocoded nor written to
+ * the store. The cached location keeps the last written position.
+ * After MOVEMENT_MAX_INTERVAL seconds without a write the next update is
+ * written anyway. The interval is capped at half of the LOCATION_TTL so
+ * that the store never holds a timestamp that looks expired for a device
+ * that is still reporting (e.g. after a restart the cache is loaded from
+ * the store).
+ *
+ * Configuration via environment variables:
+ * MOVEMENT_MIN_DISTANCE  meters a device has to move to be written, 0 = off     (default 10)
+ * MOVEMENT_MIN_ALTITUDE  meters the altitude has to change to be written        (default 10)
+ * MOVEMENT_MAX_INTERVAL  max seconds between two writes of a reporting device   (default 300)
+ */
+public enum MovementFilter implements LocationEventListener {
+    INSTANCE;
+
+    private final double            minDistance;
+    private final double            minAltitude;
+    private final long              maxInterval;
+    private final Map<String, Long> writtenAt;
+    private final AtomicLong        suppressed;
+    private final AtomicLong        written;
+
+
+    // ******************** Constructors **************************************
+    MovementFilter() {
+        minDistance = Math.max(0, Env.getDouble("MOVEMENT_MIN_DISTANCE", 10));
+        minAltitude = Math.max(0, Env.getDouble("MOVEMENT_MIN_ALTITUDE", 10));
+        maxInterval = Math.max(0, Math.min(Env.getLong("MOVEMENT_MAX_INTERVAL", 300), Cleaner.getTtl() / 2));
+        writtenAt   = new ConcurrentHashMap<>(1024);
+        suppressed  = new AtomicLong(0);
+        written     = new AtomicLong(0);
+    }
+
+
+    // ******************** Methods *******************************************
+    @Override public void onLocationEvent(final LocationEvent EVENT) {
+        if (LocationEvent.EventType.REMOVED == EVENT.getType()) { writtenAt.remove(EVENT.getLocation().name); }
+    }
+
+    public boolean isEnabled() { return minDistance > 0; }
+
+    /**
+     * Refreshes the timestamp of the cached location instead of writing
+     * the given location if the device didn't move significantly.
+     * @param LOCATION
+     * @return the refreshed cached location or null if the given location has to be written
+     */
+    public Location suppress(final Location LOCATION) {
+        if (!isEnabled()) return null;
+        final Optional<Location> LAST = LocationCache.INSTANCE.get(LOCATION.name);
+        if (LAST.isPresent() && isRedundant(LAST.get(), LOCATION)) {
+            final Location TOUCHED = LocationCache.INSTANCE.touch(LAST.get(), LOCATION.timestamp);
+            if (null != TOUCHED) {
+                suppressed.incrementAndGet();
+                return TOUCHED;
+            }
+        }
+        // Stale locations end up here too and will be rejected by the cache
+        writtenAt.merge(LOCATION.name, LOCATION.timestamp.getEpochSecond(), Math::max);
+        written.incrementAndGet();
+        return null;
+    }
+
+    public long getSuppressed() { return suppressed.get(); }
+
+    public long getWritten() { return written.get(); }
+
+    public JSONObject getStats() {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("enabled", isEnabled());
+        jsonObject.put("minDistance", minDistance);
+        jsonObject.put("minAltitude", minAltitude);
+        jsonObject.put("maxInterval", maxInterval);
+        jsonObject.put("suppressed", suppressed.get());
+        jsonObject.put("written", written.get());
+        return jsonObject;
+    }
+
+
+    // ******************** Private Methods ***********************************
+    private boolean isRedundant(final Location LAST, final Location LOCATION) {
+        if (LOCATION.timestamp.isBefore(LAST.timestamp)) return false;
+        // Without a write since the start the timestamp of the cached location is the one of the store
+        final long WRITTEN_AT = writtenAt.computeIfAbsent(LOCATION.name, name -> LAST.timestamp.getEpochSecond());
+        if (LOCATION.timestamp.getEpochSecond() - WRITTEN_AT >= maxInterval) return false;
+        return LAST.getDistanceTo(LOCATION) < minDistance && Math.abs(LAST.getAltitudeDifferenceInMeter(LOCATION)) < minAltitude;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Token bucket per key: every key may take BURST requests at once and
+ * RATE requests per second on average. The buckets are kept in NO_OF_STRIPES
+ * access ordered maps, each with its own lock, so that keys in different
+ * stripes don't contend. A bucket that was idle long enough to be full
+ * again is the same as a new one and will be removed. If a stripe is full
+ * the least recently used bucket is evicted, so the memory is bounded by
+ * MAX_KEYS no matter how many distinct keys show up.
+ */
+public class RateLimiter {
+    private static final int                        NO_OF_STRIPES = 64;
+    private static final int                        MAX_EXPIRED   = 4; // removed per call
+    private final        double                     rate;
+    private final        double                     burst;
+    private final        long                       idleTimeout;
+    private final        int                        maxKeysPerStripe;
+    private final        Map<String, TokenBucket>[] stripes;
+    private final        AtomicLong                 allowed;
+    private final        AtomicLong                 limited;
+    private final        AtomicLong                 evicted;
+
+
+    // ******************** Constructors **************************************
+    /**
+     * @param RATE requests per second per key, 0 disables the limiter
+     * @param BURST max number of requests at once per key
+     * @param MAX_KEYS max number of keys that are tracked
+     */
+    @SuppressWarnings("unchecked")
+    public RateLimiter(final double RATE, final double BURST, final int MAX_KEYS) {
+        rate             = Math.max(0, RATE);
+        burst            = Math.max(1, BURST);
+        idleTimeout      = rate > 0 ? (long) Math.ceil(burst / rate * 1e9) : 0;
+        maxKeysPerStripe = Math.max(1, MAX_KEYS / NO_OF_STRIPES);
+        stripes          = new Map[NO_OF_STRIPES];
+        allowed          = new AtomicLong(0);
+        limited          = new AtomicLong(0);
+        evicted          = new AtomicLong(0);
+        for (int i = 0 ; i < NO_OF_STRIPES ; i++) {
+            stripes[i] = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(final Map.Entry<String, TokenBucket> ELDEST) {
+                    if (size() <= maxKeysPerStripe) return false;
+                    evicted.incrementAndGet();
+                    return true;
+                }
+            };
+        }
+    }
+
+
+    // ******************** Methods *******************************************
+    public boolean isEnabled() { return rate > 0; }
+
+    /**
+     * Takes one token from the bucket of the given key
+     * @param KEY
+     * @return 0 if the request is allowed, otherwise the milliseconds until the next token is available
+     */
+    public long tryAcquire(final String KEY) {
+        if (!isEnabled()) return 0;
+        final long                     NOW    = System.nanoTime();
+        final Map<String, TokenBucket> STRIPE = getStripe(KEY);
+        final long                     WAIT;
+        synchronized (STRIPE) {
+            TokenBucket bucket = STRIPE.get(KEY);
+            if (null == bucket) {
+                bucket = new TokenBucket(burst, NOW);
+                STRIPE.put(KEY, bucket);
+            }
+            WAIT = bucket.take(NOW, rate, burst);
+            removeExpired(STRIPE, NOW);
+        }
+        if (0 == WAIT) {
+            allowed.incrementAndGet();
+            return 0;
+        }
+        limited.incrementAndGet();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(WAIT));
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<String, TokenBucket> stripe : stripes) { synchronized (stripe) { size += stripe.size(); } }
+        return size;
+    }
+
+    public long getAllowed() { return allowed.get(); }
+
+    public long getLimited() { return limited.get(); }
+
+    public JSONObject toJSON() {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("rate", rate);
+        jsonObject.put("burst", burst);
+        jsonObject.put("keys", size());
+        jsonObject.put("maxKeys", maxKeysPerStripe * NO_OF_STRIPES);
+        jsonObject.put("allowed", allowed.get());
+        jsonObject.put("limited", limited.get());
+        jsonObject.put("evicted", evicted.get());
+        return jsonObject;
+    }
+
+
+    // ******************** Private Methods ***********************************
+    private Map<String, TokenBucket> getStripe(final String KEY) {
+        final int HASH = KEY.hashCode();
+        return stripes[(HASH ^ (HASH >>> 16)) & (NO_OF_STRIPES - 1)];
+    }
+
+    // The least recently used buckets come first, stops at the first one that is still in use
+    private void removeExpired(final Map<String, TokenBucket> STRIPE, final long NOW) {
+        final Iterator<TokenBucket> ITERATOR = STRIPE.values().iterator();
+        for (int i = 0 ; i < MAX_EXPIRED && ITERATOR.hasNext() ; i++) {
+            if (NOW - ITERATOR.next().last < idleTimeout) return;
+            ITERATOR.remove();
+        }
+    }
+
+
+    // ******************** Inner Classes *************************************
+    private static class TokenBucket {
+        private double tokens;
+        private long   last;
+
+        TokenBucket(final double TOKENS, final long NOW) {
+            tokens = TOKENS;
+            last   = NOW;
+        }
+
+        // Refills the bucket for the time since the last call, returns 0 or the nanoseconds until the next token
+        long take(final long NOW, final double RATE, final double BURST) {
+            tokens = Math.min(BURST, tokens + (NOW - last) * RATE / 1e9);
+            last   = NOW;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / RATE * 1e9);
+        }
+    }
+}
@@ -16,16 +16,19 @@
 
 package eu.hansolo.accs;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
@@ -33,16 +36,42 @@ import org.json.simple.JSONValue;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * Created by hansolo on 15.06.16.
+ *
+ * LocationStore that talks to a mLab compatible REST api. The server can
+ * be changed with LOCATION_STORE_SCHEME, LOCATION_STORE_HOST and
+ * LOCATION_STORE_PORT (default https://api.mlab.com:443), e.g. to run
+ * against a local stub.
+ * The async methods run the blocking calls on their own pool of
+ * STORE_ASYNC_THREADS threads (default 32) with a queue of
+ * STORE_ASYNC_QUEUE (default 1000) requests, if the queue is full the
+ * caller runs the call itself.
+ * Writes of the same name run one after the other and a location that is
+ * older than the last one written for its name is skipped, so the store
+ * keeps the latest location even if writes arrive out of order.
  */
-public enum RestClient {
+public enum RestClient implements LocationStore {
     INSTANCE;
 
     private static final Optional<String> LOCATION_URL = Optional.ofNullable(System.getenv("LOCATION_URL"));
@@ -61,37 +90,72 @@ public enum RestClient {
         }
     }
 
-    private static final   String MLAB_API_KEY = API_KEY.isPresent() ? API_KEY.get() : "";
-    private List<Location> locationList;
+    // Result of a write by id, only NOT_FOUND means that the id is outdated
+    private enum Outcome { WRITTEN, NOT_FOUND, FAILED }
+
+    private static final   String              MLAB_API_KEY  = API_KEY.isPresent() ? API_KEY.get() : "";
+    private static final   String              STORE_SCHEME  = Env.getString("LOCATION_STORE_SCHEME", "https");
+    private static final   String              STORE_HOST    = Env.getString("LOCATION_STORE_HOST", "api.mlab.com");
+    private static final   int                 STORE_PORT    = Env.getInt("LOCATION_STORE_PORT", 443);
+    private static final   CloseableHttpClient HTTP_CLIENT   = ConnectionPool.INSTANCE.getHttpClient();
+    private static final   int                 BATCH_SIZE    = 100;
+    private static final   int                 NO_OF_STRIPES = 64;
+    private volatile List<Location>    locationList;
+    private Map<String, String>        oids;
+    private final Map<String, Instant> written;
+    private final ReentrantLock[]      stripes;
+    private final ThreadPoolExecutor   asyncExecutorService;
 
 
     // ******************** Constructors **************************************
     RestClient() {
-        locationList = new ArrayList<>(64);
+        final int THREADS    = Math.max(1, Env.getInt("STORE_ASYNC_THREADS", 32));
+        final int QUEUE_SIZE = Math.max(1, Env.getInt("STORE_ASYNC_QUEUE", 1_000));
+
+        locationList         = Collections.emptyList();
+        oids                 = new ConcurrentHashMap<>(64);
+        written              = new ConcurrentHashMap<>(64);
+        stripes              = new ReentrantLock[NO_OF_STRIPES];
+        for (int i = 0 ; i < NO_OF_STRIPES ; i++) { stripes[i] = new ReentrantLock(); }
+        asyncExecutorService = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                                                      new LinkedBlockingQueue<>(QUEUE_SIZE),
+                                                      Helper.getThreadFactory("RestClientAsync", true),
+                                                      new ThreadPoolExecutor.CallerRunsPolicy());
+        asyncExecutorService.allowCoreThreadTimeOut(true);
     }
 
 
     // ******************** Public Methods ************************************
-    public JSONArray getAllLocations() { return getAll(DbCollection.LOCATIONS); }
+    @Override public JSONArray getAllLocations() {
+        JSONArray locationsArray = getAll(DbCollection.LOCATIONS);
+        for (Object obj : locationsArray) { rememberOid((JSONObject) obj); }
+        return locationsArray;
+    }
+    /**
+     * Reloads all locations from the store
+     * @return unmodifiable list that will not change afterwards
+     */
     public List<Location> getAllLocationsAsList() {
         updateLocations();
         return locationList;
     }
-    public JSONObject getLocation(final String NAME) {
+    @Override public JSONObject getLocation(final String NAME) {
         URIBuilder builder = new URIBuilder();
-        builder.setScheme("https")
-               .setHost("api.mlab.com")
-               .setPort(443)
+        builder.setScheme(STORE_SCHEME)
+               .setHost(STORE_HOST)
+               .setPort(STORE_PORT)
                .setPath(DbCollection.LOCATIONS.REST_URL)
                .setParameter("q", "{\"name\":\"" + NAME + "\"}")
                .setParameter("apiKey", MLAB_API_KEY);
-        return getSpecificObject(builder);
+        JSONObject jsonObject = getSpecificObject(builder);
+        rememberOid(jsonObject);
+        return jsonObject;
     }
     public JSONObject getLocation(final double LATITUDE, final double LONGITUDE) {
         URIBuilder builder = new URIBuilder();
-        builder.setScheme("https")
-               .setHost("api.mlab.com")
-               .setPort(443)
+        builder.setScheme(STORE_SCHEME)
+               .setHost(STORE_HOST)
+               .setPort(STORE_PORT)
                .setPath(DbCollection.LOCATIONS.REST_URL)
                .setParameter("q", "{" +
                                   "\"latitude\":\"" + LATITUDE + "\"," +
@@ -99,196 +163,589 @@ public enum RestClient {
                .setParameter("apiKey", MLAB_API_KEY);
         return getSpecificObject(builder);
     }
-    public void postLocation(final Location LOCATION) {
+
+    /**
+     * Inserts the location unless a newer location of the device has been
+     * written already. The device might be in the store even if the cache
+     * doesn't know it (e.g. after a failed load or delete), so the location
+     * will only be inserted if the store has no document with the name,
+     * otherwise that document will be replaced.
+     * @throws UncheckedIOException if the store didn't write the location
+     */
+    @Override public void postLocation(final Location LOCATION) { write(LOCATION); }
+
+    /**
+     * Replaces the document of the location unless a newer location of the
+     * device has been written already. Only if the store doesn't know the id
+     * the document will be looked up again and inserted if there is no
+     * document with the name, errors of the store never lead to an insert.
+     * @throws UncheckedIOException if the store didn't write the location, the known id is kept
+     */
+    @Override public void putLocation(final Location LOCATION) { write(LOCATION); }
+
+    /**
+     * Writes all given locations with one lookup of the ids per batch of
+     * locations. Locations that are not in the store yet will be inserted
+     * with one bulk insert.
+     * @param LOCATIONS
+     */
+    @Override public void putLocations(final Collection<Location> LOCATIONS) {
+        List<Location> batch = new ArrayList<>(BATCH_SIZE);
+        for (Location location : LOCATIONS) {
+            batch.add(location);
+            if (batch.size() == BATCH_SIZE) {
+                putBatch(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) { putBatch(batch); }
+    }
+
+    @Override public void deleteLocation(final Location LOCATION) {
+        final ReentrantLock STRIPE = getStripe(LOCATION.name);
+        STRIPE.lock();
+        try {
+            written.remove(LOCATION.name);
+            final String CACHED_OID = oids.remove(LOCATION.name);
+            if (null != CACHED_OID && deleteLocation(CACHED_OID)) return;
+
+            // Id unknown or outdated, look it up again
+            Optional<String> oid = getOid(getLocation(LOCATION.name));
+            oids.remove(LOCATION.name);
+            if (oid.isPresent()) { deleteLocation(oid.get()); }
+        } finally {
+            STRIPE.unlock();
+        }
+    }
+
+    /**
+     * Deletes all locations with the given names by replacing the matching
+     * documents with an empty list.
+     * @param NAMES
+     */
+    @Override public void deleteLocations(final Collection<String> NAMES) {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        for (String name : NAMES) {
+            batch.add(name);
+            if (batch.size() == BATCH_SIZE) {
+                deleteBatch(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) { deleteBatch(batch); }
+    }
+
+    /**
+     * Deletes all locations with a timestamp older than the given cutoff
+     * with one range query.
+     * @param CUTOFF epoch second
+     * @param NAMES names of the expired locations that are known to the caller
+     * @throws UncheckedIOException if the store didn't answer
+     */
+    @Override public void deleteLocationsOlderThan(final long CUTOFF, final Collection<String> NAMES) {
         URIBuilder builder = new URIBuilder();
-        builder.setScheme("https")
-               .setHost("api.mlab.com")
-               .setPort(443)
+        builder.setScheme(STORE_SCHEME)
+               .setHost(STORE_HOST)
+               .setPort(STORE_PORT)
                .setPath(DbCollection.LOCATIONS.REST_URL)
+               .setParameter("q", getOlderThanQuery(CUTOFF, NAMES))
                .setParameter("apiKey", MLAB_API_KEY);
-        postSpecific(builder, LOCATION);
+        if (putSpecific(builder, new JSONArray().toJSONString()).isEmpty()) throw notWritten("the deletion of the locations older than " + CUTOFF);
+        for (String name : NAMES) {
+            oids.remove(name);
+            written.computeIfPresent(name, (key, timestamp) -> timestamp.getEpochSecond() < CUTOFF ? null : timestamp);
+        }
+    }
+
+    // In a cluster the store is shared, every node only deletes the devices it owns
+    private static String getOlderThanQuery(final long CUTOFF, final Collection<String> NAMES) {
+        if (!Cluster.INSTANCE.isEnabled()) return "{\"timestamp\":{\"$lt\":" + CUTOFF + "}}";
+        JSONArray namesArray = new JSONArray();
+        namesArray.addAll(NAMES);
+        return "{\"timestamp\":{\"$lt\":" + CUTOFF + "},\"name\":{\"$in\":" + namesArray.toJSONString() + "}}";
     }
-    public void putLocation(final Location LOCATION) {
-        JSONObject jsonObject = getLocation(LOCATION.name);
-        final String OID = ((JSONObject) JSONValue.parse(jsonObject.get("_id").toString())).get("$oid").toString();
+
+    /**
+     * @return the geocoder result or an empty object if the geocoder failed or is unavailable
+     */
+    public JSONObject getAddress(final double LATITUDE, final double LONGITUDE) {
+        HttpGet get = new HttpGet("http://maps.google.com/maps/api/geocode/json?latlng=" + LATITUDE + "," + LONGITUDE + "&sensor=false");
+        get.addHeader("accept", "application/json");
+        return toJSONObject(execute(Dependency.GEOCODER, "geocoder", get));
+    }
+
+    /**
+     * Runs postLocation() on the pool of the async writes
+     * @param LOCATION
+     * @return completes when the location has been inserted, fails if the store didn't insert it
+     */
+    @Override public CompletableFuture<Void> postLocationAsync(final Location LOCATION) {
+        return CompletableFuture.runAsync(() -> postLocation(LOCATION), asyncExecutorService);
+    }
+
+    @Override public CompletableFuture<Void> putLocationAsync(final Location LOCATION) {
+        return CompletableFuture.runAsync(() -> putLocation(LOCATION), asyncExecutorService);
+    }
+
+    @Override public CompletableFuture<Void> putLocationsAsync(final Collection<Location> LOCATIONS) {
+        return CompletableFuture.runAsync(() -> putLocations(LOCATIONS), asyncExecutorService);
+    }
+
+    /**
+     * Waits up to 10 seconds for the pending async writes
+     */
+    @Override public void close() {
+        asyncExecutorService.shutdown();
+        try {
+            if (!asyncExecutorService.awaitTermination(10, TimeUnit.SECONDS)) { asyncExecutorService.shutdownNow(); }
+        } catch (InterruptedException e) {
+            asyncExecutorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // ******************** Private Methods ***********************************
+    /**
+     * Writes of the same device are serialized and a location that is older
+     * than the last written one is skipped. So the store never goes back in
+     * time, even if the writes arrive out of order (e.g. from the async pool
+     * or the geocoder).
+     * @param LOCATION
+     */
+    private void write(final Location LOCATION) {
+        final ReentrantLock STRIPE = getStripe(LOCATION.name);
+        STRIPE.lock();
+        try {
+            if (isOutdated(LOCATION)) return;
+            replace(LOCATION);
+            written.put(LOCATION.name, LOCATION.timestamp);
+        } finally {
+            STRIPE.unlock();
+        }
+    }
+
+    // Equal timestamps are written because the timestamps only have a resolution of one second
+    private boolean isOutdated(final Location LOCATION) {
+        final Instant WRITTEN = written.get(LOCATION.name);
+        return null != WRITTEN && WRITTEN.isAfter(LOCATION.timestamp);
+    }
+
+    private void insert(final Location LOCATION) {
+        URIBuilder builder = new URIBuilder();
+        builder.setScheme(STORE_SCHEME)
+               .setHost(STORE_HOST)
+               .setPort(STORE_PORT)
+               .setPath(DbCollection.LOCATIONS.REST_URL)
+               .setParameter("apiKey", MLAB_API_KEY);
+        // The store returns the inserted document incl. its id
+        final JSONObject INSERTED = postSpecific(builder, LOCATION.toJSONString());
+        if (INSERTED.isEmpty()) throw notWritten(LOCATION.name);
+        rememberOid(INSERTED);
+    }
+
+    private void replace(final Location LOCATION) {
+        final String CACHED_OID = oids.get(LOCATION.name);
+        if (null != CACHED_OID) {
+            switch(putLocation(CACHED_OID, LOCATION)) {
+                case WRITTEN  : return;
+                case NOT_FOUND: oids.remove(LOCATION.name, CACHED_OID); break;
+                default       : throw notWritten(LOCATION.name);
+            }
+        }
+
+        // Id unknown or outdated, look it up again
+        final Optional<String> OID = lookupOid(LOCATION.name);
+        if (!OID.isPresent()) {
+            insert(LOCATION);
+            return;
+        }
+        final Outcome OUTCOME = putLocation(OID.get(), LOCATION);
+        if (Outcome.NOT_FOUND == OUTCOME) { oids.remove(LOCATION.name, OID.get()); }
+        if (Outcome.WRITTEN != OUTCOME) throw notWritten(LOCATION.name);
+    }
+
+    private Outcome putLocation(final String OID, final Location LOCATION) {
         URIBuilder builder = new URIBuilder();
-        builder.setScheme("https")
-               .setHost("api.mlab.com")
-               .setPort(443)
+        builder.setScheme(STORE_SCHEME)
+               .setHost(STORE_HOST)
+               .setPort(STORE_PORT)
                .setPath(String.join("/", DbCollection.LOCATIONS.REST_URL, OID))
                //.setParameter("u", "true")
                .setParameter("apiKey", MLAB_API_KEY);
-        putSpecific(builder, LOCATION);
-        updateLocations();
+        try {
+            HttpPut put = new HttpPut(builder.build());
+            put.setHeader("Content-type", "application/json");
+            put.setHeader("accept", "application/json");
+            put.setEntity(new StringEntity(LOCATION.toJSONString(), ContentType.APPLICATION_JSON));
+            final Reply REPLY = send(Dependency.STORE, "store_put", put);
+            return 200 == REPLY.status ? Outcome.WRITTEN : 404 == REPLY.status ? Outcome.NOT_FOUND : Outcome.FAILED;
+        } catch (URISyntaxException e) {
+            return Outcome.FAILED;
+        }
+    }
+
+    /**
+     * @param NAME
+     * @return the id of the document with the given name, empty if the store has no such document
+     * @throws UncheckedIOException if the store didn't answer
+     */
+    private Optional<String> lookupOid(final String NAME) {
+        URIBuilder builder = new URIBuilder();
+        builder.setScheme(STORE_SCHEME)
+               .setHost(STORE_HOST)
+               .setPort(STORE_PORT)
+               .setPath(DbCollection.LOCATIONS.REST_URL)
+               .setParameter("q", "{\"name\":\"" + NAME + "\"}")
+               .setParameter("f", "{\"name\":1}")
+               .setParameter("apiKey", MLAB_API_KEY);
+        try {
+            final Reply REPLY = send(Dependency.STORE, "store_get", new HttpGet(builder.build()));
+            if (!(REPLY.body instanceof JSONArray)) throw notWritten(NAME);
+            final JSONArray DOCS = (JSONArray) REPLY.body;
+            if (DOCS.isEmpty()) return Optional.empty();
+            rememberOid((JSONObject) DOCS.get(0));
+            return getOid((JSONObject) DOCS.get(0));
+        } catch (URISyntaxException e) {
+            throw notWritten(NAME);
+        }
     }
-    public void deleteLocation(final Location LOCATION) {
-        JSONObject jsonObject = getLocation(LOCATION.name);
-        final String OID = ((JSONObject) JSONValue.parse(jsonObject.get("_id").toString())).get("$oid").toString();
+
+    // Returns false if the store doesn't know the given id
+    private boolean deleteLocation(final String OID) {
         URIBuilder builder = new URIBuilder();
-        builder.setScheme("https")
-               .setHost("api.mlab.com")
-               .setPort(443)
+        builder.setScheme(STORE_SCHEME)
+               .setHost(STORE_HOST)
+               .setPort(STORE_PORT)
                .setPath(String.join("/", DbCollection.LOCATIONS.REST_URL, OID))
                .setParameter("apiKey", MLAB_API_KEY);
-        deleteSpecific(builder);
+        return !deleteSpecific(builder).isEmpty();
     }
 
-    public JSONObject getAddress(final double LATITUDE, final double LONGITUDE) {
-        try(CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-            HttpGet get = new HttpGet("http://maps.google.com/maps/api/geocode/json?latlng=" + LATITUDE + "," + LONGITUDE + "&sensor=false");
-            get.addHeader("accept", "application/json");
-
-            CloseableHttpResponse response = httpClient.execute(get);
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != 200) {
-                //throw new RuntimeException("Failed: HTTP error code: " + statusCode);
-                return new JSONObject();
+    // Throws an UncheckedIOException if a location of the batch has not been written
+    private void putBatch(final List<Location> BATCH) {
+        // Only look up the ids that are not known yet
+        List<Location> unknown = new ArrayList<>();
+        for (Location location : BATCH) { if (!oids.containsKey(location.name)) unknown.add(location); }
+        if (!unknown.isEmpty()) { lookupOids(unknown); }
+
+        List<Location> newLocations = new ArrayList<>();
+        int            failed       = 0;
+        for (Location location : BATCH) {
+            if (!oids.containsKey(location.name)) {
+                newLocations.add(location);
+                continue;
+            }
+            try {
+                putLocation(location);
+            } catch (UncheckedIOException e) {
+                failed++;
             }
+        }
+        if (!newLocations.isEmpty()) { failed += insertBatch(newLocations); }
+        if (failed > 0) throw notWritten(failed + " of " + BATCH.size() + " locations");
+    }
 
-            String     output     = getFromResponse(response);
-            JSONObject jsonObject = (JSONObject) JSONValue.parse(output);
-            return jsonObject;
-        } catch (IOException e) {
-            return new JSONObject();
+    /**
+     * Inserts the given locations with one bulk insert. The stripes of all
+     * locations are locked for the insert, devices that have been written by
+     * another thread in the meantime are replaced one by one instead.
+     * @param LOCATIONS locations that are not in the store
+     * @return the number of locations that have not been written
+     */
+    private int insertBatch(final List<Location> LOCATIONS) {
+        final List<ReentrantLock> LOCKS = getStripes(LOCATIONS);
+        for (ReentrantLock lock : LOCKS) { lock.lock(); }
+        try {
+            final List<Location> NEW_LOCATIONS = new ArrayList<>(LOCATIONS.size());
+            final JSONArray      NEW_DOCS      = new JSONArray();
+            int                  failed        = 0;
+            for (Location location : LOCATIONS) {
+                if (isOutdated(location)) continue;
+                if (oids.containsKey(location.name) || written.containsKey(location.name)) {
+                    try {
+                        putLocation(location);
+                    } catch (UncheckedIOException e) {
+                        failed++;
+                    }
+                    continue;
+                }
+                NEW_LOCATIONS.add(location);
+                NEW_DOCS.add(location.toJSON());
+            }
+            if (NEW_LOCATIONS.isEmpty()) return failed;
+
+            // Bulk insert of all locations that are not in the store yet
+            URIBuilder builder = new URIBuilder();
+            builder.setScheme(STORE_SCHEME)
+                   .setHost(STORE_HOST)
+                   .setPort(STORE_PORT)
+                   .setPath(DbCollection.LOCATIONS.REST_URL)
+                   .setParameter("apiKey", MLAB_API_KEY);
+            if (postSpecific(builder, NEW_DOCS.toJSONString()).isEmpty()) return failed + NEW_LOCATIONS.size();
+            for (Location location : NEW_LOCATIONS) { written.put(location.name, location.timestamp); }
+            return failed;
+        } finally {
+            for (int i = LOCKS.size() - 1 ; i >= 0 ; i--) { LOCKS.get(i).unlock(); }
         }
     }
 
+    // Throws an UncheckedIOException if the store didn't answer, the locations might still exist
+    private void deleteBatch(final List<String> NAMES) {
+        URIBuilder builder = new URIBuilder();
+        builder.setScheme(STORE_SCHEME)
+               .setHost(STORE_HOST)
+               .setPort(STORE_PORT)
+               .setPath(DbCollection.LOCATIONS.REST_URL)
+               .setParameter("q", getNameQuery(NAMES))
+               .setParameter("apiKey", MLAB_API_KEY);
+        if (putSpecific(builder, new JSONArray().toJSONString()).isEmpty()) throw notWritten("the deletion of " + NAMES.size() + " locations");
+        for (String name : NAMES) {
+            oids.remove(name);
+            written.remove(name);
+        }
+    }
 
-    // ******************** Private Methods ***********************************
+    private void lookupOids(final List<Location> LOCATIONS) {
+        List<String> names = new ArrayList<>(LOCATIONS.size());
+        for (Location location : LOCATIONS) { names.add(location.name); }
+
+        URIBuilder builder = new URIBuilder();
+        builder.setScheme(STORE_SCHEME)
+               .setHost(STORE_HOST)
+               .setPort(STORE_PORT)
+               .setPath(DbCollection.LOCATIONS.REST_URL)
+               .setParameter("q", getNameQuery(names))
+               .setParameter("f", "{\"name\":1}")
+               .setParameter("apiKey", MLAB_API_KEY);
+        try {
+            // Without an answer the locations must not be inserted as new documents
+            final Object OBJ = execute(Dependency.STORE, "store_get", new HttpGet(builder.build()));
+            if (!(OBJ instanceof JSONArray)) throw notWritten(names.size() + " locations");
+            for (Object obj : (JSONArray) OBJ) { rememberOid((JSONObject) obj); }
+        } catch (URISyntaxException e) {
+            throw notWritten(names.size() + " locations");
+        }
+    }
+
+    private ReentrantLock getStripe(final String NAME) { return stripes[getStripeIndex(NAME)]; }
+
+    private static int getStripeIndex(final String NAME) {
+        final int HASH = NAME.hashCode();
+        return (HASH ^ (HASH >>> 16)) & (NO_OF_STRIPES - 1);
+    }
+
+    // Ordered by index, threads that lock several stripes can't deadlock
+    private List<ReentrantLock> getStripes(final Collection<Location> LOCATIONS) {
+        final boolean[] USED = new boolean[NO_OF_STRIPES];
+        for (Location location : LOCATIONS) { USED[getStripeIndex(location.name)] = true; }
+        final List<ReentrantLock> LOCKS = new ArrayList<>();
+        for (int i = 0 ; i < NO_OF_STRIPES ; i++) { if (USED[i]) LOCKS.add(stripes[i]); }
+        return LOCKS;
+    }
+
+    private void rememberOid(final JSONObject JSON_OBJECT) {
+        Object           name = JSON_OBJECT.get("name");
+        Optional<String> oid  = getOid(JSON_OBJECT);
+        if (null != name && oid.isPresent()) { oids.put(name.toString(), oid.get()); }
+    }
+
+    private Optional<String> getOid(final JSONObject JSON_OBJECT) {
+        Object id = JSON_OBJECT.get("_id");
+        if (!(id instanceof JSONObject)) return Optional.empty();
+        return Optional.ofNullable(((JSONObject) id).get("$oid")).map(Object::toString);
+    }
+
+    private String getNameQuery(final Collection<String> NAMES) {
+        JSONArray names = new JSONArray();
+        names.addAll(NAMES);
+        JSONObject in = new JSONObject();
+        in.put("$in", names);
+        JSONObject query = new JSONObject();
+        query.put("name", in);
+        return query.toJSONString();
+    }
+
+    // Fills a new list and publishes it at once, readers of the previous list are not affected
     private void updateLocations() {
-        locationList.clear();
-        JSONArray locationsArray = getAllLocations();
+        JSONArray      locationsArray = getAllLocations();
+        List<Location> locations      = new ArrayList<>(locationsArray.size());
         for (int i = 0 ; i < locationsArray.size() ; i++) {
             JSONObject jsonLocation = (JSONObject) locationsArray.get(i);
-            locationList.add(new Location(jsonLocation));
+            locations.add(new Location(jsonLocation));
         }
+        locationList = Collections.unmodifiableList(locations);
     }
 
     private JSONArray getAll(final DbCollection COLLECTION) {
-        try(CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-            URIBuilder builder = new URIBuilder();
-            builder.setScheme("http")
-                   .setHost("api.mlab.com")
-                   .setPort(80)
-                   .setPath(COLLECTION.REST_URL)
-                   .setParameter("apiKey", MLAB_API_KEY);
+        URIBuilder builder = new URIBuilder();
+        builder.setScheme(STORE_SCHEME)
+               .setHost(STORE_HOST)
+               .setPort(STORE_PORT)
+               .setPath(COLLECTION.REST_URL)
+               .setParameter("apiKey", MLAB_API_KEY);
+        try {
             HttpGet get = new HttpGet(builder.build());
             get.setHeader("accept", "application/json");
-
-            CloseableHttpResponse response = httpClient.execute(get);
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != 200) {
-                //throw new RuntimeException("Failed: HTTP error code: " + statusCode);
-                return new JSONArray();
-            }
-
-            String    output    = getFromResponse(response);
-            JSONArray jsonArray = (JSONArray) JSONValue.parse(output);
-            return jsonArray;
-        } catch (URISyntaxException | IOException e) {
+            Object obj = execute(Dependency.STORE, "store_get", get);
+            return obj instanceof JSONArray ? (JSONArray) obj : new JSONArray();
+        } catch (URISyntaxException e) {
             return new JSONArray();
         }
     }
 
     private JSONObject getSpecificObject(final URIBuilder BUILDER) {
-        try(CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+        try {
             HttpGet get = new HttpGet(BUILDER.build());
-
-            CloseableHttpResponse response = httpClient.execute(get);
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != 200) {
-                //throw new RuntimeException("Failed: HTTP error code: " + statusCode);
-                return new JSONObject();
-            }
-
-            String     output     = getFromResponse(response);
-            JSONArray  jsonArray  = (JSONArray) JSONValue.parse(output);
-            JSONObject jsonObject = jsonArray.size() > 0 ? (JSONObject) jsonArray.get(0) : new JSONObject();
-            return jsonObject;
-        } catch (URISyntaxException | IOException e) {
+            Object  obj = execute(Dependency.STORE, "store_get", get);
+            return obj instanceof JSONArray && !((JSONArray) obj).isEmpty() ? (JSONObject) ((JSONArray) obj).get(0) : new JSONObject();
+        } catch (URISyntaxException e) {
             return new JSONObject();
         }
     }
-    private JSONArray getSpecificArray(final URIBuilder BUILDER) {
-        try(CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
-            HttpGet get = new HttpGet(BUILDER.build());
-
-            CloseableHttpResponse response = httpClient.execute(get);
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode != 200) {
-                //throw new RuntimeException("Failed: HTTP error code: " + statusCode);
-                return new JSONArray();
-            }
-
-            String    output    = getFromResponse(response);
-            JSONArray jsonArray = (JSONArray) JSONValue.parse(output);
-            return jsonArray;
-        } catch (URISyntaxException | IOException e) {
-            return new JSONArray();
-        }
-    }
-    private JSONObject postSpecific(final URIBuilder BUILDER, final Location LOCATION) {
-        try(CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+    private JSONObject postSpecific(final URIBuilder BUILDER, final String BODY) {
+        try {
             HttpPost post = new HttpPost(BUILDER.build());
             post.setHeader("Content-type", "application/json");
             post.setHeader("accept", "application/json");
-            post.setEntity(new StringEntity(LOCATION.toJSONString()));
-
-            return handleResponse(httpClient.execute(post));
-        } catch (URISyntaxException | IOException e) {
+            post.setEntity(new StringEntity(BODY, ContentType.APPLICATION_JSON));
+            return toJSONObject(execute(Dependency.STORE, "store_post", post));
+        } catch (URISyntaxException e) {
             return new JSONObject();
         }
     }
-    private JSONObject putSpecific(final URIBuilder BUILDER, final Location LOCATION) {
-        try(CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+    private JSONObject putSpecific(final URIBuilder BUILDER, final String BODY) {
+        try {
             HttpPut put = new HttpPut(BUILDER.build());
             put.setHeader("Content-type", "application/json");
             put.setHeader("accept", "application/json");
-            put.setEntity(new StringEntity(LOCATION.toJSONString()));
-
-            return handleResponse(httpClient.execute(put));
-        } catch (URISyntaxException | IOException e) {
+            put.setEntity(new StringEntity(BODY, ContentType.APPLICATION_JSON));
+            return toJSONObject(execute(Dependency.STORE, "store_put", put));
+        } catch (URISyntaxException e) {
             return new JSONObject();
         }
     }
     private JSONObject deleteSpecific(final URIBuilder BUILDER) {
-        try(CloseableHttpClient httpClient = HttpClientBuilder.create().build()) {
+        try {
             HttpDelete delete = new HttpDelete(BUILDER.build());
             delete.setHeader("Content-type", "application/json");
             delete.setHeader("accept", "application/json");
-
-            return handleResponse(httpClient.execute(delete));
-        } catch (URISyntaxException | IOException e) {
+            return toJSONObject(execute(Dependency.STORE, "store_delete", delete));
+        } catch (URISyntaxException e) {
             return new JSONObject();
         }
     }
 
-    private String getFromResponse(final CloseableHttpResponse RESPONSE) {
-        final StringBuilder OUTPUT = new StringBuilder();
-        try (BufferedReader br     = new BufferedReader(new InputStreamReader(RESPONSE.getEntity().getContent()))) {
-            String line;
-            while ((line = br.readLine()) != null) { OUTPUT.append(line); }
+    // Returns the parsed body of a 200 response or null
+    private Object execute(final Dependency DEPENDENCY, final String OPERATION, final HttpRequestBase REQUEST) { return send(DEPENDENCY, OPERATION, REQUEST).body; }
+
+    /**
+     * Calls the given dependency within its bulkhead and circuit breaker.
+     * Idempotent requests (all but POST) will be retried with a jittered
+     * exponential backoff on io errors, 5xx and 429 responses.
+     * @param DEPENDENCY
+     * @param OPERATION name of the operation in the metrics
+     * @param REQUEST
+     * @return the status and the parsed body of a 200 response, Reply.FAILED if there was no answer
+     */
+    private Reply send(final Dependency DEPENDENCY, final String OPERATION, final HttpRequestBase REQUEST) {
+        if (!DEPENDENCY.acquire()) {
+            countError(OPERATION, "bulkhead_full");
+            return Reply.FAILED;
+        }
+        try {
+            REQUEST.setConfig(DEPENDENCY.getRequestConfig());
+            // A retried POST could insert the same document twice
+            final int            MAX_ATTEMPTS = REQUEST instanceof HttpPost ? 1 : DEPENDENCY.getRetries() + 1;
+            final CircuitBreaker BREAKER      = DEPENDENCY.getCircuitBreaker();
+            for (int attempt = 0 ; attempt < MAX_ATTEMPTS ; attempt++) {
+                if (attempt > 0) {
+                    Metrics.INSTANCE.increment("accs_outbound_retries_total", "Retried outbound calls", "operation=\"" + OPERATION + "\"");
+                    try {
+                        Thread.sleep(DEPENDENCY.getRetryDelay(attempt - 1));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return Reply.FAILED;
+                    }
+                }
+                if (!BREAKER.allowRequest()) {
+                    // Fail fast, the callers fall back to the cached data
+                    countError(OPERATION, "circuit_open");
+                    return Reply.FAILED;
+                }
+                final long START = System.nanoTime();
+                try (CloseableHttpResponse response = HTTP_CLIENT.execute(REQUEST)) {
+                    final int STATUS_CODE = response.getStatusLine().getStatusCode();
+                    if (STATUS_CODE >= 500 || STATUS_CODE == 429) {
+                        BREAKER.onFailure();
+                        countError(OPERATION, "http_" + STATUS_CODE);
+                        EntityUtils.consumeQuietly(response.getEntity());
+                        continue;
+                    }
+                    BREAKER.onSuccess();
+                    if (STATUS_CODE != 200) {
+                        //throw new RuntimeException("Failed: HTTP error code: " + STATUS_CODE);
+                        if (STATUS_CODE > 299) { countError(OPERATION, "http_" + STATUS_CODE); }
+                        EntityUtils.consumeQuietly(response.getEntity());
+                        return new Reply(STATUS_CODE, null);
+                    }
+                    return new Reply(STATUS_CODE, parseResponse(response));
+                } catch (IOException e) {
+                    BREAKER.onFailure();
+                    countError(OPERATION, "io");
+                    System.out.println("Error: " + e);
+                } finally {
+                    final long DURATION = System.nanoTime() - START;
+                    DEPENDENCY.recordLatency(DURATION);
+                    Metrics.INSTANCE.observe("accs_outbound_duration_seconds", "Duration of outbound calls incl. reading the response", "operation=\"" + OPERATION + "\"", DURATION);
+                }
+            }
+            return Reply.FAILED;
+        } finally {
+            DEPENDENCY.release();
+        }
+    }
+
+    private void countError(final String OPERATION, final String REASON) {
+        Metrics.INSTANCE.increment("accs_outbound_errors_total", "Failed outbound calls", "operation=\"" + OPERATION + "\",reason=\"" + REASON + "\"");
+    }
+
+    // Parses the body straight from the stream instead of copying it into a String first
+    private Object parseResponse(final HttpResponse RESPONSE) {
+        final HttpEntity ENTITY = RESPONSE.getEntity();
+        if (null == ENTITY) return null;
+        try (Reader reader = new BufferedReader(new InputStreamReader(ENTITY.getContent(), getCharset(ENTITY)))) {
+            return JSONValue.parse(reader);
         } catch(IOException exception) {
             System.out.println("Error: " + exception);
+            return null;
         }
-        return OUTPUT.toString();
     }
 
-    private JSONObject handleResponse(final HttpResponse RESPONSE) {
-        int statusCode = RESPONSE.getStatusLine().getStatusCode();
-        if (statusCode != 200) {
-            //throw new RuntimeException("Failed: HTTP error code: " + statusCode);
-            return new JSONObject();
+    private Charset getCharset(final HttpEntity ENTITY) {
+        try {
+            ContentType contentType = ContentType.get(ENTITY);
+            return null == contentType || null == contentType.getCharset() ? StandardCharsets.UTF_8 : contentType.getCharset();
+        } catch (RuntimeException e) {
+            return StandardCharsets.UTF_8;
         }
+    }
 
-        StringBuilder       output = new StringBuilder();
-        try (BufferedReader br     = new BufferedReader(new InputStreamReader(RESPONSE.getEntity().getContent()))) {
-            String line;
-            while ((line = br.readLine()) != null) { output.append(line); }
-        } catch(IOException exception) {
-            System.out.println("Error: " + exception);
+    private JSONObject toJSONObject(final Object OBJ) { return OBJ instanceof JSONObject ? (JSONObject) OBJ : new JSONObject(); }
+
+    private static UncheckedIOException notWritten(final String WHAT) { return new UncheckedIOException(new IOException("Store did not write " + WHAT)); }
+
+
+    // ******************** Inner Classes *************************************
+    private static class Reply {
+        static final Reply FAILED = new Reply(0, null);
+
+        final int    status; // 0 if there was no answer
+        final Object body;
+
+        Reply(final int STATUS, final Object BODY) {
+            status = STATUS;
+            body   = BODY;
         }
-        JSONObject jsonObject = (JSONObject) JSONValue.parse(output.toString());
-        return jsonObject;
     }
 }
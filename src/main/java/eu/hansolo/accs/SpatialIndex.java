@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Grid based spatial index over all cached locations. The world is split
+ * into cells of SPATIAL_CELL_SIZE degrees (default 0.01 which is ~1.1km at
+ * the equator) and every cell only holds the locations that are inside.
+ * Radius queries only look at the cells that intersect the bounding box of
+ * the circle and nearest neighbour queries search ring by ring around the
+ * cell of the query point.
+ */
+public enum SpatialIndex implements LocationEventListener {
+    INSTANCE;
+
+    private final double                           cellSize;
+    private final int                              noOfRows;
+    private final int                              noOfCols;
+    private final Map<Long, Map<String, Location>> cells;
+    private final Map<String, Long>                cellOfName;
+
+
+    // ******************** Constructors **************************************
+    SpatialIndex() {
+        cellSize   = Env.getDouble("SPATIAL_CELL_SIZE", 0.01);
+        noOfRows   = (int) Math.ceil(180 / cellSize);
+        noOfCols   = (int) Math.ceil(360 / cellSize);
+        cells      = new ConcurrentHashMap<>(1024);
+        cellOfName = new ConcurrentHashMap<>(1024);
+    }
+
+
+    // ******************** Methods *******************************************
+    @Override public void onLocationEvent(final LocationEvent EVENT) {
+        switch(EVENT.getType()) {
+            case ADDED  :
+            case UPDATED: update(EVENT.getLocation()); break;
+            case REMOVED: remove(EVENT.getLocation()); break;
+        }
+    }
+
+    public void update(final Location LOCATION) {
+        final long CELL = getCell(LOCATION.latitude, LOCATION.longitude);
+        cellOfName.compute(LOCATION.name, (name, oldCell) -> {
+            if (null != oldCell && oldCell != CELL) { removeFromCell(oldCell, name); }
+            cells.compute(CELL, (cell, locations) -> {
+                if (null == locations) { locations = new ConcurrentHashMap<>(8); }
+                locations.put(name, LOCATION);
+                return locations;
+            });
+            return CELL;
+        });
+    }
+
+    public void remove(final Location LOCATION) {
+        cellOfName.computeIfPresent(LOCATION.name, (name, oldCell) -> {
+            removeFromCell(oldCell, name);
+            return null;
+        });
+    }
+
+    public int size() { return cellOfName.size(); }
+
+    /**
+     * Returns all locations within the given radius around the given point
+     * sorted by their distance to that point.
+     * @param LATITUDE
+     * @param LONGITUDE
+     * @param RADIUS radius in meters
+     * @return all locations within the given radius sorted by distance
+     */
+    public List<Neighbour> getNearby(final double LATITUDE, final double LONGITUDE, final double RADIUS) {
+        final double DELTA_LAT = RADIUS / Location.METERS_PER_DEGREE;
+        final double MIN_LAT   = Math.max(-90, LATITUDE - DELTA_LAT);
+        final double MAX_LAT   = Math.min(90, LATITUDE + DELTA_LAT);
+        final double MAX_COS   = Math.cos(Math.toRadians(Math.max(Math.abs(MIN_LAT), Math.abs(MAX_LAT))));
+        final double DELTA_LON = MAX_COS < 1e-9 ? 180 : DELTA_LAT / MAX_COS;
+
+        final int  MIN_ROW     = getRow(MIN_LAT);
+        final int  MAX_ROW     = getRow(MAX_LAT);
+        final int  START_COL   = DELTA_LON >= 180 ? 0 : (int) Math.floor((LONGITUDE - DELTA_LON + 180) / cellSize);
+        final int  END_COL     = DELTA_LON >= 180 ? noOfCols - 1 : (int) Math.floor((LONGITUDE + DELTA_LON + 180) / cellSize);
+        final int  NO_OF_COLS  = Math.min(noOfCols, END_COL - START_COL + 1);
+        final long NO_OF_CELLS = (long) (MAX_ROW - MIN_ROW + 1) * NO_OF_COLS;
+
+        final List<Neighbour> RESULT = new ArrayList<>();
+        if (NO_OF_CELLS > cells.size()) {
+            // Less occupied cells than cells to visit
+            for (Map<String, Location> locations : cells.values()) { collectWithin(locations.values(), LATITUDE, LONGITUDE, RADIUS, RESULT); }
+        } else {
+            for (int row = MIN_ROW ; row <= MAX_ROW ; row++) {
+                for (int i = 0 ; i < NO_OF_COLS ; i++) {
+                    Map<String, Location> locations = cells.get(getKey(row, Math.floorMod(START_COL + i, noOfCols)));
+                    if (null != locations) { collectWithin(locations.values(), LATITUDE, LONGITUDE, RADIUS, RESULT); }
+                }
+            }
+        }
+        RESULT.sort(Comparator.comparingDouble(neighbour -> neighbour.distance));
+        return RESULT;
+    }
+
+    /**
+     * Returns the K nearest locations to the given point sorted by their
+     * distance to that point.
+     * @param LATITUDE
+     * @param LONGITUDE
+     * @param K max number of locations
+     * @return the K nearest locations sorted by distance
+     */
+    public List<Neighbour> getNearest(final double LATITUDE, final double LONGITUDE, final int K) {
+        final List<Neighbour> RESULT = new ArrayList<>(Math.max(0, K));
+        if (K <= 0 || cells.isEmpty()) return RESULT;
+
+        // Max heap that keeps the K best candidates
+        final PriorityQueue<Neighbour> CANDIDATES = new PriorityQueue<>(K, Comparator.comparingDouble((Neighbour neighbour) -> neighbour.distance).reversed());
+        final int  CENTER_ROW   = getRow(LATITUDE);
+        final int  CENTER_COL   = getCol(LONGITUDE);
+        final int  MAX_RING     = Math.max(noOfRows, noOfCols) / 2;
+        long       visitedCells = 0;
+        boolean    done         = false;
+        for (int ring = 0 ; ring <= MAX_RING && !done ; ring++) {
+            if (2 * ring + 1 >= noOfCols || visitedCells > cells.size()) {
+                // Visiting more cells than there are occupied ones, just check them all
+                CANDIDATES.clear();
+                for (Map<String, Location> locations : cells.values()) { collectNearest(locations.values(), LATITUDE, LONGITUDE, K, CANDIDATES); }
+                break;
+            }
+            if (ring == 0) {
+                visitedCells += visitCell(CENTER_ROW, CENTER_COL, LATITUDE, LONGITUDE, K, CANDIDATES);
+            } else {
+                for (int col = CENTER_COL - ring ; col <= CENTER_COL + ring ; col++) {
+                    visitedCells += visitCell(CENTER_ROW - ring, col, LATITUDE, LONGITUDE, K, CANDIDATES);
+                    visitedCells += visitCell(CENTER_ROW + ring, col, LATITUDE, LONGITUDE, K, CANDIDATES);
+                }
+                for (int row = CENTER_ROW - ring + 1 ; row <= CENTER_ROW + ring - 1 ; row++) {
+                    visitedCells += visitCell(row, CENTER_COL - ring, LATITUDE, LONGITUDE, K, CANDIDATES);
+                    visitedCells += visitCell(row, CENTER_COL + ring, LATITUDE, LONGITUDE, K, CANDIDATES);
+                }
+            }
+            // Everything outside of the current ring is at least this far away
+            if (CANDIDATES.size() == K) {
+                final double OUTER_LAT    = Math.min(90, Math.abs(LATITUDE) + (ring + 1) * cellSize);
+                final double MIN_DISTANCE = ring * cellSize * Location.METERS_PER_DEGREE * Math.cos(Math.toRadians(OUTER_LAT));
+                done = MIN_DISTANCE >= CANDIDATES.peek().distance;
+            }
+        }
+        RESULT.addAll(CANDIDATES);
+        RESULT.sort(Comparator.comparingDouble(neighbour -> neighbour.distance));
+        return RESULT;
+    }
+
+    public static JSONArray toJSON(final List<Neighbour> NEIGHBOURS) {
+        JSONArray jsonArray = new JSONArray();
+        for (Neighbour neighbour : NEIGHBOURS) {
+            JSONObject jsonObject = neighbour.location.toJSON();
+            jsonObject.put("distance", neighbour.distance);
+            jsonArray.add(jsonObject);
+        }
+        return jsonArray;
+    }
+
+
+    // ******************** Private Methods ***********************************
+    private int getRow(final double LATITUDE) { return Math.min(noOfRows - 1, Math.max(0, (int) Math.floor((LATITUDE + 90) / cellSize))); }
+
+    private int getCol(final double LONGITUDE) { return Math.floorMod((int) Math.floor((LONGITUDE + 180) / cellSize), noOfCols); }
+
+    private long getKey(final int ROW, final int COL) { return ((long) ROW << 32) | (COL & 0xffffffffL); }
+
+    private long getCell(final double LATITUDE, final double LONGITUDE) { return getKey(getRow(LATITUDE), getCol(LONGITUDE)); }
+
+    private void removeFromCell(final long CELL, final String NAME) {
+        cells.computeIfPresent(CELL, (cell, locations) -> {
+            locations.remove(NAME);
+            return locations.isEmpty() ? null : locations;
+        });
+    }
+
+    private int visitCell(final int ROW, final int COL, final double LATITUDE, final double LONGITUDE, final int K, final PriorityQueue<Neighbour> CANDIDATES) {
+        if (ROW < 0 || ROW >= noOfRows) return 0;
+        Map<String, Location> locations = cells.get(getKey(ROW, Math.floorMod(COL, noOfCols)));
+        if (null != locations) { collectNearest(locations.values(), LATITUDE, LONGITUDE, K, CANDIDATES); }
+        return 1;
+    }
+
+    private static void collectWithin(final Collection<Location> LOCATIONS, final double LATITUDE, final double LONGITUDE, final double RADIUS, final List<Neighbour> RESULT) {
+        for (Location location : LOCATIONS) {
+            final double DISTANCE = location.calcDistanceInMeter(LATITUDE, LONGITUDE, location.latitude, location.longitude);
+            if (DISTANCE <= RADIUS) { RESULT.add(new Neighbour(location, DISTANCE)); }
+        }
+    }
+
+    private static void collectNearest(final Collection<Location> LOCATIONS, final double LATITUDE, final double LONGITUDE, final int K, final PriorityQueue<Neighbour> CANDIDATES) {
+        for (Location location : LOCATIONS) {
+            final double DISTANCE = location.calcDistanceInMeter(LATITUDE, LONGITUDE, location.latitude, location.longitude);
+            if (CANDIDATES.size() < K) {
+                CANDIDATES.add(new Neighbour(location, DISTANCE));
+            } else if (DISTANCE < CANDIDATES.peek().distance) {
+                CANDIDATES.poll();
+                CANDIDATES.add(new Neighbour(location, DISTANCE));
+            }
+        }
+    }
+
+
+    // ******************** Inner Classes *************************************
+    public static class Neighbour {
+        public final Location location;
+        public final double   distance;
+
+        public Neighbour(final Location LOCATION, final double DISTANCE) {
+            location = LOCATION;
+            distance = DISTANCE;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Keeps the history of positions per device in memory. The points of a
+ * track are stored in segments of up to 256 points, within a segment
+ * every value is stored as zigzag/varint encoded delta to the previous
+ * point (timestamp in s, latitude and longitude in 1e-6 degrees, altitude
+ * in dm) which usually needs 1-3 bytes per value. Queries only decode the
+ * segments that overlap the requested time range and retention drops
+ * complete segments.
+ *
+ * Configuration via environment variables:
+ * HISTORY_RETENTION   max age of a point in seconds    (default LOCATION_TTL)
+ * HISTORY_MAX_POINTS  max number of points per device  (default 10000)
+ */
+public enum TrackStore implements LocationEventListener {
+    INSTANCE;
+
+    public enum Downsampling { DOUGLAS_PEUCKER, TIME_BUCKET }
+
+    private static final int    SEGMENT_SIZE     = 256;
+    private static final double COORDINATE_SCALE = 1_000_000;
+    private static final double ALTITUDE_SCALE   = 10;
+
+    private final Map<String, Track> tracks;
+    private final long               retention;
+    private final int                maxPoints;
+
+
+    // ******************** Constructors **************************************
+    TrackStore() {
+        tracks    = new ConcurrentHashMap<>(64);
+        retention = Env.getLong("HISTORY_RETENTION", Cleaner.getTtl());
+        maxPoints = Math.max(SEGMENT_SIZE, Env.getInt("HISTORY_MAX_POINTS", 10_000));
+    }
+
+
+    // ******************** Methods *******************************************
+    @Override public void onLocationEvent(final LocationEvent EVENT) {
+        switch(EVENT.getType()) {
+            case ADDED  :
+            case UPDATED: add(EVENT.getLocation()); break;
+            default     : break;
+        }
+    }
+
+    // Adds inside of compute() so that trim() can't remove the track in between
+    public void add(final Location LOCATION) {
+        tracks.compute(LOCATION.name, (name, track) -> {
+            final Track TRACK = null == track ? new Track() : track;
+            TRACK.add(LOCATION);
+            return TRACK;
+        });
+    }
+
+    public long getRetention() { return retention; }
+
+    /**
+     * Removes all points older than the retention
+     * @param NOW epoch second
+     */
+    public void trim(final long NOW) {
+        final long CUTOFF = NOW - retention;
+        // Checks and removes an empty track in one step, a concurrent add() either comes before or creates a new track
+        for (String name : tracks.keySet()) { tracks.computeIfPresent(name, (key, track) -> track.trim(CUTOFF) ? null : track); }
+    }
+
+    public int size() { return tracks.size(); }
+
+    /**
+     * Returns the points of the given device within the given time range.
+     * If there are more than MAX points they will be downsampled.
+     * @param NAME
+     * @param FROM epoch second, inclusive
+     * @param TO epoch second, inclusive
+     * @param MAX max number of points to return
+     * @param DOWNSAMPLING how to reduce the number of points
+     * @param EPSILON Douglas-Peucker only, points closer than this to the simplified track (in m) will be dropped
+     * @return the history as json
+     */
+    public JSONObject getHistory(final String NAME, final long FROM, final long TO, final int MAX, final Downsampling DOWNSAMPLING, final double EPSILON) {
+        final Track  TRACK  = null == NAME ? null : tracks.get(NAME);
+        final Points POINTS = null == TRACK ? new Points(0) : TRACK.get(FROM, TO);
+        final int[]  INDICES;
+        if (POINTS.size <= MAX) {
+            INDICES = new int[POINTS.size];
+            for (int i = 0 ; i < INDICES.length ; i++) { INDICES[i] = i; }
+        } else if (Downsampling.TIME_BUCKET == DOWNSAMPLING) {
+            INDICES = bucket(POINTS, MAX);
+        } else {
+            INDICES = douglasPeucker(POINTS, MAX, EPSILON);
+        }
+
+        JSONArray points = new JSONArray();
+        for (int index : INDICES) {
+            JSONArray point = new JSONArray();
+            point.add(POINTS.timestamps[index]);
+            point.add(POINTS.latitudes[index] / COORDINATE_SCALE);
+            point.add(POINTS.longitudes[index] / COORDINATE_SCALE);
+            point.add(POINTS.altitudes[index] / ALTITUDE_SCALE);
+            points.add(point);
+        }
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("name", NAME);
+        jsonObject.put("total", POINTS.size);
+        jsonObject.put("count", INDICES.length);
+        jsonObject.put("points", points);
+        return jsonObject;
+    }
+
+
+    // ******************** Private Methods ***********************************
+    // Keeps the last point of each of MAX equally sized time buckets
+    private static int[] bucket(final Points POINTS, final int MAX) {
+        final long FIRST      = POINTS.timestamps[0];
+        final long RANGE      = POINTS.timestamps[POINTS.size - 1] - FIRST + 1;
+        int[]      result     = new int[MAX];
+        int        count      = 0;
+        long       lastBucket = -1;
+        for (int i = 0 ; i < POINTS.size ; i++) {
+            final long BUCKET = (POINTS.timestamps[i] - FIRST) * MAX / RANGE;
+            if (BUCKET == lastBucket) {
+                result[count - 1] = i;
+            } else {
+                result[count++] = i;
+                lastBucket      = BUCKET;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    // Top down Douglas-Peucker that always splits the section with the largest error until MAX points are reached
+    private static int[] douglasPeucker(final Points POINTS, final int MAX, final double EPSILON) {
+        final boolean[]              KEEP     = new boolean[POINTS.size];
+        final PriorityQueue<Section> SECTIONS = new PriorityQueue<>((s1, s2) -> Double.compare(s2.distance, s1.distance));
+        KEEP[0]               = true;
+        KEEP[POINTS.size - 1] = true;
+        int count = Math.min(2, MAX);
+        SECTIONS.add(new Section(POINTS, 0, POINTS.size - 1));
+        while (count < MAX && !SECTIONS.isEmpty()) {
+            final Section SECTION = SECTIONS.poll();
+            if (SECTION.index < 0 || SECTION.distance <= EPSILON) break;
+            KEEP[SECTION.index] = true;
+            count++;
+            SECTIONS.add(new Section(POINTS, SECTION.from, SECTION.index));
+            SECTIONS.add(new Section(POINTS, SECTION.index, SECTION.to));
+        }
+        int[] result = new int[count];
+        int   i      = 0;
+        for (int index = 0 ; index < KEEP.length && i < count ; index++) { if (KEEP[index]) result[i++] = index; }
+        return result;
+    }
+
+    private static long zigzag(final long VALUE) { return (VALUE << 1) ^ (VALUE >> 63); }
+
+    private static long unzigzag(final long VALUE) { return (VALUE >>> 1) ^ -(VALUE & 1); }
+
+
+    // ******************** Inner Classes *************************************
+    private static class Points {
+        final long[] timestamps;
+        final int[]  latitudes;
+        final int[]  longitudes;
+        final int[]  altitudes;
+        int          size;
+
+        Points(final int CAPACITY) {
+            timestamps = new long[CAPACITY];
+            latitudes  = new int[CAPACITY];
+            longitudes = new int[CAPACITY];
+            altitudes  = new int[CAPACITY];
+        }
+    }
+
+    // Part of a track between two kept points and the point with the largest distance to the line between them
+    private static class Section {
+        final int from;
+        final int to;
+        int       index;
+        double    distance;
+
+        Section(final Points POINTS, final int FROM, final int TO) {
+            from  = FROM;
+            to    = TO;
+            index = -1;
+            // Equirectangular projection is precise enough for the short sections of a track
+            final double COS = Math.cos(Math.toRadians(POINTS.latitudes[FROM] / COORDINATE_SCALE));
+            final double AX  = POINTS.longitudes[FROM] * COS;
+            final double AY  = POINTS.latitudes[FROM];
+            final double DX  = POINTS.longitudes[TO] * COS - AX;
+            final double DY  = POINTS.latitudes[TO] - AY;
+            final double LEN = DX * DX + DY * DY;
+            for (int i = FROM + 1 ; i < TO ; i++) {
+                final double PX = POINTS.longitudes[i] * COS - AX;
+                final double PY = POINTS.latitudes[i] - AY;
+                final double T  = LEN == 0 ? 0 : Math.max(0, Math.min(1, (PX * DX + PY * DY) / LEN));
+                final double EX = PX - T * DX;
+                final double EY = PY - T * DY;
+                final double D  = Math.sqrt(EX * EX + EY * EY) / COORDINATE_SCALE * Location.METERS_PER_DEGREE;
+                if (D > distance) {
+                    distance = D;
+                    index    = i;
+                }
+            }
+        }
+    }
+
+    private class Track {
+        private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        private       int                 size;
+
+        synchronized void add(final Location LOCATION) {
+            final long TIMESTAMP = LOCATION.timestamp.getEpochSecond();
+            final int  LATITUDE  = (int) Math.round(LOCATION.latitude * COORDINATE_SCALE);
+            final int  LONGITUDE = (int) Math.round(LOCATION.longitude * COORDINATE_SCALE);
+            final int  ALTITUDE  = (int) Math.round(LOCATION.altitude * ALTITUDE_SCALE);
+            Segment    last      = segments.peekLast();
+            if (null != last) {
+                // Points have to be in order, same position at the same time is a geocoder patch
+                if (TIMESTAMP < last.lastTimestamp) return;
+                if (TIMESTAMP == last.lastTimestamp && LATITUDE == last.lastLatitude && LONGITUDE == last.lastLongitude && ALTITUDE == last.lastAltitude) return;
+            }
+            if (null == last || last.count == SEGMENT_SIZE) {
+                last = new Segment();
+                segments.add(last);
+            }
+            last.add(TIMESTAMP, LATITUDE, LONGITUDE, ALTITUDE);
+            size++;
+            while (size > maxPoints && segments.size() > 1) { size -= segments.poll().count; }
+        }
+
+        // Returns true if the track is empty afterwards
+        synchronized boolean trim(final long CUTOFF) {
+            while (!segments.isEmpty() && segments.peek().lastTimestamp < CUTOFF) { size -= segments.poll().count; }
+            return segments.isEmpty();
+        }
+
+        synchronized Points get(final long FROM, final long TO) {
+            int capacity = 0;
+            for (Segment segment : segments) { if (segment.overlaps(FROM, TO)) capacity += segment.count; }
+            final Points POINTS = new Points(capacity);
+            for (Segment segment : segments) { if (segment.overlaps(FROM, TO)) segment.decode(FROM, TO, POINTS); }
+            return POINTS;
+        }
+    }
+
+    private static class Segment {
+        byte[] data = new byte[64];
+        int    length;
+        int    count;
+        long   firstTimestamp;
+        long   lastTimestamp;
+        int    lastLatitude;
+        int    lastLongitude;
+        int    lastAltitude;
+
+        void add(final long TIMESTAMP, final int LATITUDE, final int LONGITUDE, final int ALTITUDE) {
+            if (count == 0) { firstTimestamp = TIMESTAMP; }
+            write(zigzag(TIMESTAMP - lastTimestamp));
+            write(zigzag((long) LATITUDE - lastLatitude));
+            write(zigzag((long) LONGITUDE - lastLongitude));
+            write(zigzag((long) ALTITUDE - lastAltitude));
+            lastTimestamp = TIMESTAMP;
+            lastLatitude  = LATITUDE;
+            lastLongitude = LONGITUDE;
+            lastAltitude  = ALTITUDE;
+            count++;
+            if (count == SEGMENT_SIZE) { data = Arrays.copyOf(data, length); }
+        }
+
+        boolean overlaps(final long FROM, final long TO) { return lastTimestamp >= FROM && firstTimestamp <= TO; }
+
+        void decode(final long FROM, final long TO, final Points POINTS) {
+            final int[] POSITION  = { 0 };
+            long        timestamp = 0;
+            long        latitude  = 0;
+            long        longitude = 0;
+            long        altitude  = 0;
+            for (int i = 0 ; i < count ; i++) {
+                timestamp += unzigzag(read(POSITION));
+                latitude  += unzigzag(read(POSITION));
+                longitude += unzigzag(read(POSITION));
+                altitude  += unzigzag(read(POSITION));
+                if (timestamp < FROM || timestamp > TO) continue;
+                final int INDEX = POINTS.size++;
+                POINTS.timestamps[INDEX] = timestamp;
+                POINTS.latitudes[INDEX]  = (int) latitude;
+                POINTS.longitudes[INDEX] = (int) longitude;
+                POINTS.altitudes[INDEX]  = (int) altitude;
+            }
+        }
+
+        private void write(long value) {
+            if (length + 10 > data.length) { data = Arrays.copyOf(data, data.length * 2); }
+            while ((value & ~0x7FL) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        private long read(final int[] POSITION) {
+            long value = 0;
+            int  shift = 0;
+            byte b;
+            do {
+                b      = data[POSITION[0]++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
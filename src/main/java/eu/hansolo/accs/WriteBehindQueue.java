@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2016 by Gerrit Grunwald
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.hansolo.accs;
+
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Created by hansolo on 18.10.26.
+ *
+ * Collects writes to the store per device and flushes them periodically
+ * as bulk operations. If a device reports several positions within one
+ * flush window only the one with the latest timestamp will be written.
+ * The writes are sent in batches, the writes of a batch that fails stay
+ * pending for the next flush unless a newer write arrived in the meantime.
+ *
+ * Configuration via environment variables:
+ * WRITE_BEHIND_WINDOW       flush interval in ms                               (default 1000)
+ * WRITE_BEHIND_MAX_PENDING  max number of devices waiting for the next flush   (default 10000)
+ */
+public enum WriteBehindQueue {
+    INSTANCE;
+
+    private enum Operation { UPSERT, DELETE }
+
+    private static final int BATCH_SIZE = 100;
+
+    private final    Map<String, PendingWrite> pending;
+    private final    long                      window;
+    private final    int                       maxPending;
+    private final    AtomicLong                enqueued;
+    private final    AtomicLong                coalesced;
+    private final    AtomicLong                flushes;
+    private final    AtomicLong                flushed;
+    private final    AtomicLong                failed;
+    private final    AtomicLong                totalFlushTime;
+    private volatile long                      lastFlushTime;
+    private volatile long                      maxFlushTime;
+    private          ScheduledExecutorService  flushExecutorService;
+    private volatile ScheduledFuture<?>        flushTask;
+
+
+    // ******************** Constructors **************************************
+    WriteBehindQueue() {
+        pending        = new ConcurrentHashMap<>(256);
+        window         = Math.max(10, Env.getLong("WRITE_BEHIND_WINDOW", 1_000));
+        maxPending     = Math.max(1, Env.getInt("WRITE_BEHIND_MAX_PENDING", 10_000));
+        enqueued       = new AtomicLong(0);
+        coalesced      = new AtomicLong(0);
+        flushes        = new AtomicLong(0);
+        flushed        = new AtomicLong(0);
+        failed         = new AtomicLong(0);
+        totalFlushTime = new AtomicLong(0);
+        lastFlushTime  = 0;
+        maxFlushTime   = 0;
+    }
+
+
+    // ******************** Methods *******************************************
+    public synchronized void start() {
+        if (null != flushTask) return;
+        flushExecutorService = new ScheduledThreadPoolExecutor(1, Helper.getThreadFactory("WriteBehindFlush", true));
+        flushTask            = flushExecutorService.scheduleWithFixedDelay(() -> flush(), window, window, TimeUnit.MILLISECONDS);
+    }
+
+    public void upsert(final Location LOCATION) { enqueue(new PendingWrite(Operation.UPSERT, LOCATION)); }
+
+    public void delete(final Location LOCATION) { enqueue(new PendingWrite(Operation.DELETE, LOCATION)); }
+
+    /**
+     * Writes all pending operations to the store
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty()) return;
+
+        final long         START   = System.nanoTime();
+        List<PendingWrite> upserts = new ArrayList<>(pending.size());
+        List<PendingWrite> deletes = new ArrayList<>();
+        for (String name : new ArrayList<>(pending.keySet())) {
+            PendingWrite write = pending.remove(name);
+            if (null == write) continue;
+            switch(write.operation) {
+                case UPSERT: upserts.add(write); break;
+                case DELETE: deletes.add(write); break;
+            }
+        }
+        final int WRITTEN = write(upserts) + write(deletes);
+
+        final long DURATION = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - START);
+        flushes.incrementAndGet();
+        flushed.addAndGet(WRITTEN);
+        totalFlushTime.addAndGet(DURATION);
+        lastFlushTime = DURATION;
+        if (DURATION > maxFlushTime) { maxFlushTime = DURATION; }
+    }
+
+    /**
+     * Stops the periodic flush and writes everything that is still pending
+     */
+    public synchronized void stop() {
+        if (null != flushTask) {
+            flushTask.cancel(false);
+            flushExecutorService.shutdown();
+            flushTask = null;
+        }
+        flush();
+    }
+
+    public int size() { return pending.size(); }
+
+    public int getMaxPending() { return maxPending; }
+
+    public JSONObject getStats() {
+        final long FLUSHES    = flushes.get();
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("pending", pending.size());
+        jsonObject.put("enqueued", enqueued.get());
+        jsonObject.put("coalesced", coalesced.get());
+        jsonObject.put("flushes", FLUSHES);
+        jsonObject.put("flushed", flushed.get());
+        jsonObject.put("failed", failed.get());
+        jsonObject.put("lastFlushMs", lastFlushTime);
+        jsonObject.put("maxFlushMs", maxFlushTime);
+        jsonObject.put("avgFlushMs", FLUSHES == 0 ? 0 : totalFlushTime.get() / FLUSHES);
+        return jsonObject;
+    }
+
+    /**
+     * Sends the writes in batches of BATCH_SIZE, a failed batch doesn't stop
+     * the following ones and its writes are queued again.
+     * @param WRITES writes with the same operation
+     * @return the number of writes that have been written
+     */
+    private int write(final List<PendingWrite> WRITES) {
+        int written = 0;
+        for (int from = 0 ; from < WRITES.size() ; from += BATCH_SIZE) {
+            final List<PendingWrite> BATCH = WRITES.subList(from, Math.min(WRITES.size(), from + BATCH_SIZE));
+            try {
+                if (Operation.UPSERT == BATCH.get(0).operation) {
+                    final List<Location> LOCATIONS = new ArrayList<>(BATCH.size());
+                    for (PendingWrite write : BATCH) { LOCATIONS.add(write.location); }
+                    LocationStore.INSTANCE.putLocations(LOCATIONS);
+                } else {
+                    final List<String> NAMES = new ArrayList<>(BATCH.size());
+                    for (PendingWrite write : BATCH) { NAMES.add(write.location.name); }
+                    LocationStore.INSTANCE.deleteLocations(NAMES);
+                }
+                written += BATCH.size();
+            } catch (RuntimeException e) {
+                System.out.println("Error: " + e);
+                failed.addAndGet(BATCH.size());
+                for (PendingWrite write : BATCH) { requeue(write); }
+            }
+        }
+        return written;
+    }
+
+    // A write that arrived during the flush is newer and wins, even with the same timestamp
+    private void requeue(final PendingWrite WRITE) {
+        pending.merge(WRITE.location.name, WRITE, (newWrite, failedWrite) -> failedWrite.location.timestamp.isAfter(newWrite.location.timestamp) ? failedWrite : newWrite);
+    }
+
+    private void enqueue(final PendingWrite WRITE) {
+        enqueued.incrementAndGet();
+        // Last write wins based on the timestamp of the location
+        final PendingWrite PREVIOUS = pending.putIfAbsent(WRITE.location.name, WRITE);
+        if (null != PREVIOUS) {
+            coalesced.incrementAndGet();
+            pending.merge(WRITE.location.name, WRITE, (oldWrite, newWrite) -> newWrite.location.timestamp.isBefore(oldWrite.location.timestamp) ? oldWrite : newWrite);
+        } else if (pending.size() > maxPending) {
+            // Queue is full, let the producer do the work
+            flush();
+        }
+    }
+
+
+    // ******************** Inner Classes *************************************
+    private static class PendingWrite {
+        final Operation operation;
+        final Location  location;
+
+        PendingWrite(final Operation OPERATION, final Location LOCATION) {
+            operation = OPERATION;
+            location  = LOCATION;
+        }
+    }
+}